@@ -0,0 +1,86 @@
+package bench;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.SnapshotCodec;
+
+/**
+ * Measures encoding a whole board to a base 64 string, as the manager does when
+ * saving or opening a board ({@code ManagerGUI.getBoardString}), and decoding
+ * it again, at several board sizes. Each board has the same density of
+ * scribbles.
+ *
+ * A ManagerGUI is a window, so it can not be created headless. As
+ * getBoardString only calls {@code SnapshotCodec.encode}, that is measured
+ * instead
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BoardStringBenchmark {
+	/** scribbles per million pixels */
+	private static final int SCRIBBLE_DENSITY = 500;
+
+	@Param({ "345x310", "690x620", "1380x1240" })
+	public String size;
+
+	private BufferedImage board;
+	private String encoded;
+
+	@Setup
+	public void setUp() {
+		String[] dimensions = size.split("x");
+		int width = Integer.parseInt(dimensions[0]);
+		int height = Integer.parseInt(dimensions[1]);
+
+		board = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = board.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+
+		Random random = new Random(42);
+		int scribbles = (int) ((long) width * height * SCRIBBLE_DENSITY
+			/ 1_000_000);
+		for (int i = 0; i < scribbles; i++) {
+			g.setColor(new Color(random.nextInt(0xFFFFFF)));
+			g.setStroke(new BasicStroke(1 + random.nextInt(10)));
+			int x = random.nextInt(width);
+			int y = random.nextInt(height);
+			g.drawLine(x, y, x + random.nextInt(80) - 40,
+				y + random.nextInt(80) - 40);
+		}
+		g.dispose();
+
+		encoded = SnapshotCodec.encode(board);
+	}
+
+	@Benchmark
+	public String encode() {
+		return SnapshotCodec.encode(board);
+	}
+
+	@Benchmark
+	public BufferedImage decode() {
+		return SnapshotCodec.decode(encoded);
+	}
+}
@@ -0,0 +1,123 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import server.Server.Mode;
+
+/**
+ * Measures the CPU time the server spends fanning drawing messages out to
+ * every connected client, for increasing numbers of clients, in each server
+ * Mode. Drawings are sent in bursts, as they are while a user draws. Only
+ * server threads are counted, not the simulated clients
+ *
+ * usage: [rounds] [client counts...]
+ */
+public class BroadcastCpuBenchmark {
+	private static final int DEFAULT_ROUNDS = 2000;
+	/** well within a user's outbound queue, so nothing is dropped */
+	private static final int BURST = 50;
+	private static final int[] DEFAULT_CLIENTS = { 10, 50, 100, 200, 400 };
+
+	public static void main(String args[]) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0])
+			: DEFAULT_ROUNDS;
+		int[] clientCounts = DEFAULT_CLIENTS;
+		if (args.length > 1) {
+			clientCounts = Arrays.stream(args, 1, args.length)
+				.mapToInt(Integer::parseInt).toArray();
+		}
+
+		System.out.format(
+			"%-10s %8s %18s %20s\n",
+			"mode",
+			"clients",
+			"cpu/broadcast (us)",
+			"cpu/recipient (ns)");
+
+		for (int clients : clientCounts) {
+			for (Mode mode : Mode.values()) {
+				run(mode, clients, rounds);
+			}
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Runs a single configuration and prints its results
+	 */
+	private static void run(Mode mode, int clients, int rounds)
+		throws Exception {
+		int baseThreads = BroadcastLatencyBenchmark.threadCount();
+
+		int port = HeadlessServer.freePort();
+		HeadlessServer server = new HeadlessServer(port, mode)
+			.startInBackground();
+		SimulatedClients simulated = new SimulatedClients(port, clients);
+		server.awaitAdmitted(clients);
+		simulated.awaitQuiet(200);
+
+		String message = BroadcastLatencyBenchmark.drawingMessage();
+
+		// warm up, then measure
+		burst(simulated, message, rounds / 4);
+		long start = serverCpuTime();
+		rounds = burst(simulated, message, rounds);
+		long cpu = serverCpuTime() - start;
+
+		System.out.format(
+			"%-10s %8d %18.1f %20.1f\n",
+			mode.toString().toLowerCase(),
+			clients,
+			cpu / 1000.0 / rounds,
+			(double) cpu / rounds / clients);
+
+		simulated.close();
+		server.stop();
+		BroadcastLatencyBenchmark.awaitThreadCount(baseThreads);
+	}
+
+	/**
+	 * Broadcasts {@code message} about {@code rounds} times, in bursts
+	 *
+	 * @return int, the number of broadcasts
+	 */
+	private static int burst(SimulatedClients simulated, String message,
+		int rounds) throws Exception {
+		int bursts = Math.max(1, rounds / BURST);
+		for (int i = 0; i < bursts; i++) {
+			simulated.burst(message, BURST);
+		}
+
+		return bursts * BURST;
+	}
+
+	/**
+	 * Gets the total CPU time of every live thread, other than the benchmark's
+	 * own threads
+	 *
+	 * @return long, nanoseconds
+	 */
+	private static long serverCpuTime() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long total = 0;
+
+		for (ThreadInfo info : threads
+			.getThreadInfo(threads.getAllThreadIds())) {
+			if (info == null || info.getThreadName().equals("main")
+				|| info.getThreadName().equals("simulated-clients")) {
+				continue;
+			}
+
+			long time = threads.getThreadCpuTime(info.getThreadId());
+			if (time > 0) {
+				total += time;
+			}
+		}
+
+		return total;
+	}
+}
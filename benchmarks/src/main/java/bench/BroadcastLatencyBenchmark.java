@@ -0,0 +1,121 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+import common.Fields;
+import server.Server.Mode;
+
+/**
+ * Measures how long a single drawing message takes to reach every connected
+ * client, for increasing numbers of clients, in each server Mode
+ *
+ * usage: [rounds] [client counts...]
+ */
+public class BroadcastLatencyBenchmark {
+	private static final int DEFAULT_ROUNDS = 200;
+	private static final int[] DEFAULT_CLIENTS = { 10, 50, 100, 200, 400 };
+
+	public static void main(String args[]) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0])
+			: DEFAULT_ROUNDS;
+		int[] clientCounts = DEFAULT_CLIENTS;
+		if (args.length > 1) {
+			clientCounts = Arrays.stream(args, 1, args.length)
+				.mapToInt(Integer::parseInt).toArray();
+		}
+
+		System.out.format(
+			"%-10s %8s %10s %10s %10s %14s\n",
+			"mode",
+			"clients",
+			"p50 (ms)",
+			"p99 (ms)",
+			"max (ms)",
+			"server threads");
+
+		for (int clients : clientCounts) {
+			for (Mode mode : Mode.values()) {
+				run(mode, clients, rounds);
+			}
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Runs a single configuration and prints its results
+	 */
+	private static void run(Mode mode, int clients, int rounds)
+		throws Exception {
+		int baseThreads = threadCount();
+
+		int port = HeadlessServer.freePort();
+		HeadlessServer server = new HeadlessServer(port, mode)
+			.startInBackground();
+		SimulatedClients simulated = new SimulatedClients(port, clients);
+		server.awaitAdmitted(clients);
+		simulated.awaitQuiet(200);
+
+		// the simulated clients' reader thread is not counted
+		int serverThreads = threadCount() - baseThreads - 1;
+
+		// warm up, then measure
+		simulated.broadcast(drawingMessage(), rounds / 4);
+		long[] latencies = simulated.broadcast(drawingMessage(), rounds);
+		Arrays.sort(latencies);
+
+		System.out.format(
+			"%-10s %8d %10.3f %10.3f %10.3f %14d\n",
+			mode.toString().toLowerCase(),
+			clients,
+			millis(latencies[latencies.length / 2]),
+			millis(latencies[(int) (latencies.length * 0.99)]),
+			millis(latencies[latencies.length - 1]),
+			serverThreads);
+
+		simulated.close();
+		server.stop();
+		awaitThreadCount(baseThreads);
+	}
+
+	/**
+	 * Creates a typical freehand drawing message
+	 *
+	 * @return String
+	 */
+	static String drawingMessage() {
+		return new JSONObject().put(Fields.COMMAND, Fields.DRAWING)
+			.put(
+				Fields.DRAWING,
+				new JSONObject().put(Fields.TOOL, Fields.FREEHAND)
+					.put(Fields.X, 100).put(Fields.Y, 100).put(Fields.X2, 102)
+					.put(Fields.Y2, 103).put(Fields.SIZE, 10)
+					.put(Fields.COLOR, 0xFF000000))
+			.toString();
+	}
+
+	/**
+	 * Gets the number of live threads, including virtual threads' carriers
+	 */
+	static int threadCount() {
+		return ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+
+	/**
+	 * Lets the threads of a finished run exit before the next run is counted
+	 */
+	static void awaitThreadCount(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (threadCount() > count
+			&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+	}
+
+	static double millis(long nanos) {
+		return nanos / 1_000_000.0;
+	}
+}
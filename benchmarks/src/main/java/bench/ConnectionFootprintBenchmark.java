@@ -0,0 +1,132 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import server.Server.Mode;
+
+/**
+ * Measures the memory cost of each connection, and the broadcast latency, with
+ * many connected clients in each server Mode. Resident memory is read from
+ * /proc, so it is only reported on Linux. The threads are every platform
+ * thread the server runs with the clients connected, including its event loops
+ * and the carriers of virtual threads, but not the virtual threads themselves
+ *
+ * usage: [clients] [rounds]
+ */
+public class ConnectionFootprintBenchmark {
+	private static final int DEFAULT_CLIENTS = 1000;
+	private static final int DEFAULT_ROUNDS = 200;
+
+	public static void main(String args[]) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0])
+			: DEFAULT_CLIENTS;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1])
+			: DEFAULT_ROUNDS;
+
+		System.out.format(
+			"%-10s %8s %14s %14s %10s %10s %10s\n",
+			"mode",
+			"clients",
+			"heap/conn (KB)",
+			"rss/conn (KB)",
+			"threads",
+			"p50 (ms)",
+			"p99 (ms)");
+
+		for (Mode mode : Mode.values()) {
+			run(mode, clients, rounds);
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Runs a single configuration and prints its results
+	 */
+	private static void run(Mode mode, int clients, int rounds)
+		throws Exception {
+		int baseThreads = BroadcastLatencyBenchmark.threadCount();
+
+		int port = HeadlessServer.freePort();
+		HeadlessServer server = new HeadlessServer(port, mode)
+			.startInBackground();
+		// one warm connection so the server's fixed costs are in the baseline
+		SimulatedClients warm = new SimulatedClients(port, 1);
+		server.awaitAdmitted(1);
+		warm.awaitQuiet(200);
+
+		long baseHeap = usedHeap();
+		long baseRss = residentMemory();
+
+		SimulatedClients simulated = new SimulatedClients(port, clients);
+		server.awaitAdmitted(clients + 1);
+		simulated.awaitQuiet(200);
+		warm.awaitQuiet(200);
+
+		long heap = usedHeap() - baseHeap;
+		long rss = residentMemory() - baseRss;
+		// the two simulated clients' reader threads are not counted
+		int threads = BroadcastLatencyBenchmark.threadCount() - baseThreads
+			- 2;
+
+		simulated.broadcast(BroadcastLatencyBenchmark.drawingMessage(),
+			rounds / 4);
+		long[] latencies = simulated
+			.broadcast(BroadcastLatencyBenchmark.drawingMessage(), rounds);
+		Arrays.sort(latencies);
+
+		System.out.format(
+			"%-10s %8d %14.1f %14s %10d %10.3f %10.3f\n",
+			mode.toString().toLowerCase(),
+			clients,
+			heap / 1024.0 / clients,
+			baseRss < 0 ? "n/a"
+				: String.format("%.1f", rss / 1024.0 / clients),
+			threads,
+			BroadcastLatencyBenchmark.millis(latencies[latencies.length / 2]),
+			BroadcastLatencyBenchmark
+				.millis(latencies[(int) (latencies.length * 0.99)]));
+
+		simulated.close();
+		warm.close();
+		server.stop();
+		BroadcastLatencyBenchmark.awaitThreadCount(baseThreads);
+	}
+
+	/**
+	 * Gets the used heap after a full collection
+	 */
+	private static long usedHeap() throws InterruptedException {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Gets the resident set size of this process in bytes, or -1 if unknown
+	 */
+	private static long residentMemory() {
+		Path status = Paths.get("/proc/self/status");
+		try {
+			for (String line : Files.readAllLines(status)) {
+				if (line.startsWith("VmRSS:")) {
+					return 1024 * Long.parseLong(
+						line.substring(6).replace("kB", "").trim());
+				}
+			}
+		} catch (IOException | NumberFormatException ignored) {
+		}
+
+		return -1;
+	}
+}
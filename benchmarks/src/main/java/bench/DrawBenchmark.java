@@ -0,0 +1,87 @@
+package bench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.DrawOp;
+import gui.BoardRenderer;
+import gui.ClientGUI.Tool;
+
+/**
+ * Measures drawing a DrawOp of each Tool onto a board, the way
+ * {@code ClientGUI.draw} does, but without a window so it runs headless. The
+ * drawings cycle through a few colors and sizes, as a busy board does, so run
+ * with {@code -prof gc} to check that drawing them allocates nothing once the
+ * renderer's caches are warm.
+ *
+ * A ClientGUI is a window, so it can not be created headless. Its draw only
+ * draws with a BoardRenderer and adds the bounds of the drawing to the area to
+ * repaint, so those are measured instead, without the repaint
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class DrawBenchmark {
+	@Param
+	public Tool tool;
+
+	private BufferedImage board;
+	private BoardRenderer renderer;
+	private DrawOp[] drawings;
+	private final Rectangle bounds = new Rectangle();
+	private int next = 0;
+
+	@Setup
+	public void setUp() {
+		board = new BufferedImage(690, 620, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = board.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, board.getWidth(), board.getHeight());
+		g.dispose();
+
+		renderer = new BoardRenderer(board.createGraphics());
+
+		int[] colors = { 0xFF1E90FF, 0xFF000000, 0xFFFF0000, 0xFF00FF00 };
+		int[] sizes = { 2, 5, 10, 20 };
+		drawings = new DrawOp[colors.length * sizes.length];
+		for (int i = 0; i < drawings.length; i++) {
+			drawings[i] = new DrawOp(tool).setPosition(200, 150)
+				.setEnd(260, 190).setDimensions(60, 40)
+				.setSize(sizes[i % sizes.length])
+				.setColor(colors[i / sizes.length]).setText("Hello");
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		renderer.dispose();
+	}
+
+	@Benchmark
+	public Rectangle draw() {
+		DrawOp drawing = drawings[next];
+		next = (next + 1) % drawings.length;
+
+		renderer.draw(drawing, null);
+		return BoardRenderer.bounds(drawing, bounds);
+	}
+}
@@ -0,0 +1,65 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.BinaryCodec;
+import common.DrawOp;
+import common.Fields;
+import gui.ClientGUI.Tool;
+
+/**
+ * Measures encoding and decoding a "drawing" message, as JSON and as a binary
+ * frame
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DrawingCodecBenchmark {
+	private DrawOp segment;
+	private String json;
+	private byte[] binary;
+
+	@Setup
+	public void setUp() {
+		segment = new DrawOp(Tool.FREEHAND).setPosition(412, 318)
+			.setEnd(415, 316).setSize(10).setColor(0xFF1E90FF).setSeq(123456);
+		json = segment.toMessage().toString();
+		binary = BinaryCodec.encode(segment);
+	}
+
+	@Benchmark
+	public String encodeJSON() {
+		return segment.toMessage().toString();
+	}
+
+	@Benchmark
+	public DrawOp decodeJSON() {
+		return DrawOp.fromJSON(new JSONObject(json).getJSONObject(Fields.DRAWING));
+	}
+
+	@Benchmark
+	public byte[] encodeBinary() {
+		return BinaryCodec.encode(segment);
+	}
+
+	@Benchmark
+	public Object decodeBinary() throws Exception {
+		return BinaryCodec.decode(ByteBuffer.wrap(binary));
+	}
+}
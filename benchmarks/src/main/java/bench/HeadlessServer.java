@@ -0,0 +1,98 @@
+package bench;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.json.JSONObject;
+
+import common.Fields;
+import server.IUser;
+import server.Server;
+
+/**
+ * A Server without a manager. Every user is accepted immediately and every
+ * message is broadcast without being logged
+ */
+public class HeadlessServer extends Server {
+	private int admitted = 0;
+
+	/**
+	 * Creates a HeadlessServer on the loopback address
+	 *
+	 * @param port int
+	 * @param mode Mode
+	 */
+	public HeadlessServer(int port, Mode mode) {
+		super("127.0.0.1", port, "bench", mode);
+	}
+
+	@Override
+	protected void startManager() {
+	}
+
+	@Override
+	protected void admitUser(IUser user) {
+		addUser(user);
+		user.start();
+
+		synchronized (this) {
+			admitted++;
+			notifyAll();
+		}
+	}
+
+	@Override
+	public void recieve(String message, IUser user) {
+		broadcast(message);
+	}
+
+	/**
+	 * The full user list is broadcast on every join, which makes joining
+	 * thousands of clients quadratic. Benchmarks don't read it, so it is kept
+	 * small
+	 */
+	@Override
+	public String getUserListMessage() {
+		return new JSONObject().put(Fields.COMMAND, Fields.USERS).toString();
+	}
+
+	/**
+	 * Waits until {@code count} users have been admitted
+	 *
+	 * @param count int
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitAdmitted(int count)
+		throws InterruptedException {
+		while (admitted < count) {
+			wait();
+		}
+	}
+
+	/**
+	 * Starts the server in a background thread
+	 *
+	 * @return HeadlessServer, this
+	 */
+	public HeadlessServer startInBackground() {
+		Thread thread = new Thread(this::start, "headless-server");
+		thread.setDaemon(true);
+		thread.start();
+
+		return this;
+	}
+
+	/**
+	 * Finds a port that is currently free on the loopback address
+	 *
+	 * @return int
+	 *
+	 * @throws IOException
+	 */
+	public static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package bench;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import common.DrawOp;
+import gui.ClientGUI.Tool;
+import server.BoardModel;
+import server.Journal;
+import server.Message;
+import server.Log;
+import server.Metrics;
+import server.SnapshotCache;
+
+/**
+ * Journals sessions of random drawings, and measures what journaling costs
+ * the thread that publishes them, how many drawings each fsync commits, and
+ * how long recovering the board takes for each checkpoint interval. The
+ * journal is written to a temporary directory, so run this on the disk the
+ * server would use
+ *
+ * usage: [drawings...]
+ */
+public class JournalBenchmark {
+	private static final int[] DEFAULT_DRAWINGS = { 10000, 50000, 200000 };
+	private static final int[] CHECKPOINT_INTERVALS = { 1000, 10000,
+		Integer.MAX_VALUE };
+	/** logs tiles that could not be encoded, and journal errors */
+	private static final Log log = new Log(System.err);
+
+	public static void main(String args[]) throws Exception {
+		int[] sessions = DEFAULT_DRAWINGS;
+		if (args.length > 0) {
+			sessions = Stream.of(args).mapToInt(Integer::parseInt).toArray();
+		}
+
+		System.out.format(
+			"%10s %10s %12s %10s %12s %12s %10s\n",
+			"drawings",
+			"interval",
+			"append (ns)",
+			"fsyncs",
+			"drawings/fsync",
+			"fsync (us)",
+			"recover (ms)");
+
+		for (int drawings : sessions) {
+			for (int interval : CHECKPOINT_INTERVALS) {
+				run(drawings, interval);
+			}
+		}
+	}
+
+	/**
+	 * Runs a single configuration and prints its results
+	 */
+	private static void run(int drawings, int interval) throws IOException {
+		Path directory = Files.createTempDirectory("journal");
+		Dimension size = new Dimension(BoardModel.DEFAULT_WIDTH,
+			BoardModel.DEFAULT_HEIGHT);
+
+		try {
+			BoardModel board = new BoardModel(size);
+			Metrics metrics = new Metrics();
+			SnapshotCache snapshots = new SnapshotCache(board,
+				metrics.histogram("snapshot.encode.ns"), log);
+			Journal journal = new Journal(directory, interval, metrics, log);
+			journal.recover(board, snapshots);
+
+			// published as the server does, holding the sequence lock
+			Random random = new Random(42);
+			long appending = 0;
+			for (int i = 0; i < drawings; i++) {
+				DrawOp drawing = randomDrawing(random);
+				drawing.setSeq(board.apply(drawing));
+				Message message = Message.of(drawing);
+
+				long start = System.nanoTime();
+				journal.append(message);
+				appending += System.nanoTime() - start;
+			}
+			journal.close();
+			snapshots.close();
+			board.close();
+
+			Metrics.Histogram commits = metrics.histogram("journal.commit.ns");
+
+			BoardModel recovered = new BoardModel(size);
+			Metrics reopenedMetrics = new Metrics();
+			SnapshotCache recoveredSnapshots = new SnapshotCache(recovered,
+				reopenedMetrics.histogram("snapshot.encode.ns"), log);
+			Journal reopened = new Journal(directory, interval,
+				reopenedMetrics, log);
+			long start = System.nanoTime();
+			reopened.recover(recovered, recoveredSnapshots);
+			long recovery = System.nanoTime() - start;
+			reopened.close();
+			recoveredSnapshots.close();
+			recovered.close();
+
+			if (recovered.getVersion() != drawings) {
+				System.err.format("Recovered version %d, expected %d\n",
+					recovered.getVersion(), drawings);
+			}
+
+			System.out.format(
+				"%10d %10s %12d %10d %12.1f %12.1f %10.1f\n",
+				drawings,
+				interval == Integer.MAX_VALUE ? "none" : interval,
+				appending / drawings,
+				commits.getCount(),
+				(double) drawings / commits.getCount(),
+				commits.getMean() / 1e3,
+				recovery / 1e6);
+		} finally {
+			try (Stream<Path> files = Files.walk(directory)) {
+				files.sorted(Comparator.reverseOrder()).forEach(path -> {
+					try {
+						Files.delete(path);
+					} catch (IOException ignored) {
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Creates a random line, rectangle or freehand stroke
+	 */
+	private static DrawOp randomDrawing(Random random) {
+		int x = random.nextInt(BoardModel.DEFAULT_WIDTH);
+		int y = random.nextInt(BoardModel.DEFAULT_HEIGHT);
+		int color = 0xFF000000 | random.nextInt(0xFFFFFF);
+
+		switch (random.nextInt(3)) {
+		case 0:
+			return new DrawOp(Tool.RECTANGLE).setPosition(x, y)
+				.setDimensions(random.nextInt(60), random.nextInt(60))
+				.setColor(color);
+		case 1:
+			return new DrawOp(Tool.LINE).setPosition(x, y)
+				.setEnd(x + random.nextInt(100) - 50,
+					y + random.nextInt(100) - 50)
+				.setSize(1 + random.nextInt(8)).setColor(color);
+		default:
+			int[] points = new int[32];
+			for (int i = 0; i < points.length; i += 2) {
+				points[i] = x + random.nextInt(40);
+				points[i + 1] = y + random.nextInt(40);
+			}
+			return new DrawOp(Tool.FREEHAND).setPosition(points[0], points[1])
+				.setPoints(points).setSize(1 + random.nextInt(8))
+				.setColor(color);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package bench;
+
+import java.awt.Dimension;
+import java.util.Random;
+
+import common.DrawOp;
+import common.SnapshotCodec;
+import gui.ClientGUI.Tool;
+import server.BoardModel;
+import server.Log;
+import server.Metrics;
+import server.SnapshotCache;
+
+/**
+ * Draws the same session of drawings on boards from the default size up to
+ * 20000x20000, and measures the heap each board uses, how long applying a
+ * drawing takes, and how long encoding the board for the first time and again
+ * after more drawings takes. The drawings are made around a point that moves
+ * every few hundred drawings, as people draw on one part of a board at a time.
+ * Run with a small heap, such as -Xmx512m, to check that large boards are kept
+ * off it
+ *
+ * usage: [drawings]
+ */
+public class LargeBoardBenchmark {
+	private static final int DEFAULT_DRAWINGS = 100000;
+	private static final int[][] SIZES = { { 690, 620 }, { 4096, 4096 },
+		{ 8192, 8192 }, { 20000, 20000 } };
+	/** the drawings made around each point */
+	private static final int DRAWINGS_PER_AREA = 500;
+	/** the size of the area drawn in around each point */
+	private static final int AREA_SIZE = 600;
+	/** the drawings made between the first encode and the next */
+	private static final int UPDATE_DRAWINGS = 1000;
+	/** logs tiles that could not be encoded */
+	private static final Log log = new Log(System.err);
+
+	public static void main(String args[]) {
+		int drawings = args.length > 0 ? Integer.parseInt(args[0])
+			: DEFAULT_DRAWINGS;
+
+		System.out.format(
+			"%-12s %-7s %10s %12s %12s %12s\n",
+			"board",
+			"storage",
+			"heap (MB)",
+			"apply (ns)",
+			"encode (ms)",
+			"update (ms)");
+
+		for (int[] size : SIZES) {
+			run(new Dimension(size[0], size[1]), drawings);
+		}
+	}
+
+	/**
+	 * Runs a single board size and prints its results
+	 */
+	private static void run(Dimension size, int drawings) {
+		long baseline = usedHeap();
+
+		BoardModel board = new BoardModel(size);
+		SnapshotCache snapshots = new SnapshotCache(board,
+			new Metrics().histogram("snapshot.encode.ns"), log);
+		Random random = new Random(42);
+
+		long start = System.nanoTime();
+		drawSession(board, random, drawings);
+		// copying no tiles waits for every drawing to be applied
+		board.snapshot(null, 0);
+		long applying = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		snapshots.getTiles(SnapshotCodec.Format.RLE);
+		long encoding = System.nanoTime() - start;
+
+		drawSession(board, random, UPDATE_DRAWINGS);
+		start = System.nanoTime();
+		snapshots.getTiles(SnapshotCodec.Format.RLE);
+		long updating = System.nanoTime() - start;
+
+		long heap = usedHeap() - baseline;
+
+		System.out.format(
+			"%-12s %-7s %10.1f %12d %12.1f %12.1f\n",
+			size.width + "x" + size.height,
+			(long) size.width * size.height > BoardModel.MAX_HEAP_PIXELS
+				? "mapped" : "heap",
+			heap / 1e6,
+			applying / drawings,
+			encoding / 1e6,
+			updating / 1e6);
+
+		snapshots.close();
+		board.close();
+	}
+
+	/**
+	 * Applies random drawings around points that move every
+	 * DRAWINGS_PER_AREA drawings
+	 */
+	private static void drawSession(BoardModel board, Random random,
+		int drawings) {
+		Dimension size = board.getSize();
+		int areaX = 0;
+		int areaY = 0;
+		for (int i = 0; i < drawings; i++) {
+			if (i % DRAWINGS_PER_AREA == 0) {
+				areaX = random.nextInt(Math.max(1, size.width - AREA_SIZE));
+				areaY = random.nextInt(Math.max(1, size.height - AREA_SIZE));
+			}
+
+			board.apply(randomDrawing(random,
+				areaX + random.nextInt(AREA_SIZE),
+				areaY + random.nextInt(AREA_SIZE)));
+		}
+	}
+
+	/**
+	 * Creates a random line, rectangle or freehand stroke at x, y
+	 */
+	private static DrawOp randomDrawing(Random random, int x, int y) {
+		int color = 0xFF000000 | random.nextInt(0xFFFFFF);
+
+		switch (random.nextInt(3)) {
+		case 0:
+			return new DrawOp(Tool.RECTANGLE).setPosition(x, y)
+				.setDimensions(random.nextInt(60), random.nextInt(60))
+				.setColor(color);
+		case 1:
+			return new DrawOp(Tool.LINE).setPosition(x, y)
+				.setEnd(x + random.nextInt(100) - 50,
+					y + random.nextInt(100) - 50)
+				.setSize(1 + random.nextInt(8)).setColor(color);
+		default:
+			int[] points = new int[32];
+			for (int i = 0; i < points.length; i += 2) {
+				points[i] = x + random.nextInt(40);
+				points[i + 1] = y + random.nextInt(40);
+			}
+			return new DrawOp(Tool.FREEHAND).setPosition(points[0], points[1])
+				.setPoints(points).setSize(1 + random.nextInt(8))
+				.setColor(color);
+		}
+	}
+
+	/**
+	 * Gets the heap in use after collecting garbage
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
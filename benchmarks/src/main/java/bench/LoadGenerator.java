@@ -0,0 +1,552 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import common.BinaryCodec;
+import common.DrawOp;
+import common.Fields;
+import common.WireFormat;
+import gui.ClientGUI.Tool;
+import server.Log;
+import server.Metrics;
+import server.Server;
+
+/**
+ * Drives a server with many scripted clients, without opening any windows.
+ * Each client joins with the same handshake as client.Client, then draws
+ * freehand strokes, shapes and text at a fixed rate. The latency of a drawing
+ * is the time from sending it until its broadcast comes back to the client
+ * that sent it.
+ *
+ * Without --port a server is started in this process, with every join
+ * approved. A server started elsewhere on localhost must have "Let anyone
+ * join" ticked.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar bench.LoadGenerator \
+ *     [--clients 200] [--rate 20] [--duration 30] [--warmup 5] \
+ *     [--format binary|json] [--host 127.0.0.1] [--port 5000] \
+ *     [--mode blocking|nio|virtual] [--tolerance 0.5]
+ * </pre>
+ */
+public class LoadGenerator {
+	/** sent drawings remembered per client, for matching their echoes */
+	private static final int IN_FLIGHT = 4096;
+	/** bits of a drawing's color that hold its number, the rest its client */
+	private static final int NUMBER_BITS = 20;
+	private static final int MAX_CLIENTS = 1 << (32 - NUMBER_BITS);
+	private static final int BOARD_WIDTH = 1380;
+	private static final int BOARD_HEIGHT = 1240;
+	private static final String COLOR_KEY = JSONObject.quote(Fields.COLOR)
+		+ ":";
+	private static final String DRAWING_KEY = JSONObject
+		.quote(Fields.DRAWING);
+	private static final String[] WORDS = { "hello", "idea", "todo", "ok?",
+		"see above", "draft", "v2", "why not" };
+
+	private final String host;
+	private final int port;
+	private final WireFormat format;
+
+	private final Metrics.Histogram latency = new Metrics.Histogram();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong echoed = new AtomicLong();
+	private final LongAdder received = new LongAdder();
+	private final AtomicLong disconnects = new AtomicLong();
+	private final AtomicLong connectFailures = new AtomicLong();
+
+	private final List<SyntheticClient> clients = new ArrayList<>();
+	private volatile boolean stopping = false;
+
+	/**
+	 * Creates a LoadGenerator
+	 *
+	 * @param host   String
+	 * @param port   int
+	 * @param format WireFormat, asked for in each client's handshake
+	 */
+	public LoadGenerator(String host, int port, WireFormat format) {
+		this.host = host;
+		this.port = port;
+		this.format = format;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int clients = 200;
+		double rate = 20;
+		int duration = 30;
+		int warmup = 5;
+		WireFormat format = WireFormat.BINARY;
+		String host = "127.0.0.1";
+		int port = -1;
+		Server.Mode mode = Server.Mode.NIO;
+		double tolerance = 0;
+
+		try {
+			for (int i = 0; i + 1 < args.length; i += 2) {
+				String value = args[i + 1];
+				switch (args[i]) {
+				case "--clients":
+					clients = Integer.parseInt(value);
+					break;
+				case "--rate":
+					rate = Double.parseDouble(value);
+					break;
+				case "--duration":
+					duration = Integer.parseInt(value);
+					break;
+				case "--warmup":
+					warmup = Integer.parseInt(value);
+					break;
+				case "--format":
+					format = WireFormat.of(value);
+					break;
+				case "--host":
+					host = value;
+					break;
+				case "--port":
+					port = Integer.parseInt(value);
+					break;
+				case "--mode":
+					mode = Server.Mode.valueOf(value.toUpperCase());
+					break;
+				case "--tolerance":
+					tolerance = Double.parseDouble(value);
+					break;
+				default:
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+			if (args.length % 2 != 0) {
+				throw new IllegalArgumentException(args[args.length - 1]);
+			}
+		} catch (IllegalArgumentException iae) {
+			System.err.format("Bad argument: %s\n", iae.getMessage());
+			System.err.println("usage: [--clients n] [--rate drawings/s] [--duration s] [--warmup s] [--format binary|json] [--host ip] [--port port] [--mode blocking|nio|virtual] [--tolerance fraction of size]");
+			System.exit(1);
+		}
+
+		Server server = null;
+		if (port < 0) {
+			port = HeadlessServer.freePort();
+			server = startServer(port, mode);
+			server.setStrokeTolerance(tolerance);
+		}
+
+		LoadGenerator generator = new LoadGenerator(host, port, format);
+		generator.run(clients, rate, warmup, duration);
+
+		if (server != null) {
+			Metrics metrics = server.getMetrics();
+			if (tolerance > 0) {
+				System.out.format(
+					"simplified    %d points to %d, %d drawings to %d\n",
+					metrics.counter("strokes.points.in").get(),
+					metrics.counter("strokes.points.out").get(),
+					metrics.counter("strokes.drawings.in").get(),
+					metrics.counter("strokes.drawings.out").get());
+			}
+			server.stop();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Starts a real server on the loopback address, without a manager, that
+	 * approves every join
+	 *
+	 * @param port int
+	 * @param mode Mode
+	 * @return Server
+	 *
+	 * @throws InterruptedException
+	 */
+	private static Server startServer(int port, Server.Mode mode)
+		throws InterruptedException {
+		Server server = new Server("127.0.0.1", port, "loadgen", mode) {
+			@Override
+			protected void startManager() {
+			}
+		};
+		server.getJoinQueue().setOpen(true);
+		server.getLog().setLevel(Log.Level.WARN);
+
+		Thread thread = new Thread(server::start, "loadgen-server");
+		thread.setDaemon(true);
+		thread.start();
+		server.awaitStarted();
+
+		return server;
+	}
+
+	/**
+	 * Connects the clients, lets them draw for {@code warmup} seconds
+	 * without measuring, then for {@code duration} seconds, and prints a
+	 * report
+	 *
+	 * @param count    int, the number of clients
+	 * @param rate     double, drawings per second per client
+	 * @param warmup   int, seconds
+	 * @param duration int, seconds
+	 *
+	 * @throws InterruptedException
+	 */
+	public void run(int count, double rate, int warmup, int duration)
+		throws InterruptedException {
+		for (int i = 0; i < Math.min(count, MAX_CLIENTS); i++) {
+			try {
+				SyntheticClient client = new SyntheticClient(i);
+				client.connect();
+				clients.add(client);
+			} catch (IOException ioe) {
+				connectFailures.incrementAndGet();
+			}
+		}
+		System.out.format("%d clients connected to %s:%d (%s), %d failed\n",
+			clients.size(), host, port, format.toString().toLowerCase(),
+			connectFailures.get());
+
+		// a few threads send for every client, each client at its own offset
+		// so their drawings are spread out rather than sent in lock step
+		ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+			Math.max(2, Runtime.getRuntime().availableProcessors() / 2),
+			runnable -> {
+				Thread thread = new Thread(runnable, "loadgen-sender");
+				thread.setDaemon(true);
+				return thread;
+			});
+		long period = Math.max(1, (long) (1e9 / rate));
+		for (SyntheticClient client : clients) {
+			senders.scheduleAtFixedRate(client::sendNext,
+				ThreadLocalRandom.current().nextLong(period), period,
+				TimeUnit.NANOSECONDS);
+		}
+
+		Thread.sleep(warmup * 1000L);
+		latency.reset();
+		long sentBefore = sent.get();
+		long echoedBefore = echoed.get();
+		long receivedBefore = received.sum();
+		long start = System.nanoTime();
+
+		for (int second = 1; second <= duration; second++) {
+			Thread.sleep(1000);
+			System.out.format(
+				"%3ds  sent %d  echoed %d  p50 %.2f ms  p99 %.2f ms  disconnects %d\n",
+				second, sent.get() - sentBefore, echoed.get() - echoedBefore,
+				latency.getPercentile(0.5) / 1e6,
+				latency.getPercentile(0.99) / 1e6, disconnects.get());
+		}
+
+		senders.shutdownNow();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long sentCount = sent.get() - sentBefore;
+		long echoedCount = echoed.get() - echoedBefore;
+		long receivedCount = received.sum() - receivedBefore;
+
+		// give the last drawings a moment to come back before counting them
+		// as lost
+		Thread.sleep(1000);
+		stopping = true;
+		clients.forEach(SyntheticClient::close);
+
+		System.out.println();
+		System.out.format("clients       %d (%d failed to connect, %d disconnected)\n",
+			clients.size(), connectFailures.get(), disconnects.get());
+		System.out.format("sent          %d drawings, %.0f/s\n", sentCount,
+			sentCount / elapsed);
+		System.out.format("received      %d messages, %.0f/s\n", receivedCount,
+			receivedCount / elapsed);
+		System.out.format("echoed        %d (%d not echoed)\n", echoedCount,
+			Math.max(0, sentCount - echoedCount));
+		System.out.format("latency (ms)  p50 %.2f  p90 %.2f  p99 %.2f  max %.2f  mean %.2f\n",
+			latency.getPercentile(0.5) / 1e6, latency.getPercentile(0.9) / 1e6,
+			latency.getPercentile(0.99) / 1e6, latency.getMax() / 1e6,
+			latency.getMean() / 1e6);
+	}
+
+	/**
+	 * One scripted participant, with a socket, a reader thread, and the
+	 * stroke it is part way through drawing
+	 */
+	private class SyntheticClient {
+		private final int index;
+		private final String username;
+		private final Random random = new Random();
+		/** send times by the low bits of the drawing's number, 0 once echoed */
+		private final AtomicLongArray sendTimes = new AtomicLongArray(
+			IN_FLIGHT);
+		private final Lock sendLock = new ReentrantLock();
+
+		private Socket socket;
+		private DataOutputStream dos;
+		private DataInputStream dis;
+		private volatile WireFormat format = WireFormat.JSON;
+		/** set once the server has replied, and the format is settled */
+		private volatile boolean active = false;
+
+		/** the number of drawings sent */
+		private int count = 0;
+		/** polylines left in the current freehand stroke */
+		private int strokeLeft = 0;
+		private int penX;
+		private int penY;
+
+		private SyntheticClient(int index) {
+			this.index = index;
+			this.username = "load" + index;
+		}
+
+		/**
+		 * Connects and sends the handshake, asking for the generator's format
+		 *
+		 * @throws IOException
+		 */
+		private void connect() throws IOException {
+			socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			dos = new DataOutputStream(
+				new BufferedOutputStream(socket.getOutputStream()));
+			dis = new DataInputStream(
+				new BufferedInputStream(socket.getInputStream()));
+
+			JSONObject handshake = new JSONObject()
+				.put(Fields.COMMAND, Fields.USERNAME)
+				.put(Fields.USERNAME, username);
+			if (LoadGenerator.this.format == WireFormat.BINARY) {
+				handshake.put(Fields.PROTOCOL, "binary");
+			}
+			dos.writeUTF(handshake.toString());
+			dos.flush();
+
+			Thread reader = new Thread(this::read, username);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Sends the next drawing of this client's script: mostly freehand
+		 * strokes, sent a polyline at a time like client.Client does, with the
+		 * odd shape or text
+		 */
+		private void sendNext() {
+			if (!active) {
+				return;
+			}
+
+			DrawOp op;
+			if (strokeLeft > 0) {
+				op = nextPolyline();
+			} else {
+				int pick = random.nextInt(100);
+				if (pick < 85) {
+					strokeLeft = 2 + random.nextInt(6);
+					penX = random.nextInt(BOARD_WIDTH);
+					penY = random.nextInt(BOARD_HEIGHT);
+					op = nextPolyline();
+				} else if (pick < 95) {
+					op = nextShape();
+				} else {
+					op = new DrawOp(Tool.TEXT)
+						.setPosition(random.nextInt(BOARD_WIDTH),
+							random.nextInt(BOARD_HEIGHT))
+						.setSize(12 + random.nextInt(24))
+						.setText(WORDS[random.nextInt(WORDS.length)]);
+				}
+			}
+
+			// the color carries the client and the drawing's number, so its
+			// echo can be matched without adding a field to the protocol
+			int number = count++ & ((1 << NUMBER_BITS) - 1);
+			op.setColor((index << NUMBER_BITS) | number);
+
+			sendTimes.set(number & (IN_FLIGHT - 1), System.nanoTime());
+			if (send(op)) {
+				sent.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Gets the next polyline of the current stroke, as many points as a
+		 * client batches while the mouse is dragged
+		 *
+		 * @return DrawOp
+		 */
+		private DrawOp nextPolyline() {
+			strokeLeft--;
+			int[] points = new int[2 * (6 + random.nextInt(8))];
+			points[0] = penX;
+			points[1] = penY;
+			for (int i = 2; i < points.length; i += 2) {
+				penX = clamp(penX + random.nextInt(21) - 10, BOARD_WIDTH);
+				penY = clamp(penY + random.nextInt(21) - 10, BOARD_HEIGHT);
+				points[i] = penX;
+				points[i + 1] = penY;
+			}
+
+			return new DrawOp(Tool.FREEHAND).setSize(3).setPoints(points);
+		}
+
+		private DrawOp nextShape() {
+			int x = random.nextInt(BOARD_WIDTH);
+			int y = random.nextInt(BOARD_HEIGHT);
+
+			switch (random.nextInt(4)) {
+			case 0:
+				return new DrawOp(Tool.LINE).setPosition(x, y)
+					.setEnd(random.nextInt(BOARD_WIDTH),
+						random.nextInt(BOARD_HEIGHT))
+					.setSize(1 + random.nextInt(8));
+			case 1:
+				return new DrawOp(Tool.RECTANGLE).setPosition(x, y)
+					.setDimensions(20 + random.nextInt(200),
+						20 + random.nextInt(200));
+			case 2:
+				return new DrawOp(Tool.OVAL).setPosition(x, y)
+					.setDimensions(20 + random.nextInt(200),
+						20 + random.nextInt(200));
+			default:
+				return new DrawOp(Tool.CIRCLE).setPosition(x, y)
+					.setSize(10 + random.nextInt(150));
+			}
+		}
+
+		/**
+		 * Sends a drawing in the format the server confirmed
+		 *
+		 * @param op DrawOp
+		 * @return boolean, {@code false} if the connection is closed
+		 */
+		private boolean send(DrawOp op) {
+			sendLock.lock();
+			try {
+				if (format == WireFormat.BINARY) {
+					dos.write(BinaryCodec.encode(op));
+				} else {
+					dos.writeUTF(op.toMessage().toString());
+				}
+				dos.flush();
+				return true;
+			} catch (IOException ioe) {
+				return false;
+			} finally {
+				sendLock.unlock();
+			}
+		}
+
+		/**
+		 * Reads messages until the connection closes, timing the echoes of
+		 * this client's own drawings
+		 */
+		private void read() {
+			boolean first = true;
+			try {
+				while (true) {
+					Object in = format == WireFormat.BINARY
+						? BinaryCodec.read(dis)
+						: dis.readUTF();
+					long now = System.nanoTime();
+					received.increment();
+
+					if (in instanceof DrawOp) {
+						matchEcho(((DrawOp) in).getColor(), now);
+					} else if (first) {
+						JSONObject json = new JSONObject(in.toString());
+						if (Fields.PROTOCOL
+							.equals(json.optString(Fields.COMMAND))) {
+							format = WireFormat
+								.of(json.optString(Fields.PROTOCOL));
+						}
+					} else {
+						// every client gets every drawing, so parsing each
+						// one in full would make this the bottleneck rather
+						// than the server
+						String message = (String) in;
+						int color = message.indexOf(COLOR_KEY);
+						if (color >= 0 && message.contains(DRAWING_KEY)) {
+							matchEcho(parseInt(message,
+								color + COLOR_KEY.length()), now);
+						}
+					}
+					first = false;
+					active = true;
+				}
+			} catch (IOException | JSONException e) {
+				if (!stopping) {
+					disconnects.incrementAndGet();
+				}
+			}
+		}
+
+		/**
+		 * Records the latency of a drawing if it is one this client sent and
+		 * has not already seen
+		 *
+		 * @param color int, the drawing's color
+		 * @param now   long, when it arrived
+		 */
+		private void matchEcho(int color, long now) {
+			if (color >>> NUMBER_BITS != index) {
+				return;
+			}
+
+			long sentAt = sendTimes.getAndSet(color & (IN_FLIGHT - 1), 0);
+			if (sentAt != 0) {
+				latency.record(now - sentAt);
+				echoed.incrementAndGet();
+			}
+		}
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Parses the (possibly negative) integer starting at {@code start}
+	 *
+	 * @param text  String
+	 * @param start int
+	 * @return int
+	 */
+	private static int parseInt(String text, int start) {
+		boolean negative = start < text.length() && text.charAt(start) == '-';
+		long value = 0;
+		for (int i = negative ? start + 1 : start; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				break;
+			}
+			value = value * 10 + (c - '0');
+		}
+
+		return (int) (negative ? -value : value);
+	}
+
+	private static int clamp(int value, int limit) {
+		return Math.max(0, Math.min(limit - 1, value));
+	}
+}
@@ -0,0 +1,155 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import common.DrawOp;
+import common.Fields;
+import gui.ClientGUI.Tool;
+import server.IUser;
+import server.Log;
+import server.Message;
+import server.Server;
+
+/**
+ * Measures the server's relay path: receiving a message from one user and
+ * queueing it for every user. The users are stubs that take the shared binary
+ * frame of every message, as a NioUser would, so no sockets are involved
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServerBenchmark {
+	@Param({ "10", "100" })
+	public int users;
+
+	private Server server;
+	private IUser sender;
+	private String drawing;
+	private String chat;
+	private int x = 0;
+
+	@Setup
+	public void setUp(Blackhole blackhole) throws Exception {
+		server = new Server("127.0.0.1", HeadlessServer.freePort(), "bench",
+			Server.Mode.NIO) {
+			@Override
+			protected void startManager() {
+			}
+		};
+		server.getLog().setLevel(Log.Level.WARN);
+
+		Thread thread = new Thread(server::start, "benchmark-server");
+		thread.setDaemon(true);
+		thread.start();
+		server.awaitStarted();
+
+		for (int i = 0; i < users; i++) {
+			server.addUser(new StubUser(i, blackhole));
+		}
+		sender = server.getUser(0);
+
+		drawing = segment(0).toMessage().toString();
+		chat = new JSONObject().put(Fields.COMMAND, "chat")
+			.put("text", "hello everyone").toString();
+	}
+
+	/**
+	 * Waits for the board to paint every drawing queued in the iteration, so
+	 * its backlog is not carried into the next one
+	 */
+	@TearDown(Level.Iteration)
+	public void drain() {
+		server.getTilesTransfer(Long.MAX_VALUE);
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Benchmark
+	public void recieveDrawing() {
+		server.recieve(drawing, sender);
+	}
+
+	@Benchmark
+	public void recieveBinaryDrawing() {
+		server.recieve(segment(x++ & 0xFF), sender);
+	}
+
+	@Benchmark
+	public void broadcast() {
+		server.broadcast(Message.of(chat));
+	}
+
+	private static DrawOp segment(int x) {
+		return new DrawOp(Tool.FREEHAND).setPosition(x, 318)
+			.setEnd(x + 3, 316).setSize(10).setColor(0xFF1E90FF);
+	}
+
+	/**
+	 * A user that takes the frame of every message sent to it
+	 */
+	private static class StubUser implements IUser {
+		private final int uuid;
+		private final Blackhole blackhole;
+
+		private StubUser(int uuid, Blackhole blackhole) {
+			this.uuid = uuid;
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public String getUsername() {
+			return "stub";
+		}
+
+		@Override
+		public int getUUID() {
+			return uuid;
+		}
+
+		@Override
+		public void send(String message) {
+			send(Message.of(message));
+		}
+
+		@Override
+		public void send(Message message) {
+			blackhole.consume(message.getBinary());
+		}
+
+		@Override
+		public void start() {
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return false;
+		}
+
+		@Override
+		public boolean terminate() {
+			return true;
+		}
+	}
+}
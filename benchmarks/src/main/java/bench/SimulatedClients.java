@@ -0,0 +1,261 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import common.Fields;
+
+/**
+ * Many simulated clients sharing a single reader thread, so the benchmarks
+ * themselves don't need a thread per connection. Incoming frames are counted,
+ * not decoded
+ */
+public class SimulatedClients implements Closeable {
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private final List<SocketChannel> channels = new ArrayList<>();
+	private final Selector selector;
+	private final Thread reader;
+	private final AtomicLong frames = new AtomicLong();
+
+	private volatile CountDownLatch round;
+	private volatile boolean closed = false;
+
+	/**
+	 * Connects {@code count} clients to a server on the loopback address, and
+	 * sends each of their handshakes
+	 *
+	 * @param port  int
+	 * @param count int
+	 *
+	 * @throws Exception
+	 */
+	public SimulatedClients(int port, int count) throws Exception {
+		this.selector = Selector.open();
+
+		for (int i = 0; i < count; i++) {
+			SocketChannel channel = connect(port);
+			write(
+				channel,
+				new JSONObject().put(Fields.COMMAND, Fields.USERNAME)
+					.put(Fields.USERNAME, "bench" + i).toString());
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, new int[] { -1,
+				0 });
+			channels.add(channel);
+		}
+
+		this.reader = new Thread(this::read, "simulated-clients");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Waits until no frames have arrived for {@code quietMillis}
+	 *
+	 * @param quietMillis long
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitQuiet(long quietMillis) throws InterruptedException {
+		long last;
+		do {
+			last = frames.get();
+			Thread.sleep(quietMillis);
+		} while (frames.get() != last);
+	}
+
+	/**
+	 * Sends {@code message} from the first client and waits until every client
+	 * has received one frame
+	 *
+	 * @param message String
+	 * @return long, nanoseconds until the last client received the broadcast
+	 *
+	 * @throws Exception
+	 */
+	public long broadcast(String message) throws Exception {
+		CountDownLatch latch = new CountDownLatch(channels.size());
+		round = latch;
+
+		long start = System.nanoTime();
+		write(channels.get(0), message);
+		if (!latch.await(10, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("broadcast timed out");
+		}
+		long elapsed = System.nanoTime() - start;
+
+		round = null;
+		return elapsed;
+	}
+
+	/**
+	 * Broadcasts {@code message} {@code rounds} times, one after the other
+	 *
+	 * @param message String
+	 * @param rounds  int
+	 * @return long[] latencies in nanoseconds
+	 *
+	 * @throws Exception
+	 */
+	public long[] broadcast(String message, int rounds) throws Exception {
+		long[] latencies = new long[Math.max(1, rounds)];
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = broadcast(message);
+		}
+
+		return latencies;
+	}
+
+	/**
+	 * Sends {@code message} from the first client {@code count} times without
+	 * waiting, then waits until every client has received every one
+	 *
+	 * @param message String
+	 * @param count   int
+	 * @return long, nanoseconds until the last frame was received
+	 *
+	 * @throws Exception
+	 */
+	public long burst(String message, int count) throws Exception {
+		long expected = frames.get() + (long) count * channels.size();
+		long deadline = System.currentTimeMillis() + 10_000;
+
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			write(channels.get(0), message);
+		}
+		while (frames.get() < expected) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IllegalStateException("burst timed out");
+			}
+			Thread.sleep(1);
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		selector.wakeup();
+
+		for (SocketChannel channel : channels) {
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Counts frames for every client. Each key's attachment holds the first
+	 * byte of a partially read header (or -1), and the number of body bytes
+	 * left in the current frame
+	 */
+	private void read() {
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		while (!closed) {
+			try {
+				selector.select();
+			} catch (IOException ioe) {
+				return;
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				int[] state = (int[]) key.attachment();
+				try {
+					buffer.clear();
+					if (((SocketChannel) key.channel()).read(buffer) < 0) {
+						key.cancel();
+						continue;
+					}
+				} catch (IOException ioe) {
+					key.cancel();
+					continue;
+				}
+
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					if (state[1] > 0) {
+						int skip = Math.min(state[1], buffer.remaining());
+						buffer.position(buffer.position() + skip);
+						state[1] -= skip;
+						if (state[1] == 0) {
+							onFrame();
+						}
+					} else if (state[0] < 0) {
+						state[0] = buffer.get() & 0xFF;
+					} else {
+						state[1] = (state[0] << 8) | (buffer.get() & 0xFF);
+						state[0] = -1;
+						if (state[1] == 0) {
+							onFrame();
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void onFrame() {
+		frames.incrementAndGet();
+
+		CountDownLatch latch = round;
+		if (latch != null) {
+			latch.countDown();
+		}
+	}
+
+	/**
+	 * Writes a writeUTF frame to a channel, spinning if it is non-blocking
+	 */
+	private static void write(SocketChannel channel, String message)
+		throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new DataOutputStream(baos).writeUTF(message);
+
+		ByteBuffer frame = ByteBuffer.wrap(baos.toByteArray());
+		while (frame.hasRemaining()) {
+			channel.write(frame);
+		}
+	}
+
+	/**
+	 * Connects to the server, retrying while it starts
+	 */
+	private static SocketChannel connect(int port) throws Exception {
+		for (int attempt = 0;; attempt++) {
+			try {
+				return SocketChannel
+					.open(new InetSocketAddress("127.0.0.1", port));
+			} catch (ConnectException ce) {
+				if (attempt > 100) {
+					throw ce;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+}
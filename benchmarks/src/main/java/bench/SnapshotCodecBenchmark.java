@@ -0,0 +1,169 @@
+package bench;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Random;
+
+import common.SnapshotCodec;
+import common.SnapshotCodec.Format;
+import server.BoardModel;
+
+/**
+ * Compares the snapshot Formats on a few representative boards, encoding and
+ * decoding them tile by tile as the server and clients do. Sizes are given
+ * raw, as sent in binary frames, and base 64 encoded, as sent in JSON. Times
+ * are the best of several runs
+ *
+ * usage: [width] [height] [runs]
+ */
+public class SnapshotCodecBenchmark {
+	private static final int DEFAULT_WIDTH = BoardModel.DEFAULT_WIDTH;
+	private static final int DEFAULT_HEIGHT = BoardModel.DEFAULT_HEIGHT;
+	private static final int DEFAULT_RUNS = 20;
+	/** the colors of the palette in the GUI */
+	private static final Color[] PALETTE = { Color.BLACK, Color.RED,
+		Color.BLUE, Color.GREEN.darker(), Color.ORANGE, Color.MAGENTA };
+
+	public static void main(String args[]) throws IOException {
+		int width = args.length > 0 ? Integer.parseInt(args[0])
+			: DEFAULT_WIDTH;
+		int height = args.length > 1 ? Integer.parseInt(args[1])
+			: DEFAULT_HEIGHT;
+		int runs = args.length > 2 ? Integer.parseInt(args[2])
+			: DEFAULT_RUNS;
+
+		System.out.format(
+			"%-10s %-6s %12s %12s %12s %12s\n",
+			"board",
+			"format",
+			"raw (KB)",
+			"base64 (KB)",
+			"encode (ms)",
+			"decode (ms)");
+
+		for (String board : new String[] { "blank", "sketch", "scribbles",
+			"noise" }) {
+			BufferedImage image = create(board, width, height);
+			for (Format format : Format.values()) {
+				run(board, image, format, runs);
+			}
+		}
+	}
+
+	/**
+	 * Runs a single configuration and prints its results
+	 */
+	private static void run(String board, BufferedImage image, Format format,
+		int runs) throws IOException {
+		int columns = (image.getWidth() + BoardModel.TILE_SIZE - 1)
+			/ BoardModel.TILE_SIZE;
+		int rows = (image.getHeight() + BoardModel.TILE_SIZE - 1)
+			/ BoardModel.TILE_SIZE;
+		BufferedImage[] tiles = new BufferedImage[columns * rows];
+		for (int tile = 0; tile < tiles.length; tile++) {
+			int x = (tile % columns) * BoardModel.TILE_SIZE;
+			int y = (tile / columns) * BoardModel.TILE_SIZE;
+			tiles[tile] = image.getSubimage(x, y,
+				Math.min(BoardModel.TILE_SIZE, image.getWidth() - x),
+				Math.min(BoardModel.TILE_SIZE, image.getHeight() - y));
+		}
+
+		byte[][] encoded = new byte[tiles.length][];
+		long encode = Long.MAX_VALUE;
+		long decode = Long.MAX_VALUE;
+		// the first run warms up
+		for (int run = 0; run <= runs; run++) {
+			long start = System.nanoTime();
+			for (int tile = 0; tile < tiles.length; tile++) {
+				encoded[tile] = SnapshotCodec.toBytes(tiles[tile], format);
+			}
+			long encoded_ = System.nanoTime();
+			for (byte[] bytes : encoded) {
+				SnapshotCodec.fromBytes(bytes);
+			}
+			long end = System.nanoTime();
+
+			if (run > 0) {
+				encode = Math.min(encode, encoded_ - start);
+				decode = Math.min(decode, end - encoded_);
+			}
+		}
+
+		long raw = 0;
+		long base64 = 0;
+		for (byte[] bytes : encoded) {
+			raw += bytes.length;
+			base64 += Base64.getEncoder().encodeToString(bytes).length();
+		}
+
+		System.out.format(
+			"%-10s %-6s %12.1f %12.1f %12.2f %12.2f\n",
+			board,
+			format,
+			raw / 1024.0,
+			base64 / 1024.0,
+			encode / 1e6,
+			decode / 1e6);
+	}
+
+	/**
+	 * Creates a board: blank, a sketch in the GUI's palette with some text,
+	 * scribbles in random colors, or random noise such as a photo opened by
+	 * the manager
+	 */
+	private static BufferedImage create(String board, int width, int height) {
+		BufferedImage image = new BufferedImage(width, height,
+			BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+
+		Random random = new Random(42);
+		int strokes = (int) ((long) width * height / 2000);
+		switch (board) {
+		case "sketch":
+			for (int i = 0; i < strokes; i++) {
+				g.setColor(PALETTE[random.nextInt(PALETTE.length)]);
+				g.setStroke(new BasicStroke(1 + random.nextInt(10),
+					BasicStroke.CAP_ROUND, BasicStroke.JOIN_BEVEL));
+				int x = random.nextInt(width);
+				int y = random.nextInt(height);
+				g.drawLine(x, y, x + random.nextInt(80) - 40,
+					y + random.nextInt(80) - 40);
+			}
+			g.setColor(Color.BLACK);
+			g.setFont(new Font("Arial", Font.PLAIN, 30));
+			for (int y = 60; y < height; y += 120) {
+				g.drawString("The quick brown fox", 20, y);
+			}
+			break;
+		case "scribbles":
+			for (int i = 0; i < strokes; i++) {
+				g.setColor(new Color(random.nextInt(0xFFFFFF)));
+				g.setStroke(new BasicStroke(1 + random.nextInt(10)));
+				int x = random.nextInt(width);
+				int y = random.nextInt(height);
+				g.drawLine(x, y, x + random.nextInt(80) - 40,
+					y + random.nextInt(80) - 40);
+			}
+			break;
+		case "noise":
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					image.setRGB(x, y, 0xFF000000 | random.nextInt());
+				}
+			}
+			break;
+		default:
+			break;
+		}
+		g.dispose();
+
+		return image;
+	}
+}
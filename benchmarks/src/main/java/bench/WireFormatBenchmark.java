@@ -0,0 +1,103 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+import org.json.JSONObject;
+
+import common.BinaryCodec;
+import common.DrawOp;
+import common.Fields;
+import gui.ClientGUI.Tool;
+
+/**
+ * Compares the size, and the encode and decode time, of a freehand segment in
+ * each WireFormat
+ *
+ * usage: [iterations]
+ */
+public class WireFormatBenchmark {
+	private static final int DEFAULT_ITERATIONS = 2_000_000;
+
+	private static volatile Object sink;
+
+	public static void main(String args[]) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0])
+			: DEFAULT_ITERATIONS;
+
+		DrawOp segment = new DrawOp(Tool.FREEHAND).setPosition(412, 318)
+			.setEnd(415, 316).setSize(10).setColor(0xFF1E90FF);
+
+		byte[] json = encodeJSON(segment);
+		byte[] binary = BinaryCodec.encode(segment);
+
+		// warm up, then measure
+		for (int i = 0; i < 2; i++) {
+			long jsonEncode = time(iterations, () -> sink = encodeJSON(segment));
+			long jsonDecode = time(iterations, () -> sink = decodeJSON(json));
+			long binaryEncode = time(
+				iterations,
+				() -> sink = BinaryCodec.encode(segment));
+			long binaryDecode = time(
+				iterations,
+				() -> sink = BinaryCodec.decode(ByteBuffer.wrap(binary)));
+
+			if (i == 0) {
+				continue;
+			}
+
+			System.out.format(
+				"%-8s %14s %16s %16s\n",
+				"format",
+				"bytes/segment",
+				"encode (ns/op)",
+				"decode (ns/op)");
+			System.out.format(
+				"%-8s %14d %16.1f %16.1f\n",
+				"json",
+				json.length,
+				(double) jsonEncode / iterations,
+				(double) jsonDecode / iterations);
+			System.out.format(
+				"%-8s %14d %16.1f %16.1f\n",
+				"binary",
+				binary.length,
+				(double) binaryEncode / iterations,
+				(double) binaryDecode / iterations);
+		}
+	}
+
+	/**
+	 * Encodes a drawing as a writeUTF frame, as sent to JSON clients
+	 */
+	private static byte[] encodeJSON(DrawOp op) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new DataOutputStream(baos).writeUTF(op.toString());
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Decodes a writeUTF frame the same way the server and clients do
+	 */
+	private static DrawOp decodeJSON(byte[] frame) throws Exception {
+		String message = new DataInputStream(new ByteArrayInputStream(frame))
+			.readUTF();
+		return DrawOp.fromJSON(
+			new JSONObject(message).optJSONObject(Fields.DRAWING));
+	}
+
+	private interface Task {
+		void run() throws Exception;
+	}
+
+	private static long time(int iterations, Task task) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			task.run();
+		}
+		return System.nanoTime() - start;
+	}
+}
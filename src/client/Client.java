@@ -10,10 +10,16 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import javax.swing.JOptionPane;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import common.BinaryCodec;
+import common.DrawOp;
 import common.Fields;
+import common.SnapshotCodec;
+import common.WireFormat;
 import gui.ClientGUI;
+import gui.ClientGUI.BackingStore;
 import gui.GUIController;
 
 public class Client extends GUIController {
@@ -21,11 +27,13 @@ public class Client extends GUIController {
 	private String ip;
 	private int port;
 	private String username;
+	private BackingStore backingStore;
 	private ClientGUI gui;
 	private DataOutputStream dos;
 	private DataInputStream dis;
 	private Socket socket;
 	private Thread input;
+	private volatile WireFormat format = WireFormat.JSON;
 
 	private Boolean active = true;
 
@@ -34,19 +42,22 @@ public class Client extends GUIController {
 	/**
 	 * Creates a Client with the associated attributes
 	 * 
-	 * @param ip       String
-	 * @param port     int
-	 * @param username String
+	 * @param ip           String
+	 * @param port         int
+	 * @param username     String
+	 * @param backingStore BackingStore, how the board is kept and painted
 	 */
-	public Client(String ip, int port, String username) {
+	public Client(String ip, int port, String username,
+		BackingStore backingStore) {
 		this.ip = ip;
 		this.port = port;
 		this.username = username;
+		this.backingStore = backingStore;
 	}
 
 	public static void main(String args[]) {
-		if (args.length != 3) {
-			System.err.println("usage: <ip> <port> <username>");
+		if (args.length < 3 || args.length > 4) {
+			System.err.println("usage: <ip> <port> <username> [accelerated|image]");
 			System.exit(1);
 		}
 
@@ -64,7 +75,17 @@ public class Client extends GUIController {
 			System.exit(1);
 		}
 
-		Client client = new Client(ip, port, username);
+		BackingStore backingStore = BackingStore.ACCELERATED;
+		if (args.length == 4) {
+			try {
+				backingStore = BackingStore.valueOf(args[3].toUpperCase());
+			} catch (IllegalArgumentException iae) {
+				System.err.format("Unknown backing store: %s\n", args[3]);
+				System.exit(1);
+			}
+		}
+
+		Client client = new Client(ip, port, username, backingStore);
 		client.start();
 	}
 
@@ -77,19 +98,37 @@ public class Client extends GUIController {
 			this.dos = new DataOutputStream(socket.getOutputStream());
 			this.dis = new DataInputStream(socket.getInputStream());
 
+			// ask for binary frames and RLE snapshots, servers that don't
+			// support them will ignore this and keep using JSON and PNG
 			sendToServer(
 				new JSONObject().put(Fields.COMMAND, Fields.USERNAME)
-					.put(Fields.USERNAME, username));
+					.put(Fields.USERNAME, username)
+					.put(Fields.PROTOCOL, WireFormat.BINARY.toString()
+						.toLowerCase())
+					.put(Fields.CODEC, SnapshotCodec.Format.RLE.toString()
+						.toLowerCase()));
 
-			this.gui = new ClientGUI(this, ip, port);
+			this.gui = new ClientGUI(this, ip, port, backingStore);
 
 			setActive(false);
 
 			// accept input in separate thread
 			this.input = new Thread(() -> {
+				boolean first = true;
 				while (true) {
 					try {
-						String in = dis.readUTF();
+						Object in = format == WireFormat.BINARY
+							? BinaryCodec.read(dis)
+							: dis.readUTF();
+
+						// the first message may confirm a different format
+						if (first) {
+							first = false;
+							if (acceptProtocol(in.toString())) {
+								continue;
+							}
+						}
+
 						setActive(true);
 						receive(in);
 					} catch (IOException ioe) {
@@ -117,6 +156,25 @@ public class Client extends GUIController {
 		}
 	}
 
+	/**
+	 * Switches to the format confirmed by a "protocol" message
+	 * 
+	 * @param message String
+	 * @return boolean, {@code true} if the message was a "protocol" message
+	 */
+	private boolean acceptProtocol(String message) {
+		try {
+			JSONObject json = new JSONObject(message);
+			if (Fields.PROTOCOL.equals(json.optString(Fields.COMMAND))) {
+				format = WireFormat.of(json.optString(Fields.PROTOCOL));
+				return true;
+			}
+		} catch (JSONException ignored) {
+		}
+
+		return false;
+	}
+
 	/**
 	 * Checks if the active flag is set
 	 * 
@@ -173,7 +231,14 @@ public class Client extends GUIController {
 		sendLock.lock();
 		try {
 			try {
-				dos.writeUTF(message.toString());
+				if (format == WireFormat.BINARY) {
+					dos.write(
+						message instanceof DrawOp
+							? BinaryCodec.encode((DrawOp) message)
+							: BinaryCodec.encode(message.toString()));
+				} else {
+					dos.writeUTF(message.toString());
+				}
 			} catch (IOException ioe) {
 				showErrorDialog(ioe);
 				try {
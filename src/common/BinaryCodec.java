@@ -0,0 +1,506 @@
+package common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import gui.ClientGUI.Tool;
+
+/**
+ * Encodes and decodes frames of the binary wire format.
+ *
+ * Every frame is a varint length, followed by that many bytes: a one byte
+ * opcode and its payload. Opcode 0 carries a UTF-8 JSON message, and each Tool
+ * has its own opcode carrying a drawing. A drawing starts with its sequence
+ * number as a varint (0 if it has none). Coordinates are zig-zag varints (the
+ * end of a line is relative to its start), sizes are varints and colors are
+ * packed ARGB ints.
+ *
+ * Polylines have opcodes of their own, from OP_POLYLINE. After the first point
+ * and size come the number of further points, then each point relative to the
+ * one before it.
+ *
+ * A chunk of a snapshot transfer has opcode OP_TILES, carrying the transfer id
+ * and number of tiles, then the column, row and image of each tile. Images are
+ * raw bytes (see SnapshotCodec) prefixed by their length, 0 for a blank tile.
+ * It is decoded to the same JSONObject as the "chunk" message it replaces,
+ * with each image as a byte[]
+ */
+public class BinaryCodec {
+	public static final int OP_JSON = 0;
+	public static final int OP_DRAWING = 1;
+	public static final int OP_TILES = 32;
+	public static final int OP_POLYLINE = 64;
+
+	/** Frames larger than this are treated as corrupt */
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+	/**
+	 * Frames sent by clients, drawings and small JSON messages, are never
+	 * larger than this, so a server need not buffer more for one
+	 */
+	public static final int MAX_CLIENT_FRAME_LENGTH = 64 * 1024;
+
+	private BinaryCodec() {
+	}
+
+	/**
+	 * Encodes a JSON message as a frame
+	 *
+	 * @param json String
+	 * @return byte[]
+	 */
+	public static byte[] encode(String json) {
+		byte[] utf8 = json.getBytes(StandardCharsets.UTF_8);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(
+			utf8.length + 6);
+		writeVarint(baos, utf8.length + 1);
+		baos.write(OP_JSON);
+		baos.write(utf8, 0, utf8.length);
+
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Encodes a drawing as a frame
+	 *
+	 * @param op DrawOp
+	 * @return byte[]
+	 */
+	public static byte[] encode(DrawOp op) {
+		int[] points = op.getPoints();
+		ByteArrayOutputStream body = new ByteArrayOutputStream(
+			points == null ? 24 : 24 + points.length);
+		body.write((points == null ? OP_DRAWING : OP_POLYLINE)
+			+ op.getTool().ordinal());
+		writeVarLong(body, op.getSeq());
+		writeSignedVarint(body, op.getX());
+		writeSignedVarint(body, op.getY());
+
+		switch (op.getTool()) {
+		case RECTANGLE:
+		case OVAL:
+			writeVarint(body, op.getWidth());
+			writeVarint(body, op.getHeight());
+			break;
+		case CIRCLE:
+			writeVarint(body, op.getSize());
+			break;
+		case FREEHAND:
+		case ERASER:
+			if (points != null) {
+				writeVarint(body, op.getSize());
+				writeVarint(body, points.length / 2 - 1);
+				for (int i = 2; i < points.length; i++) {
+					writeSignedVarint(body, points[i] - points[i - 2]);
+				}
+				break;
+			}
+		case LINE:
+			writeSignedVarint(body, op.getX2() - op.getX());
+			writeSignedVarint(body, op.getY2() - op.getY());
+			writeVarint(body, op.getSize());
+			break;
+		case TEXT:
+			writeVarint(body, op.getSize());
+			byte[] text = op.getText() == null ? new byte[0]
+				: op.getText().getBytes(StandardCharsets.UTF_8);
+			writeVarint(body, text.length);
+			body.write(text, 0, text.length);
+			break;
+		default:
+			break;
+		}
+
+		if (op.getTool() != Tool.ERASER) {
+			writeInt(body, op.getColor());
+		}
+
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(
+			body.size() + 1);
+		writeVarint(frame, body.size());
+		frame.write(body.toByteArray(), 0, body.size());
+
+		return frame.toByteArray();
+	}
+
+	/**
+	 * Encodes a chunk of a snapshot transfer as a frame
+	 *
+	 * @param id      int, of the transfer
+	 * @param columns int[], the column of each tile
+	 * @param rows    int[], the row of each tile
+	 * @param images  byte[][], the image of each tile, {@code null} if it is
+	 *                blank
+	 * @return byte[]
+	 */
+	public static byte[] encodeTiles(int id, int[] columns, int[] rows,
+		byte[][] images) {
+		int length = 16;
+		for (byte[] image : images) {
+			length += image == null ? 8 : image.length + 8;
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream(length);
+		body.write(OP_TILES);
+		writeVarint(body, id);
+		writeVarint(body, images.length);
+		for (int i = 0; i < images.length; i++) {
+			writeVarint(body, columns[i]);
+			writeVarint(body, rows[i]);
+			if (images[i] == null) {
+				writeVarint(body, 0);
+			} else {
+				writeVarint(body, images[i].length);
+				body.write(images[i], 0, images[i].length);
+			}
+		}
+
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(
+			body.size() + 4);
+		writeVarint(frame, body.size());
+		frame.write(body.toByteArray(), 0, body.size());
+
+		return frame.toByteArray();
+	}
+
+	/**
+	 * Reads a single frame from a stream, blocking until it is complete
+	 *
+	 * @param dis DataInputStream
+	 * @return Object, a String for JSON messages, a DrawOp for drawings or a
+	 *         JSONObject for snapshot chunks
+	 *
+	 * @throws IOException
+	 */
+	public static Object read(DataInputStream dis) throws IOException {
+		return read(dis, MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 * Reads a single frame from a stream, blocking until it is complete
+	 *
+	 * @param dis       DataInputStream
+	 * @param maxLength int, frames longer than this are treated as corrupt
+	 * @return Object, a String for JSON messages, a DrawOp for drawings or a
+	 *         JSONObject for snapshot chunks
+	 *
+	 * @throws IOException
+	 */
+	public static Object read(DataInputStream dis, int maxLength)
+		throws IOException {
+		int length = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = dis.readUnsignedByte();
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			if (shift > 21) {
+				throw new IOException("Malformed frame length");
+			}
+		}
+
+		if (length <= 0 || length > maxLength) {
+			throw new IOException("Bad frame length: " + length);
+		}
+
+		byte[] body = new byte[length];
+		dis.readFully(body);
+
+		return decodeBody(ByteBuffer.wrap(body));
+	}
+
+	/**
+	 * Gets the total length (including the length prefix) of the frame at the
+	 * start of {@code buffer}, without consuming anything
+	 *
+	 * @param buffer ByteBuffer
+	 * @return int, -1 if the length prefix is incomplete
+	 *
+	 * @throws IOException if the length is invalid
+	 */
+	public static int frameLength(ByteBuffer buffer) throws IOException {
+		return frameLength(buffer, MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 * Gets the total length (including the length prefix) of the frame at the
+	 * start of {@code buffer}, without consuming anything
+	 *
+	 * @param buffer    ByteBuffer
+	 * @param maxLength int, frames longer than this are treated as corrupt
+	 * @return int, -1 if the length prefix is incomplete
+	 *
+	 * @throws IOException if the length is invalid
+	 */
+	public static int frameLength(ByteBuffer buffer, int maxLength)
+		throws IOException {
+		int length = 0;
+		int position = buffer.position();
+		for (int shift = 0;; shift += 7) {
+			if (position >= buffer.limit()) {
+				return -1;
+			}
+
+			int b = buffer.get(position++) & 0xFF;
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			if (shift > 21) {
+				throw new IOException("Malformed frame length");
+			}
+		}
+
+		if (length <= 0 || length > maxLength) {
+			throw new IOException("Bad frame length: " + length);
+		}
+
+		return position - buffer.position() + length;
+	}
+
+	/**
+	 * Decodes and consumes the complete frame at the start of {@code buffer}
+	 *
+	 * @param buffer ByteBuffer, containing at least {@link #frameLength}
+	 *               bytes
+	 * @return Object, a String for JSON messages, a DrawOp for drawings or a
+	 *         JSONObject for snapshot chunks
+	 *
+	 * @throws IOException
+	 */
+	public static Object decode(ByteBuffer buffer) throws IOException {
+		int end = buffer.position() + frameLength(buffer);
+		readVarint(buffer);
+
+		ByteBuffer body = buffer.slice();
+		body.limit(end - buffer.position());
+		buffer.position(end);
+
+		return decodeBody(body);
+	}
+
+	/**
+	 * Decodes the body (opcode and payload) of a frame
+	 */
+	private static Object decodeBody(ByteBuffer body) throws IOException {
+		try {
+			int opcode = body.get() & 0xFF;
+
+			if (opcode == OP_JSON) {
+				return StandardCharsets.UTF_8.decode(body).toString();
+			}
+			if (opcode == OP_TILES) {
+				return readTiles(body);
+			}
+
+			boolean polyline = opcode >= OP_POLYLINE;
+			Tool tool = DrawOp.toolOf(
+				opcode - (polyline ? OP_POLYLINE : OP_DRAWING));
+			if (tool == null || (polyline && !tool.isDragOnly())) {
+				throw new IOException("Unknown opcode: " + opcode);
+			}
+
+			DrawOp op = new DrawOp(tool).setSeq(readVarLong(body));
+			int x = readSignedVarint(body);
+			int y = readSignedVarint(body);
+			op.setPosition(x, y);
+
+			switch (tool) {
+			case RECTANGLE:
+			case OVAL:
+				op.setDimensions(readVarint(body), readVarint(body));
+				break;
+			case CIRCLE:
+				op.setSize(readVarint(body));
+				break;
+			case FREEHAND:
+			case ERASER:
+				if (polyline) {
+					op.setSize(readVarint(body));
+					op.setPoints(readPoints(body, x, y));
+					break;
+				}
+			case LINE:
+				op.setEnd(x + readSignedVarint(body),
+					y + readSignedVarint(body));
+				op.setSize(readVarint(body));
+				break;
+			case TEXT:
+				op.setSize(readVarint(body));
+				int length = readVarint(body);
+				if (length < 0 || length > body.remaining()) {
+					throw new IOException("Bad text length: " + length);
+				}
+
+				byte[] text = new byte[length];
+				body.get(text);
+				op.setText(new String(text, StandardCharsets.UTF_8));
+				break;
+			default:
+				break;
+			}
+
+			if (tool != Tool.ERASER) {
+				op.setColor(body.getInt());
+			}
+
+			return op;
+		} catch (BufferUnderflowException bue) {
+			throw new IOException("Truncated frame");
+		}
+	}
+
+	/**
+	 * Reads a chunk of a snapshot transfer, as its "chunk" message
+	 *
+	 * @param body ByteBuffer
+	 * @return JSONObject
+	 *
+	 * @throws IOException if a tile is larger than the frame
+	 */
+	private static JSONObject readTiles(ByteBuffer body) throws IOException {
+		int id = readVarint(body);
+		int count = readVarint(body);
+		// each tile takes at least 3 bytes
+		if (count < 0 || count > body.remaining() / 3) {
+			throw new IOException("Bad tile count: " + count);
+		}
+
+		JSONArray tiles = new JSONArray();
+		for (int i = 0; i < count; i++) {
+			JSONObject tile = new JSONObject().put(Fields.X, readVarint(body))
+				.put(Fields.Y, readVarint(body));
+
+			int length = readVarint(body);
+			if (length < 0 || length > body.remaining()) {
+				throw new IOException("Bad image length: " + length);
+			}
+			if (length > 0) {
+				byte[] image = new byte[length];
+				body.get(image);
+				tile.put(Fields.IMAGE, image);
+			}
+			tiles.put(tile);
+		}
+
+		return new JSONObject().put(Fields.COMMAND, Fields.SNAPSHOT)
+			.put(Fields.ID, id).put(Fields.STATE, Fields.CHUNK)
+			.put(Fields.TILES, tiles);
+	}
+
+	/**
+	 * Reads the points of a polyline after its first
+	 *
+	 * @param body ByteBuffer
+	 * @param x    int, the first point
+	 * @param y    int
+	 * @return int[], x, y pairs of every point
+	 *
+	 * @throws IOException if there are more points than the frame could hold
+	 */
+	private static int[] readPoints(ByteBuffer body, int x, int y)
+		throws IOException {
+		// each point takes at least 2 bytes
+		int count = readVarint(body);
+		if (count < 0 || count > body.remaining() / 2) {
+			throw new IOException("Bad point count: " + count);
+		}
+
+		int[] points = new int[2 * (count + 1)];
+		points[0] = x;
+		points[1] = y;
+		for (int i = 2; i < points.length; i++) {
+			points[i] = points[i - 2] + readSignedVarint(body);
+		}
+
+		return points;
+	}
+
+	/**
+	 * Writes an unsigned LEB128 varint
+	 */
+	public static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Writes an unsigned LEB128 varint of a long
+	 */
+	public static void writeVarLong(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Writes a zig-zag encoded varint, so small negative values stay small
+	 */
+	public static void writeSignedVarint(ByteArrayOutputStream out,
+		int value) {
+		writeVarint(out, (value << 1) ^ (value >> 31));
+	}
+
+	/**
+	 * Reads an unsigned LEB128 varint
+	 */
+	public static int readVarint(ByteBuffer in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.get() & 0xFF;
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Reads an unsigned LEB128 varint of a long
+	 */
+	public static long readVarLong(ByteBuffer in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			int b = in.get() & 0xFF;
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Reads a zig-zag encoded varint
+	 */
+	public static int readSignedVarint(ByteBuffer in) throws IOException {
+		int value = readVarint(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Writes a big-endian int
+	 */
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+}
@@ -0,0 +1,374 @@
+package common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import gui.ClientGUI.Tool;
+
+/**
+ * A single drawing operation, as carried by the "drawing" command. Only the
+ * attributes used by the operation's tool are meaningful, the rest are 0.
+ * 
+ * Drawings broadcast by the server are stamped with their sequence number,
+ * drawings that have not been stamped have a sequence number of 0.
+ * 
+ * A freehand or eraser drawing may be a polyline: a list of points joined by
+ * one stroke, so a whole drag can be sent as a single drawing. Its position
+ * and end are its first and last points
+ */
+public class DrawOp {
+	private static final Tool[] TOOLS = Tool.values();
+	/** the name of each tool as sent, by ordinal */
+	private static final String[] TOOL_NAMES = new String[TOOLS.length];
+	/** each tool by the name it is sent as */
+	private static final Map<String, Tool> TOOLS_BY_NAME = new HashMap<>();
+
+	static {
+		for (Tool tool : TOOLS) {
+			TOOL_NAMES[tool.ordinal()] = tool.toString().toLowerCase();
+			TOOLS_BY_NAME.put(TOOL_NAMES[tool.ordinal()], tool);
+		}
+	}
+
+	private final Tool tool;
+	private int x;
+	private int y;
+	private int x2;
+	private int y2;
+	private int width;
+	private int height;
+	private int size;
+	private int color;
+	private String text;
+	/** the x, y pairs of a polyline, {@code null} if this is not one */
+	private int[] points;
+	private long seq;
+
+	/**
+	 * Creates a DrawOp for the specified tool
+	 *
+	 * @param tool Tool
+	 */
+	public DrawOp(Tool tool) {
+		this.tool = tool;
+	}
+
+	/**
+	 * Creates a DrawOp from the JSON representation of a drawing (the value of
+	 * the "drawing" field)
+	 *
+	 * @param drawing JSONObject
+	 * @return DrawOp
+	 *
+	 * @throws JSONException if the tool is missing or unknown
+	 */
+	public static DrawOp fromJSON(JSONObject drawing) {
+		if (drawing == null) {
+			throw new JSONException("Missing drawing");
+		}
+
+		Tool tool = toolOf(drawing.optString(Fields.TOOL));
+		if (tool == null) {
+			throw new JSONException(
+				"Unknown tool: " + drawing.optString(Fields.TOOL));
+		}
+
+		// assume that most of the fields are there if we need them this greatly
+		// simplifies this process
+		DrawOp op = new DrawOp(tool);
+		op.x = drawing.optInt(Fields.X);
+		op.y = drawing.optInt(Fields.Y);
+		op.x2 = drawing.optInt(Fields.X2);
+		op.y2 = drawing.optInt(Fields.Y2);
+		op.width = drawing.optInt(Fields.WIDTH);
+		op.height = drawing.optInt(Fields.HEIGHT);
+		op.size = drawing.optInt(Fields.SIZE);
+		op.color = drawing.optInt(Fields.COLOR);
+		op.text = drawing.optString(Fields.TEXT, null);
+
+		JSONArray points = drawing.optJSONArray(Fields.POINTS);
+		if (points != null && points.length() >= 2 && tool.isDragOnly()) {
+			int[] xy = new int[points.length() & ~1];
+			for (int i = 0; i < xy.length; i++) {
+				xy[i] = points.optInt(i);
+			}
+			op.setPoints(xy);
+		}
+
+		return op;
+	}
+
+	/**
+	 * Gets the tool with the specified ordinal
+	 *
+	 * @param ordinal int
+	 * @return Tool, {@code null} if there is no such tool
+	 */
+	public static Tool toolOf(int ordinal) {
+		return ordinal >= 0 && ordinal < TOOLS.length ? TOOLS[ordinal] : null;
+	}
+
+	/**
+	 * Gets the tool with the specified name, in any case. The lower case
+	 * names that are sent are looked up without allocating
+	 *
+	 * @param name String
+	 * @return Tool, {@code null} if there is no such tool
+	 */
+	public static Tool toolOf(String name) {
+		Tool tool = TOOLS_BY_NAME.get(name);
+		if (tool == null) {
+			tool = TOOLS_BY_NAME.get(name.toLowerCase());
+		}
+
+		return tool;
+	}
+
+	/**
+	 * Creates the JSON representation of this drawing, containing only the
+	 * fields used by its tool
+	 *
+	 * @return JSONObject
+	 */
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject()
+			.put(Fields.TOOL, TOOL_NAMES[tool.ordinal()])
+			.put(Fields.X, x).put(Fields.Y, y);
+
+		switch (tool) {
+		case RECTANGLE:
+		case OVAL:
+			json.put(Fields.WIDTH, width).put(Fields.HEIGHT, height);
+			break;
+		case CIRCLE:
+			json.put(Fields.SIZE, size);
+			break;
+		case FREEHAND:
+		case ERASER:
+			if (points != null) {
+				// the end is the last point, so clients that do not know
+				// polylines draw a line along it rather than to the origin
+				json.put(Fields.POINTS, new JSONArray(points))
+					.put(Fields.X2, x2).put(Fields.Y2, y2)
+					.put(Fields.SIZE, size);
+				break;
+			}
+		case LINE:
+			json.put(Fields.X2, x2).put(Fields.Y2, y2).put(Fields.SIZE, size);
+			break;
+		case TEXT:
+			json.put(Fields.SIZE, size).put(Fields.TEXT, text);
+			break;
+		default:
+			break;
+		}
+
+		if (tool != Tool.ERASER) {
+			json.put(Fields.COLOR, color);
+		}
+
+		return json;
+	}
+
+	/**
+	 * Creates the "drawing" message for this drawing, including its sequence
+	 * number if it has one
+	 *
+	 * @return JSONObject
+	 */
+	public JSONObject toMessage() {
+		JSONObject message = new JSONObject()
+			.put(Fields.COMMAND, Fields.DRAWING).put(Fields.DRAWING, toJSON());
+		if (seq > 0) {
+			message.put(Fields.SEQ, seq);
+		}
+
+		return message;
+	}
+
+	/**
+	 * Gets the "drawing" message for this drawing as a String
+	 */
+	@Override
+	public String toString() {
+		return toMessage().toString();
+	}
+
+	/**
+	 * Sets the start (or only) position of this drawing
+	 *
+	 * @param x int
+	 * @param y int
+	 * @return DrawOp, this
+	 */
+	public DrawOp setPosition(int x, int y) {
+		this.x = x;
+		this.y = y;
+		return this;
+	}
+
+	/**
+	 * Sets the end position of this drawing
+	 *
+	 * @param x2 int
+	 * @param y2 int
+	 * @return DrawOp, this
+	 */
+	public DrawOp setEnd(int x2, int y2) {
+		this.x2 = x2;
+		this.y2 = y2;
+		return this;
+	}
+
+	/**
+	 * Sets the dimensions of this drawing
+	 *
+	 * @param width  int
+	 * @param height int
+	 * @return DrawOp, this
+	 */
+	public DrawOp setDimensions(int width, int height) {
+		this.width = width;
+		this.height = height;
+		return this;
+	}
+
+	/**
+	 * @param size the size to set
+	 * @return DrawOp, this
+	 */
+	public DrawOp setSize(int size) {
+		this.size = size;
+		return this;
+	}
+
+	/**
+	 * @param color the ARGB color to set
+	 * @return DrawOp, this
+	 */
+	public DrawOp setColor(int color) {
+		this.color = color;
+		return this;
+	}
+
+	/**
+	 * @param text the text to set
+	 * @return DrawOp, this
+	 */
+	public DrawOp setText(String text) {
+		this.text = text;
+		return this;
+	}
+
+	/**
+	 * Makes this drawing a polyline through {@code points}, which also sets
+	 * its position and end
+	 *
+	 * @param points int[], x, y pairs of at least one point. Not copied
+	 * @return DrawOp, this
+	 */
+	public DrawOp setPoints(int[] points) {
+		this.points = points;
+		setPosition(points[0], points[1]);
+		setEnd(points[points.length - 2], points[points.length - 1]);
+		return this;
+	}
+
+	/**
+	 * @param seq the sequence number to set
+	 * @return DrawOp, this
+	 */
+	public DrawOp setSeq(long seq) {
+		this.seq = seq;
+		return this;
+	}
+
+	/**
+	 * @return the tool
+	 */
+	public Tool getTool() {
+		return tool;
+	}
+
+	/**
+	 * @return the x
+	 */
+	public int getX() {
+		return x;
+	}
+
+	/**
+	 * @return the y
+	 */
+	public int getY() {
+		return y;
+	}
+
+	/**
+	 * @return the x2
+	 */
+	public int getX2() {
+		return x2;
+	}
+
+	/**
+	 * @return the y2
+	 */
+	public int getY2() {
+		return y2;
+	}
+
+	/**
+	 * @return the width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return the height
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the size
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the ARGB color
+	 */
+	public int getColor() {
+		return color;
+	}
+
+	/**
+	 * @return the text
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * @return the x, y pairs of this polyline, {@code null} if this is not a
+	 *         polyline. Must not be modified
+	 */
+	public int[] getPoints() {
+		return points;
+	}
+
+	/**
+	 * @return the sequence number, 0 if this drawing has not been stamped
+	 */
+	public long getSeq() {
+		return seq;
+	}
+}
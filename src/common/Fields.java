@@ -3,12 +3,32 @@ package common;
 public class Fields {
 	public static final String COMMAND = "command";
 
+	/** Constants related to the "protocol" command and handshake */
+	public static final String PROTOCOL = "protocol";
+	/** the format of snapshot images asked for in the handshake */
+	public static final String CODEC = "codec";
+
 	/** Constants related to the "resync" command */
 	public static final String RESYNC = "resync";
 
+	/** The sequence number of a change to the board */
+	public static final String SEQ = "seq";
+
 	/** Constants related to the "board" command */
 	public static final String BOARD = "board";
 
+	/** Constants related to the "snapshot" and "tiles" commands */
+	public static final String SNAPSHOT = "snapshot";
+	public static final String TILES = "tiles";
+	public static final String ID = "id";
+	public static final String STATE = "state";
+	public static final String BEGIN = "begin";
+	public static final String CHUNK = "chunk";
+	public static final String END = "end";
+	public static final String TILE_SIZE = "tileSize";
+	public static final String FULL = "full";
+	public static final String IMAGE = "image";
+
 	/** Constants related to the "users" and "username" commands */
 	public static final String USERS = "users";
 	public static final String USERNAME = "username";
@@ -32,4 +52,5 @@ public class Fields {
 	public static final String HEIGHT = "h";
 	public static final String SIZE = "size";
 	public static final String COLOR = "color";
+	public static final String POINTS = "points";
 }
@@ -0,0 +1,302 @@
+package common;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Encodes and decodes board snapshots, as carried by the "board" command and
+ * snapshot tiles. A snapshot is an image in one of the Formats, base 64
+ * encoded when it is sent as JSON. Decoding recognises either format, so a
+ * snapshot can be read without knowing how it was encoded
+ */
+public class SnapshotCodec {
+	private static final String IMAGE_FORMAT = "png";
+
+	/** the first bytes of an RLE image */
+	private static final byte[] RLE_MAGIC = { 'W', 'B', 'R', '1' };
+	/** images with more colors than this are encoded as PNG instead of RLE */
+	public static final int MAX_PALETTE = 4096;
+	/**
+	 * images whose runs are shorter than this on average, such as photos, are
+	 * encoded as PNG instead of RLE
+	 */
+	private static final int MIN_AVERAGE_RUN = 4;
+	/** images larger than this many pixels are treated as corrupt */
+	private static final int MAX_PIXELS = 64 * 1024 * 1024;
+
+	/**
+	 * Enumeration of the formats images can be encoded in
+	 */
+	public enum Format {
+		/** PNG, small but slow to encode and decode */
+		PNG,
+		/**
+		 * a palette followed by runs of palette entries, over the rows in
+		 * order. Whiteboards are mostly long runs of a few colors, so this is
+		 * many times faster than PNG at a similar size. Images with too many
+		 * colors or too short runs are encoded as PNG instead
+		 */
+		RLE;
+
+		/**
+		 * Gets the Format with the specified name, ignoring case
+		 * 
+		 * @param name String
+		 * @return Format, PNG if the name is unknown
+		 */
+		public static Format of(String name) {
+			try {
+				return valueOf(name.toUpperCase());
+			} catch (IllegalArgumentException | NullPointerException e) {
+				return PNG;
+			}
+		}
+	}
+
+	private SnapshotCodec() {
+	}
+
+	/**
+	 * Gets the base 64 representation of the supplied image, as a PNG
+	 * 
+	 * @param image BufferedImage
+	 * @return String {@code null} if an error occurred
+	 */
+	public static String encode(BufferedImage image) {
+		return encode(image, Format.PNG);
+	}
+
+	/**
+	 * Gets the base 64 representation of the supplied image
+	 * 
+	 * @param image  BufferedImage
+	 * @param format Format
+	 * @return String {@code null} if an error occurred
+	 */
+	public static String encode(BufferedImage image, Format format) {
+		try {
+			return Base64.getEncoder().encodeToString(toBytes(image, format));
+		} catch (IOException ioe) {
+			return null;
+		}
+	}
+
+	/**
+	 * Encodes the supplied image
+	 * 
+	 * @param image  BufferedImage
+	 * @param format Format
+	 * @return byte[]
+	 *
+	 * @throws IOException if the image could not be encoded
+	 */
+	public static byte[] toBytes(BufferedImage image, Format format)
+		throws IOException {
+		if (format == Format.RLE) {
+			byte[] rle = toRLE(image);
+			if (rle != null) {
+				return rle;
+			}
+		}
+
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ImageIO.write(image, IMAGE_FORMAT, baos);
+			return baos.toByteArray();
+		} catch (IllegalArgumentException iae) {
+			throw new IOException(iae.getMessage(), iae);
+		}
+	}
+
+	/**
+	 * Decodes the image represented by the base 64 encoded imageStr
+	 * 
+	 * @param imageStr String
+	 * @return BufferedImage, {@code null} if imageStr is empty or invalid
+	 */
+	public static BufferedImage decode(String imageStr) {
+		if (imageStr == null || imageStr.isEmpty()) {
+			return null;
+		}
+
+		try {
+			return fromBytes(Base64.getDecoder().decode(imageStr));
+		} catch (IllegalArgumentException iae) {
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes an image in any of the Formats
+	 * 
+	 * @param bytes byte[]
+	 * @return BufferedImage, {@code null} if bytes is empty or invalid
+	 */
+	public static BufferedImage fromBytes(byte[] bytes) {
+		if (bytes == null || bytes.length == 0) {
+			return null;
+		}
+
+		try {
+			if (isRLE(bytes)) {
+				return fromRLE(ByteBuffer.wrap(bytes, RLE_MAGIC.length,
+					bytes.length - RLE_MAGIC.length));
+			}
+
+			return ImageIO.read(new ByteArrayInputStream(bytes));
+		} catch (IOException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static boolean isRLE(byte[] bytes) {
+		return bytes.length >= RLE_MAGIC.length && Arrays.equals(
+			Arrays.copyOf(bytes, RLE_MAGIC.length), RLE_MAGIC);
+	}
+
+	/**
+	 * Encodes an image as RLE: the magic, width, height, the number of colors
+	 * and each color (ARGB), then the length and palette index of each run, as
+	 * varints
+	 * 
+	 * @param image BufferedImage
+	 * @return byte[], {@code null} if the image has too many colors or runs
+	 */
+	private static byte[] toRLE(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] pixels = pixels(image);
+
+		Map<Integer, Integer> palette = new HashMap<>();
+		ByteArrayOutputStream runs = new ByteArrayOutputStream(256);
+		// an image of a single run is always RLE, however few its pixels
+		int maxRuns = Math.max(1, pixels.length / MIN_AVERAGE_RUN);
+		int count = 0;
+		int i = 0;
+		while (i < pixels.length) {
+			int color = pixels[i];
+			int start = i++;
+			while (i < pixels.length && pixels[i] == color) {
+				i++;
+			}
+
+			Integer index = palette.get(color);
+			if (index == null) {
+				if (palette.size() == MAX_PALETTE) {
+					return null;
+				}
+				index = palette.size();
+				palette.put(color, index);
+			}
+
+			BinaryCodec.writeVarint(runs, i - start);
+			BinaryCodec.writeVarint(runs, index);
+			if (++count > maxRuns) {
+				return null;
+			}
+		}
+
+		int[] colors = new int[palette.size()];
+		palette.forEach((color, index) -> colors[index] = color);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+			runs.size() + 4 * colors.length + 16);
+		out.write(RLE_MAGIC, 0, RLE_MAGIC.length);
+		BinaryCodec.writeVarint(out, width);
+		BinaryCodec.writeVarint(out, height);
+		BinaryCodec.writeVarint(out, colors.length);
+		for (int color : colors) {
+			out.write(color >>> 24);
+			out.write(color >>> 16);
+			out.write(color >>> 8);
+			out.write(color);
+		}
+		out.write(runs.toByteArray(), 0, runs.size());
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes an RLE image, after its magic
+	 * 
+	 * @param in ByteBuffer
+	 * @return BufferedImage
+	 * 
+	 * @throws IOException if the image is invalid
+	 */
+	private static BufferedImage fromRLE(ByteBuffer in) throws IOException {
+		try {
+			int width = BinaryCodec.readVarint(in);
+			int height = BinaryCodec.readVarint(in);
+			if (width <= 0 || height <= 0
+				|| (long) width * height > MAX_PIXELS) {
+				throw new IOException("Bad image size");
+			}
+
+			int count = BinaryCodec.readVarint(in);
+			if (count < 0 || count > MAX_PALETTE) {
+				throw new IOException("Bad palette size: " + count);
+			}
+			int[] colors = new int[count];
+			for (int c = 0; c < count; c++) {
+				colors[c] = in.getInt();
+			}
+
+			BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_ARGB);
+			int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer())
+				.getData();
+			int i = 0;
+			while (i < pixels.length) {
+				int length = BinaryCodec.readVarint(in);
+				int index = BinaryCodec.readVarint(in);
+				if (length <= 0 || length > pixels.length - i || index < 0
+					|| index >= count) {
+					throw new IOException("Bad run");
+				}
+
+				Arrays.fill(pixels, i, i + length, colors[index]);
+				i += length;
+			}
+
+			return image;
+		} catch (BufferUnderflowException bue) {
+			throw new IOException("Truncated image");
+		}
+	}
+
+	/**
+	 * Gets the ARGB pixels of an image, row by row. Packed int images are
+	 * copied directly, rather than converting each pixel
+	 */
+	private static int[] pixels(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		switch (image.getType()) {
+		case BufferedImage.TYPE_INT_ARGB:
+			return (int[]) image.getRaster().getDataElements(0, 0, width,
+				height, new int[width * height]);
+		case BufferedImage.TYPE_INT_RGB:
+			int[] pixels = (int[]) image.getRaster().getDataElements(0, 0,
+				width, height, new int[width * height]);
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] |= 0xFF000000;
+			}
+			return pixels;
+		default:
+			return image.getRGB(0, 0, width, height, null, 0, width);
+		}
+	}
+}
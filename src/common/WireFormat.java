@@ -0,0 +1,26 @@
+package common;
+
+/**
+ * Enumeration of the formats messages can be sent in. Every connection starts
+ * with JSON, and the client may ask for BINARY in its handshake
+ */
+public enum WireFormat {
+	/** JSON messages, framed by writeUTF/readUTF */
+	JSON,
+	/** Binary frames, see BinaryCodec */
+	BINARY;
+
+	/**
+	 * Gets the WireFormat with the specified name, ignoring case
+	 * 
+	 * @param name String
+	 * @return WireFormat, JSON if the name is unknown
+	 */
+	public static WireFormat of(String name) {
+		try {
+			return valueOf(name.toUpperCase());
+		} catch (IllegalArgumentException | NullPointerException e) {
+			return JSON;
+		}
+	}
+}
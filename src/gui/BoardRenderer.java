@@ -0,0 +1,307 @@
+package gui;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.Rectangle2D;
+
+import common.DrawOp;
+
+/**
+ * Draws DrawOps. Used by every GUI and by the server's headless board, so they
+ * all render drawings identically.
+ * 
+ * A BoardRenderer keeps the Graphics2D of a board for as long as the board
+ * lives, and caches the strokes, fonts and colors it has used, so drawing the
+ * common ops allocates nothing. It is not thread safe
+ */
+public class BoardRenderer {
+	/** measures text as it is drawn on the board, without anti-aliasing */
+	private static final FontRenderContext FONT_CONTEXT = new FontRenderContext(
+		null, false, false);
+	/** strokes and fonts are cached for sizes below this */
+	private static final int CACHED_SIZES = 256;
+	/** the number of colors cached, a power of 2 */
+	private static final int CACHED_COLORS = 256;
+	/**
+	 * the stroke shapes are filled with. Java2D fills some shapes differently
+	 * under a wide stroke, so it is set to keep drawings from depending on
+	 * what was drawn before them
+	 */
+	private static final BasicStroke FILL_STROKE = new BasicStroke();
+
+	private final Graphics2D g;
+	private final BasicStroke[] strokes = new BasicStroke[CACHED_SIZES];
+	private final Font[] fonts = new Font[CACHED_SIZES];
+	/** recently used colors, each in the slot its ARGB value hashes to */
+	private final Color[] colors = new Color[CACHED_COLORS];
+
+	/**
+	 * Creates a BoardRenderer that draws with {@code g}
+	 *
+	 * @param g Graphics2D, of the board. Only drawn with by this renderer
+	 */
+	public BoardRenderer(Graphics2D g) {
+		this.g = g;
+	}
+
+	/**
+	 * Creates a BoardRenderer without a board, that only draws with the
+	 * Graphics2Ds it is given, such as those of a board's tiles
+	 */
+	public BoardRenderer() {
+		this(null);
+	}
+
+	/**
+	 * Draws a drawing represented by {@code draw} on the board
+	 *
+	 * @param draw DrawOp
+	 */
+	public void draw(DrawOp draw) {
+		draw(g, draw);
+	}
+
+	/**
+	 * Draws a drawing represented by {@code draw} with another Graphics2D,
+	 * such as a preview over the board, sharing this renderer's caches
+	 *
+	 * @param g    Graphics2D
+	 * @param draw DrawOp
+	 */
+	public void draw(Graphics2D g, DrawOp draw) {
+		draw(g, draw, 0, 0);
+	}
+
+	/**
+	 * Draws a drawing represented by {@code draw} with a Graphics2D whose
+	 * origin is at {@code originX, originY} on the board, such as that of a
+	 * tile of the board. The drawing is moved rather than the Graphics2D
+	 * translated, as some shapes are not rasterized the same under a
+	 * transform
+	 *
+	 * @param g       Graphics2D
+	 * @param draw    DrawOp
+	 * @param originX int
+	 * @param originY int
+	 */
+	public void draw(Graphics2D g, DrawOp draw, int originX, int originY) {
+		int x = draw.getX() - originX;
+		int y = draw.getY() - originY;
+		int w = draw.getWidth();
+		int h = draw.getHeight();
+		int size = draw.getSize();
+
+		g.setColor(color(draw.getColor()));
+
+		switch (draw.getTool()) {
+		case RECTANGLE:
+			g.setStroke(FILL_STROKE);
+			g.fillRect(x, y, w, h);
+			break;
+		case OVAL:
+			g.setStroke(FILL_STROKE);
+			g.fillOval(x, y, w, h);
+			break;
+		case CIRCLE:
+			g.setStroke(FILL_STROKE);
+			g.fillOval(x - size, y - size, 2 * size, 2 * size);
+			break;
+		case ERASER:
+			g.setColor(Color.WHITE);
+		case FREEHAND:
+		case LINE:
+			g.setStroke(stroke(size));
+			int[] points = draw.getPoints();
+			if (points == null) {
+				g.drawLine(x, y, draw.getX2() - originX,
+					draw.getY2() - originY);
+				break;
+			}
+
+			// each segment is drawn on its own, so a polyline looks the same
+			// as the drawings it replaced
+			for (int i = 2; i < points.length; i += 2) {
+				g.drawLine(points[i - 2] - originX, points[i - 1] - originY,
+					points[i] - originX, points[i + 1] - originY);
+			}
+			if (points.length == 2) {
+				g.drawLine(x, y, x, y);
+			}
+			break;
+		case TEXT:
+			String text = draw.getText();
+			if (text != null) {
+				g.setFont(font(size));
+				g.drawString(text, x, y);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Draws a drawing represented by {@code draw}, only within {@code clip}
+	 *
+	 * @param draw DrawOp
+	 * @param clip Shape, {@code null} to draw anywhere
+	 */
+	public void draw(DrawOp draw, Shape clip) {
+		if (clip == null) {
+			draw(draw);
+			return;
+		}
+
+		g.setClip(clip);
+		draw(draw);
+		g.setClip(null);
+	}
+
+	/**
+	 * Releases the Graphics2D, if it has one. The renderer can not be used
+	 * afterwards
+	 */
+	public void dispose() {
+		if (g != null) {
+			g.dispose();
+		}
+	}
+
+	private Color color(int argb) {
+		int slot = (argb * 0x9E3779B9) >>> (32 - Integer
+			.numberOfTrailingZeros(CACHED_COLORS));
+		Color color = colors[slot];
+		if (color == null || color.getRGB() != argb) {
+			color = new Color(argb, true);
+			colors[slot] = color;
+		}
+
+		return color;
+	}
+
+	private BasicStroke stroke(int size) {
+		if (size < 0 || size >= CACHED_SIZES) {
+			return createStroke(size);
+		}
+
+		BasicStroke stroke = strokes[size];
+		if (stroke == null) {
+			stroke = createStroke(size);
+			strokes[size] = stroke;
+		}
+
+		return stroke;
+	}
+
+	private Font font(int size) {
+		if (size < 0 || size >= CACHED_SIZES) {
+			return createFont(size);
+		}
+
+		Font font = fonts[size];
+		if (font == null) {
+			font = createFont(size);
+			fonts[size] = font;
+		}
+
+		return font;
+	}
+
+	private static BasicStroke createStroke(int size) {
+		return new BasicStroke(size, BasicStroke.CAP_ROUND,
+			BasicStroke.JOIN_BEVEL);
+	}
+
+	private static Font createFont(int size) {
+		return new Font("Arial", Font.PLAIN, 2 * size);
+	}
+
+	/**
+	 * Gets the union of two areas, either of which may be {@code null}
+	 *
+	 * @param a Rectangle
+	 * @param b Rectangle
+	 * @return Rectangle, {@code null} if both are
+	 */
+	public static Rectangle union(Rectangle a, Rectangle b) {
+		if (a == null) {
+			return b;
+		}
+
+		return b == null ? a : a.union(b);
+	}
+
+	/**
+	 * Gets an area that contains everything {@code draw} paints. It may be
+	 * slightly larger than what is actually painted
+	 *
+	 * @param draw DrawOp
+	 * @return Rectangle
+	 */
+	public static Rectangle bounds(DrawOp draw) {
+		return bounds(draw, new Rectangle());
+	}
+
+	/**
+	 * Sets {@code bounds} to an area that contains everything {@code draw}
+	 * paints, without allocating unless {@code draw} is text
+	 *
+	 * @param draw   DrawOp
+	 * @param bounds Rectangle, set to the area
+	 * @return Rectangle, {@code bounds}
+	 */
+	public static Rectangle bounds(DrawOp draw, Rectangle bounds) {
+		int x = draw.getX();
+		int y = draw.getY();
+		int size = Math.abs(draw.getSize());
+
+		bounds.setBounds(x, y, 0, 0);
+		switch (draw.getTool()) {
+		case RECTANGLE:
+		case OVAL:
+			bounds.add(x + draw.getWidth(), y + draw.getHeight());
+			break;
+		case CIRCLE:
+			bounds.setBounds(x - size, y - size, 2 * size, 2 * size);
+			break;
+		case ERASER:
+		case FREEHAND:
+		case LINE:
+			bounds.add(draw.getX2(), draw.getY2());
+			int[] points = draw.getPoints();
+			if (points != null) {
+				for (int i = 2; i < points.length - 2; i += 2) {
+					bounds.add(points[i], points[i + 1]);
+				}
+			}
+			bounds.grow(size / 2 + 1, size / 2 + 1);
+			break;
+		case TEXT:
+			String text = draw.getText();
+			if (text == null || text.isEmpty()) {
+				break;
+			}
+
+			// the logical bounds cover the advance and line height, the visual
+			// bounds any glyph that overhangs them
+			Font font = createFont(size);
+			Rectangle2D logical = font.getStringBounds(text, FONT_CONTEXT);
+			Rectangle2D visual = font.createGlyphVector(FONT_CONTEXT, text)
+				.getVisualBounds();
+			bounds.setBounds(logical.createUnion(visual).getBounds());
+			bounds.translate(x, y);
+			break;
+		default:
+			break;
+		}
+
+		// leave room for anti-aliasing
+		bounds.grow(2, 2);
+		return bounds;
+	}
+}
@@ -4,26 +4,30 @@ import java.awt.BasicStroke;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
-import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
+import java.awt.Image;
 import java.awt.Insets;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.Transparency;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.util.Base64;
+import java.awt.image.VolatileImage;
+import java.util.Arrays;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-import javax.imageio.ImageIO;
 import javax.swing.DefaultListModel;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
@@ -41,12 +45,16 @@ import javax.swing.JSeparator;
 import javax.swing.JSpinner;
 import javax.swing.ListSelectionModel;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.Timer;
 import javax.swing.border.TitledBorder;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import common.DrawOp;
 import common.Fields;
+import common.SnapshotCodec;
 
 public class ClientGUI extends JFrame {
 	private static final long serialVersionUID = -3761431599578875571L;
@@ -55,6 +63,11 @@ public class ClientGUI extends JFrame {
 	public static final String TITLE_FORMAT_CONNECTING = TITLE_FORMAT
 		+ " - Connecting...";
 
+	/** the longest a dragged point waits before it is sent */
+	public static final int STROKE_FLUSH_MS = 100;
+	/** the most points sent in one polyline */
+	public static final int STROKE_MAX_POINTS = 64;
+
 	/**
 	 * Enumeration of the possible tools the user can use
 	 */
@@ -70,11 +83,41 @@ public class ClientGUI extends JFrame {
 		}
 	}
 
+	/**
+	 * Enumeration of the ways the board can be kept and painted
+	 */
+	public enum BackingStore {
+		/** a translucent image, blended onto the screen when painted */
+		IMAGE,
+		/**
+		 * an opaque image in the screen's format, presented through a
+		 * VolatileImage that is only refreshed where the board has changed,
+		 * so painting can use the accelerated pipeline
+		 */
+		ACCELERATED;
+	}
+
 	private final GUIController controller;
 
 	private final Lock boardLock = new ReentrantLock();
 
+	private final BackingStore backingStore;
 	private BufferedImage board;
+	/**
+	 * the copy of the board painted to the screen, with an accelerated backing
+	 * store. {@code null} until first painted, or if it can't be created
+	 */
+	private VolatileImage volatileBoard = null;
+	/**
+	 * the area of the board changed since it was last copied to volatileBoard,
+	 * empty if it has a negative width. Only accessed on the event dispatch
+	 * thread
+	 */
+	private final Rectangle stale = new Rectangle(0, 0, -1, -1);
+	/** draws on the board, only used on the event dispatch thread */
+	private BoardRenderer renderer;
+	/** the bounds of the last drawing drawn on the board, reused */
+	private final Rectangle drawn = new Rectangle();
 	private JButton selectedToolButton;
 	private Color selectedColor = Color.BLACK;
 	private Tool selectedTool;
@@ -93,15 +136,50 @@ public class ClientGUI extends JFrame {
 	private Integer endY = null;
 	private Boolean mouseOn = false;
 
+	/**
+	 * the freehand or eraser stroke being dragged, {@code null} if there is
+	 * none. Its points are batched and sent as polylines
+	 */
+	private DrawOp stroke = null;
+	/** the x, y pairs of the stroke that have not been sent */
+	private final int[] strokePoints = new int[2 * STROKE_MAX_POINTS];
+	private int strokeLength = 0;
+	private final Timer strokeTimer;
+	/** the preview of the stroke's points that have not been sent */
+	private DrawOp strokePreview = null;
+	/**
+	 * the points of the preview, by their number, so painting the preview
+	 * does not allocate
+	 */
+	private final int[][] previewPoints = new int[STROKE_MAX_POINTS + 1][];
+	/** the area of the last preview painted, {@code null} if there was none */
+	private Rectangle previewArea = null;
+
 	private boolean activeInput;
 
 	/**
-	 * Creates the ClientGUI with the specified attributes
+	 * Creates the ClientGUI with the specified attributes, and an accelerated
+	 * backing store
 	 * 
 	 * @param controller the controller of this ClientGUI
 	 */
 	public ClientGUI(GUIController controller, String ip, int port) {
+		this(controller, ip, port, BackingStore.ACCELERATED);
+	}
+
+	/**
+	 * Creates the ClientGUI with the specified attributes
+	 * 
+	 * @param controller   the controller of this ClientGUI
+	 * @param backingStore BackingStore, how the board is kept and painted
+	 */
+	public ClientGUI(GUIController controller, String ip, int port,
+		BackingStore backingStore) {
 		this.controller = controller;
+		this.backingStore = backingStore;
+
+		strokeTimer = new Timer(STROKE_FLUSH_MS, e -> flushStroke());
+		strokeTimer.setRepeats(false);
 
 		addWindowListener(new WindowAdapter() {
 			@Override
@@ -128,8 +206,11 @@ public class ClientGUI extends JFrame {
 
 		JMenuItem mntmResync = new JMenuItem("Resync");
 		mntmResync.addActionListener(e -> {
-			controller.sendToServer(
-				new JSONObject().put(Fields.COMMAND, Fields.RESYNC));
+			JSONObject resync = new JSONObject().put(Fields.COMMAND, Fields.RESYNC);
+			if (controller.getLastSeq() > 0) {
+				resync.put(Fields.SEQ, controller.getLastSeq());
+			}
+			controller.sendToServer(resync);
 		});
 		getMnFile().add(mntmResync);
 
@@ -443,13 +524,17 @@ public class ClientGUI extends JFrame {
 				try {
 					BufferedImage board = getBoard();
 					if (board != null) {
-						g.drawImage(
-							board,
-							0,
-							0,
-							board.getWidth(this),
-							board.getHeight(this),
-							this);
+						// only copy the part of the board being repainted
+						Rectangle dirty = new Rectangle(0, 0,
+							board.getWidth(), board.getHeight());
+						Rectangle clip = g.getClipBounds();
+						if (clip != null) {
+							dirty = dirty.intersection(clip);
+						}
+
+						if (!dirty.isEmpty()) {
+							paintBoard(g, board, dirty);
+						}
 					}
 
 					drawPreview(g);
@@ -463,63 +548,59 @@ public class ClientGUI extends JFrame {
 		pnlBoard.addMouseListener(new MouseAdapter() {
 			@Override
 			public void mousePressed(MouseEvent e) {
-				repaintBoard();
-
 				// update startX, startY
 				if (getSelectedTool().isDragOnly() || startX == null
 					|| startY == null) {
 					startX = endX = e.getX();
 					startY = endY = e.getY();
 				}
+
+				repaintPreview();
 			}
 
 			@Override
 			public void mouseReleased(MouseEvent e) {
-				repaintBoard();
-
 				// update endX, endY
 				endX = e.getX();
 				endY = e.getY();
 
 				if (getSelectedTool().isSingleClickOnly()) {
 					sendOnSingleClick();
+				} else {
+					sendOnDrag();
+					endStroke();
 
-					return;
-				}
-
-				sendOnDrag();
+					// if the start and end are the same, this isn't a click
+					if (!endX.equals(startX) || !endY.equals(startY)) {
+						sendOnClick();
 
-				// if the start and end are the same, this isn't a click
-				if (endX.equals(startX) && endY.equals(startY)) {
-					return;
+						resetXY();
+					}
 				}
 
-				sendOnClick();
-
-				resetXY();
+				repaintPreview();
 			}
 
 			@Override
 			public void mouseExited(MouseEvent e) {
-				repaintBoard();
-
+				endStroke();
 				resetXY();
 				mouseOn = false;
+
+				repaintPreview();
 			}
 
 			@Override
 			public void mouseEntered(MouseEvent e) {
-				repaintBoard();
-
 				resetXY();
 				mouseOn = true;
+
+				repaintPreview();
 			}
 		});
 		pnlBoard.addMouseMotionListener(new MouseMotionAdapter() {
 			@Override
 			public void mouseDragged(MouseEvent e) {
-				repaintBoard();
-
 				if (!mouseOn) {
 					return;
 				}
@@ -527,25 +608,25 @@ public class ClientGUI extends JFrame {
 				if (startX == null || startY == null) {
 					startX = e.getX();
 					startY = e.getY();
+				} else {
+					endX = e.getX();
+					endY = e.getY();
 
-					return;
+					if (sendOnDrag()) {
+						startX = endX;
+						startY = endY;
+					}
 				}
 
-				endX = e.getX();
-				endY = e.getY();
-
-				if (sendOnDrag()) {
-					startX = endX;
-					startY = endY;
-				}
+				repaintPreview();
 			}
 
 			@Override
 			public void mouseMoved(MouseEvent e) {
-				repaintBoard();
-
 				endX = e.getX();
 				endY = e.getY();
+
+				repaintPreview();
 			}
 		});
 		pnlBoard.setBackground(Color.WHITE);
@@ -621,6 +702,8 @@ public class ClientGUI extends JFrame {
 	 * button
 	 */
 	public void selectTool(JButton button, Tool tool) {
+		endStroke();
+
 		if (selectedToolButton != null) {
 			selectedToolButton.setEnabled(true);
 		}
@@ -648,55 +731,112 @@ public class ClientGUI extends JFrame {
 	 * @param draw JSONObject
 	 */
 	public void draw(JSONObject draw) {
-		Graphics2D g = (Graphics2D) getBoard().getGraphics();
+		try {
+			draw(DrawOp.fromJSON(draw));
+		} catch (JSONException ignored) {
+		}
+	}
 
-		// assume that most of the fields are there if we need them this greatly
-		// simplifies this process
-		int x = draw.optInt(Fields.X);
-		int y = draw.optInt(Fields.Y);
-		int w = draw.optInt(Fields.WIDTH);
-		int h = draw.optInt(Fields.HEIGHT);
-		int size = draw.optInt(Fields.SIZE);
-		int color = draw.optInt(Fields.COLOR);
+	/**
+	 * Draws a drawing represented by {@code draw}
+	 * 
+	 * @param draw DrawOp
+	 */
+	public void draw(DrawOp draw) {
+		draw(draw, null);
+	}
 
-		g.setColor(new Color(color, true));
+	/**
+	 * Draws a drawing represented by {@code draw}, only within {@code clip}
+	 * 
+	 * @param draw DrawOp
+	 * @param clip Shape, {@code null} to draw anywhere
+	 */
+	public void draw(DrawOp draw, Shape clip) {
+		Rectangle dirty = new Rectangle(0, 0, -1, -1);
+		drawOnBoard(draw, clip, dirty);
+		repaintBoard(dirty);
+	}
+
+	/**
+	 * Draws a drawing onto the board without repainting it, so a batch of
+	 * drawings can share one repaint. Allocates nothing for drawings other
+	 * than text, so busy boards don't churn the heap. Must be called on the
+	 * event dispatch thread
+	 * 
+	 * @param draw  DrawOp
+	 * @param clip  Shape, {@code null} to draw anywhere
+	 * @param dirty Rectangle, the area of the board that needs repainting,
+	 *              which the area drawn on is added to. Empty if it has a
+	 *              negative width or height
+	 */
+	public void drawOnBoard(DrawOp draw, Shape clip, Rectangle dirty) {
+		renderer.draw(draw, clip);
 
+		BoardRenderer.bounds(draw, drawn);
+		if (clip != null) {
+			Rectangle2D.intersect(drawn, clip.getBounds(), drawn);
+		}
+		if (!drawn.isEmpty()) {
+			dirty.add(drawn);
+			stale.add(drawn);
+		}
+	}
+
+	/**
+	 * Replaces tiles of the board. A tile without an image is blank
+	 * 
+	 * @param tiles    JSONArray, of the column ("x"), row ("y") and image of
+	 *                 each tile, decoded or not
+	 * @param tileSize int
+	 * @return Area, the area of the board that was replaced
+	 */
+	public Area setTiles(JSONArray tiles, int tileSize) {
+		Area replaced = new Area();
+		if (tiles == null) {
+			return replaced;
+		}
+
+		getBoardLock().lock();
 		try {
-			switch (Tool.valueOf(draw.optString(Fields.TOOL).toUpperCase())) {
-			case RECTANGLE:
-				g.fillRect(x, y, w, h);
-				break;
-			case OVAL:
-				g.fillOval(x, y, w, h);
-				break;
-			case CIRCLE:
-				g.fillOval(x - size, y - size, 2 * size, 2 * size);
-				break;
-			case ERASER:
-				g.setColor(Color.WHITE);
-			case FREEHAND:
-			case LINE:
-				int x2 = draw.optInt(Fields.X2);
-				int y2 = draw.optInt(Fields.Y2);
-				g.setStroke(
-					new BasicStroke(size, BasicStroke.CAP_ROUND,
-						BasicStroke.JOIN_BEVEL));
-				g.drawLine(x, y, x2, y2);
-				break;
-			case TEXT:
-				String text = draw.optString(Fields.TEXT);
-				g.setFont(new Font("Arial", Font.PLAIN, 2 * size));
-				g.drawString(text, x, y);
-				break;
-			default:
-				break;
+			Graphics g = getBoard().getGraphics();
+			for (int i = 0; i < tiles.length(); i++) {
+				JSONObject tile = tiles.optJSONObject(i);
+				if (tile == null) {
+					continue;
+				}
+
+				Rectangle area = new Rectangle(tile.optInt(Fields.X) * tileSize,
+					tile.optInt(Fields.Y) * tileSize, tileSize, tileSize);
+				// images are usually decoded as they are received, or else
+				// raw bytes when sent in a binary frame
+				Object encoded = tile.opt(Fields.IMAGE);
+				BufferedImage image = encoded instanceof BufferedImage
+					? (BufferedImage) encoded
+					: encoded instanceof byte[]
+						? SnapshotCodec.fromBytes((byte[]) encoded)
+						: SnapshotCodec.decode(tile.optString(Fields.IMAGE));
+				if (image != null) {
+					g.drawImage(image, area.x, area.y, null);
+				} else {
+					g.setColor(Color.WHITE);
+					g.fillRect(area.x, area.y, area.width, area.height);
+				}
+
+				replaced.add(new Area(area));
 			}
-		} catch (IllegalArgumentException ignored) {
+			g.dispose();
+		} finally {
+			getBoardLock().unlock();
 		}
 
-		g.dispose();
+		Rectangle bounds = replaced.getBounds();
+		if (!bounds.isEmpty()) {
+			stale.add(bounds);
+		}
+		repaintBoard(bounds);
 
-		pnlBoard.repaint();
+		return replaced;
 	}
 
 	/**
@@ -707,9 +847,8 @@ public class ClientGUI extends JFrame {
 	public void setBoard(String imageStr) {
 		resetBoard();
 
-		try {
-			BufferedImage newImage = ImageIO.read(
-				new ByteArrayInputStream(Base64.getDecoder().decode(imageStr)));
+		BufferedImage newImage = SnapshotCodec.decode(imageStr);
+		if (newImage != null) {
 			getBoardLock().lock();
 			try {
 				board.getGraphics().drawImage(
@@ -719,10 +858,10 @@ public class ClientGUI extends JFrame {
 					board.getWidth(null),
 					board.getHeight(null),
 					null);
+				stale.setBounds(0, 0, board.getWidth(), board.getHeight());
 			} finally {
 				getBoardLock().unlock();
 			}
-		} catch (IOException ignored) {
 		}
 
 		repaintBoard();
@@ -737,15 +876,14 @@ public class ClientGUI extends JFrame {
 			Dimension dim = pnlBoard.getSize();
 
 			if (getBoard() == null) {
-				setBoard(
-					new BufferedImage(dim.width, dim.height,
-						BufferedImage.TYPE_INT_ARGB));
+				setBoard(createBoard(dim.width, dim.height));
 			}
 
 			Graphics g = getBoard().getGraphics();
 			g.setColor(Color.WHITE);
 			g.fillRect(0, 0, dim.width, dim.height);
 			g.dispose();
+			stale.setBounds(0, 0, dim.width, dim.height);
 
 			repaintBoard();
 		} finally {
@@ -753,6 +891,100 @@ public class ClientGUI extends JFrame {
 		}
 	}
 
+	/**
+	 * Creates a blank board for the backing store. An accelerated board is
+	 * opaque and in the screen's format, so copying it to the screen needs no
+	 * blending or conversion
+	 * 
+	 * @param width  int
+	 * @param height int
+	 * @return BufferedImage
+	 */
+	private BufferedImage createBoard(int width, int height) {
+		GraphicsConfiguration gc = pnlBoard.getGraphicsConfiguration();
+		if (backingStore == BackingStore.ACCELERATED && gc != null) {
+			return gc.createCompatibleImage(width, height,
+				Transparency.OPAQUE);
+		}
+
+		return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+	}
+
+	/**
+	 * Paints part of the board. With an accelerated backing store, the stale
+	 * parts of volatileBoard are refreshed from the board first, and all of it
+	 * if its surface was lost. Must be called on the event dispatch thread,
+	 * with the board lock held
+	 * 
+	 * @param g     Graphics, of pnlBoard
+	 * @param board BufferedImage
+	 * @param area  Rectangle, of the board to paint
+	 */
+	private void paintBoard(Graphics g, BufferedImage board, Rectangle area) {
+		GraphicsConfiguration gc = pnlBoard.getGraphicsConfiguration();
+		if (backingStore != BackingStore.ACCELERATED || gc == null) {
+			copy(board, g, area);
+			return;
+		}
+
+		int width = board.getWidth();
+		int height = board.getHeight();
+		do {
+			int status = volatileBoard == null
+				? VolatileImage.IMAGE_INCOMPATIBLE
+				: volatileBoard.validate(gc);
+
+			if (status == VolatileImage.IMAGE_INCOMPATIBLE
+				|| volatileBoard.getWidth() != width
+				|| volatileBoard.getHeight() != height) {
+				if (volatileBoard != null) {
+					volatileBoard.flush();
+				}
+
+				volatileBoard = gc.createCompatibleVolatileImage(width, height,
+					Transparency.OPAQUE);
+				if (volatileBoard == null) {
+					copy(board, g, area);
+					return;
+				}
+				stale.setBounds(0, 0, width, height);
+			} else if (status == VolatileImage.IMAGE_RESTORED) {
+				stale.setBounds(0, 0, width, height);
+			}
+
+			Rectangle refresh = stale.intersection(new Rectangle(width, height));
+			if (!refresh.isEmpty()) {
+				Graphics vg = volatileBoard.getGraphics();
+				copy(board, vg, refresh);
+				vg.dispose();
+			}
+			stale.setBounds(0, 0, -1, -1);
+
+			copy(volatileBoard, g, area);
+		} while (volatileBoard.contentsLost());
+	}
+
+	/**
+	 * Copies an area of an image to the same place with a Graphics
+	 * 
+	 * @param image Image
+	 * @param g     Graphics
+	 * @param area  Rectangle
+	 */
+	private static void copy(Image image, Graphics g, Rectangle area) {
+		g.drawImage(
+			image,
+			area.x,
+			area.y,
+			area.x + area.width,
+			area.y + area.height,
+			area.x,
+			area.y,
+			area.x + area.width,
+			area.y + area.height,
+			null);
+	}
+
 	/**
 	 * Checks if all of start/endX/Y are not null
 	 * 
@@ -776,6 +1008,10 @@ public class ClientGUI extends JFrame {
 	 * @param g Graphics
 	 */
 	public void drawPreview(Graphics g) {
+		if (strokeLength >= 4 && isActiveInput() && renderer != null) {
+			renderer.draw((Graphics2D) g, previewStroke());
+		}
+
 		if (isAllXYSet() && isActiveInput()) {
 			int x = Math.min(startX, endX);
 			int y = Math.min(startY, endY);
@@ -814,12 +1050,75 @@ public class ClientGUI extends JFrame {
 	}
 
 	/**
-	 * Repaints the board (pnlBoard)
+	 * Gets the area covered by the preview of the users current drawing
+	 * 
+	 * @return Rectangle, {@code null} if there is no preview
+	 */
+	private Rectangle previewBounds() {
+		Rectangle bounds = null;
+		if (strokeLength >= 4) {
+			bounds = BoardRenderer.bounds(previewStroke());
+		}
+
+		if (isAllXYSet() && selectedTool != null) {
+			int w = Math.abs(endX - startX);
+			int h = Math.abs(endY - startY);
+
+			DrawOp shape = new DrawOp(selectedTool).setPosition(startX, startY);
+			switch (selectedTool) {
+			case RECTANGLE:
+			case OVAL:
+				shape.setPosition(Math.min(startX, endX),
+					Math.min(startY, endY)).setDimensions(w, h);
+				break;
+			case CIRCLE:
+				shape.setSize((int) Math.sqrt(w * w + h * h));
+				break;
+			case LINE:
+				shape.setEnd(endX, endY).setSize((int) spnSize.getValue());
+				break;
+			default:
+				shape = null;
+				break;
+			}
+
+			if (shape != null) {
+				bounds = BoardRenderer.union(bounds,
+					BoardRenderer.bounds(shape));
+			}
+		}
+
+		return bounds;
+	}
+
+	/**
+	 * Repaints the preview of the users current drawing, and wherever the
+	 * last preview was, so it is cleared
+	 */
+	public void repaintPreview() {
+		Rectangle bounds = previewBounds();
+		repaintBoard(BoardRenderer.union(previewArea, bounds));
+		previewArea = bounds;
+	}
+
+	/**
+	 * Repaints the whole board (pnlBoard)
 	 */
 	public void repaintBoard() {
 		pnlBoard.repaint();
 	}
 
+	/**
+	 * Repaints part of the board
+	 * 
+	 * @param area Rectangle, {@code null} to repaint nothing
+	 */
+	public void repaintBoard(Rectangle area) {
+		if (area != null && !area.isEmpty()) {
+			pnlBoard.repaint(area);
+		}
+	}
+
 	public void setColor(Color color) {
 		this.selectedColor = color;
 		pnlColorSelected.setBackground(color);
@@ -835,10 +1134,9 @@ public class ClientGUI extends JFrame {
 			return false;
 		}
 
-		JSONObject drawing = new JSONObject()
-			.put(Fields.TOOL, selectedTool.toString().toLowerCase())
-			.put(Fields.COLOR, selectedColor.getRGB()).put(Fields.X, endX)
-			.put(Fields.Y, endY).put(Fields.SIZE, spnSize.getValue());
+		DrawOp drawing = new DrawOp(selectedTool)
+			.setColor(selectedColor.getRGB()).setPosition(endX, endY)
+			.setSize((int) spnSize.getValue());
 
 		boolean send = true;
 		switch (selectedTool) {
@@ -846,7 +1144,7 @@ public class ClientGUI extends JFrame {
 			String text = JOptionPane.showInputDialog(this, "Input Text");
 
 			if (text != null && !text.isEmpty()) {
-				drawing.put(Fields.TEXT, text);
+				drawing.setText(text);
 			} else {
 				send = false;
 			}
@@ -861,10 +1159,7 @@ public class ClientGUI extends JFrame {
 		}
 
 		if (send) {
-			JSONObject message = new JSONObject()
-				.put(Fields.COMMAND, Fields.DRAWING)
-				.put(Fields.DRAWING, drawing);
-			getController().sendToServer(message);
+			getController().sendToServer(drawing);
 		}
 
 		return send;
@@ -885,24 +1180,20 @@ public class ClientGUI extends JFrame {
 		int w = Math.abs(endX - startX);
 		int h = Math.abs(endY - startY);
 
-		JSONObject drawing = new JSONObject()
-			.put(Fields.TOOL, selectedTool.toString().toLowerCase())
-			.put(Fields.COLOR, selectedColor.getRGB()).put(Fields.X, startX)
-			.put(Fields.Y, startY);
+		DrawOp drawing = new DrawOp(selectedTool)
+			.setColor(selectedColor.getRGB()).setPosition(startX, startY);
 
 		boolean send = true;
 		switch (selectedTool) {
 		case RECTANGLE:
 		case OVAL:
-			drawing.put(Fields.HEIGHT, h).put(Fields.WIDTH, w).put(Fields.X, x)
-				.put(Fields.Y, y);
+			drawing.setDimensions(w, h).setPosition(x, y);
 			break;
 		case CIRCLE:
-			drawing.put(Fields.SIZE, (int) Math.sqrt(w * w + h * h));
+			drawing.setSize((int) Math.sqrt(w * w + h * h));
 			break;
 		case LINE:
-			drawing.put(Fields.X2, endX).put(Fields.Y2, endY)
-				.put(Fields.SIZE, spnSize.getValue());
+			drawing.setEnd(endX, endY).setSize((int) spnSize.getValue());
 			break;
 		default:
 			send = false;
@@ -910,49 +1201,110 @@ public class ClientGUI extends JFrame {
 		}
 
 		if (send) {
-			JSONObject message = new JSONObject()
-				.put(Fields.COMMAND, Fields.DRAWING)
-				.put(Fields.DRAWING, drawing);
-			getController().sendToServer(message);
+			getController().sendToServer(drawing);
 		}
 
 		return send;
 	}
 
 	/**
-	 * Sends a draw message for a tool that is "on drag"
+	 * Adds the dragged point to the stroke of a tool that is "on drag". The
+	 * stroke's points are sent as a polyline every STROKE_FLUSH_MS, or once
+	 * there are STROKE_MAX_POINTS of them, rather than one message per point
 	 * 
-	 * @return boolean {@code true} if a message is sent
+	 * @return boolean {@code true} if the point is added
 	 */
 	public boolean sendOnDrag() {
-		if (!isAllXYSet()) {
+		if (!isAllXYSet() || !selectedTool.isDragOnly()) {
 			return false;
 		}
 
-		JSONObject drawing = new JSONObject()
-			.put(Fields.TOOL, selectedTool.toString().toLowerCase())
-			.put(Fields.X, startX).put(Fields.Y, startY).put(Fields.X2, endX)
-			.put(Fields.Y2, endY).put(Fields.SIZE, spnSize.getValue());
+		if (stroke == null) {
+			stroke = new DrawOp(selectedTool)
+				.setSize((int) spnSize.getValue());
+			if (selectedTool == Tool.FREEHAND) {
+				stroke.setColor(selectedColor.getRGB());
+			}
+			strokePreview = new DrawOp(stroke.getTool())
+				.setSize(stroke.getSize()).setColor(stroke.getColor());
+			addStrokePoint(startX, startY);
+		}
+		addStrokePoint(endX, endY);
 
-		boolean send = true;
-		switch (selectedTool) {
-		case FREEHAND:
-			drawing.put(Fields.COLOR, selectedColor.getRGB());
-		case ERASER:
-			break;
-		default:
-			send = false;
-			break;
+		if (strokeLength == strokePoints.length) {
+			flushStroke();
+		} else if (!strokeTimer.isRunning()) {
+			strokeTimer.start();
 		}
 
-		if (send) {
-			JSONObject message = new JSONObject()
-				.put(Fields.COMMAND, Fields.DRAWING)
-				.put(Fields.DRAWING, drawing);
-			getController().sendToServer(message);
+		return true;
+	}
+
+	/**
+	 * Adds a point to the stroke being dragged
+	 * 
+	 * @param x int
+	 * @param y int
+	 */
+	private void addStrokePoint(int x, int y) {
+		strokePoints[strokeLength++] = x;
+		strokePoints[strokeLength++] = y;
+	}
+
+	/**
+	 * Gets the points of the stroke that have not been sent, as a polyline
+	 * 
+	 * @return DrawOp
+	 */
+	private DrawOp pendingStroke() {
+		return new DrawOp(stroke.getTool()).setSize(stroke.getSize())
+			.setColor(stroke.getColor())
+			.setPoints(Arrays.copyOf(strokePoints, strokeLength));
+	}
+
+	/**
+	 * Gets the points of the stroke that have not been sent as the preview's
+	 * polyline. The preview and its points are reused, as it is painted far
+	 * more often than it is sent
+	 * 
+	 * @return DrawOp
+	 */
+	private DrawOp previewStroke() {
+		int[] points = previewPoints[strokeLength / 2];
+		if (points == null) {
+			points = new int[strokeLength];
+			previewPoints[strokeLength / 2] = points;
 		}
+		System.arraycopy(strokePoints, 0, points, 0, strokeLength);
 
-		return send;
+		return strokePreview.setPoints(points);
+	}
+
+	/**
+	 * Sends the points of the stroke that have not been sent as one polyline.
+	 * The last point is kept, so the next polyline carries on from it
+	 */
+	private void flushStroke() {
+		strokeTimer.stop();
+		if (stroke == null || strokeLength < 4) {
+			return;
+		}
+
+		getController().sendToServer(pendingStroke());
+
+		strokePoints[0] = strokePoints[strokeLength - 2];
+		strokePoints[1] = strokePoints[strokeLength - 1];
+		strokeLength = 2;
+	}
+
+	/**
+	 * Sends what is left of the stroke being dragged, and ends it
+	 */
+	private void endStroke() {
+		flushStroke();
+		stroke = null;
+		strokePreview = null;
+		strokeLength = 0;
 	}
 
 	/**
@@ -1018,7 +1370,13 @@ public class ClientGUI extends JFrame {
 	 * @param board the board to set
 	 */
 	public void setBoard(BufferedImage board) {
+		if (renderer != null) {
+			renderer.dispose();
+		}
+
 		this.board = board;
+		this.renderer = new BoardRenderer(board.createGraphics());
+		stale.setBounds(0, 0, board.getWidth(), board.getHeight());
 	}
 
 	/**
@@ -1,23 +1,79 @@
 package gui;
 
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Area;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import common.DrawOp;
 import common.Fields;
+import common.SnapshotCodec;
 
 /**
- * A class that controls some underlying GUI
+ * A class that controls some underlying GUI.
+ * 
+ * Messages are parsed, and snapshot tiles decoded, on the thread that receives
+ * them and queued. The queue
+ * is applied on the event dispatch thread in batches, at most once per
+ * display frame, with a single repaint of the board per batch, so a busy
+ * board doesn't flood the event dispatch thread with a task and a repaint per
+ * message
  */
 public abstract class GUIController {
+	private static final int RECENT_DRAWINGS = 256;
+	/** the time between batches, about one display frame */
+	public static final long FRAME_NS = 16_000_000;
+	/**
+	 * the longest a batch may take. What is left is applied in the next frame,
+	 * so input and painting are not held up
+	 */
+	private static final long FRAME_BUDGET_NS = FRAME_NS / 2;
+
+	/** parsed messages waiting to be applied, DrawOps or JSONObjects */
+	private final Queue<Object> incoming = new ConcurrentLinkedQueue<>();
+	/** whether a batch is scheduled to apply the queue */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	/** when the last batch started, only accessed on the event dispatch thread */
+	private long lastFrame = System.nanoTime() - FRAME_NS;
+	/** starts the next batch once the frame has passed */
+	private final Timer frameTimer = new Timer(0, e -> applyFrame());
+
+	/** the sequence number of the latest change seen */
+	private volatile long lastSeq = 0;
+	/** recent stamped drawings, only accessed on the event dispatch thread */
+	private final Deque<DrawOp> recent = new ArrayDeque<>(RECENT_DRAWINGS);
 	/**
-	 * Receives a message from some source, passing it off to the GUI
+	 * the "begin" message of each snapshot being received, by transfer id,
+	 * only accessed on the event dispatch thread
+	 */
+	private final Map<Integer, JSONObject> transfers = new HashMap<>();
+
+	/**
+	 * Receives a message from some source, passing it off to the GUI. Messages
+	 * may be JSON (as a JSONObject or String), or a DrawOp. They are parsed on
+	 * the calling thread, and applied with the next batch
 	 * 
 	 * @param message Object
 	 */
 	public void receive(Object message) {
-		SwingUtilities.invokeLater(() -> {
+		Object parsed = message;
+		if (!(message instanceof DrawOp)) {
 			try {
 				JSONObject json;
 				if (message instanceof JSONObject) {
@@ -26,23 +82,235 @@ public abstract class GUIController {
 					json = new JSONObject(message.toString());
 				}
 
-				ClientGUI gui = getGUI();
-
-				switch (json.optString(Fields.COMMAND)) {
-				case Fields.USERS:
-					gui.setUsers(json.optJSONArray(Fields.USERS));
-					break;
-				case Fields.DRAWING:
-					gui.draw(json.optJSONObject(Fields.DRAWING));
-					break;
-				case Fields.BOARD:
-					gui.setBoard(json.optString(Fields.BOARD));
-					break;
+				parsed = json;
+				if (Fields.DRAWING.equals(json.optString(Fields.COMMAND))) {
+					parsed = DrawOp.fromJSON(json.optJSONObject(Fields.DRAWING))
+						.setSeq(json.optLong(Fields.SEQ));
+				} else if (Fields.SNAPSHOT.equals(json.optString(Fields.COMMAND))
+					&& Fields.CHUNK.equals(json.optString(Fields.STATE))) {
+					decodeTiles(json.optJSONArray(Fields.TILES));
 				}
 			} catch (JSONException je) {
 				System.out.format("JSON parse error: %s\n", je.getMessage());
+				return;
+			}
+		}
+
+		incoming.add(parsed);
+		if (scheduled.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(this::applyFrame);
+		}
+	}
+
+	/**
+	 * Decodes the image of each tile of a snapshot chunk, replacing it with
+	 * the BufferedImage, so the event dispatch thread only has to draw them.
+	 * A tile whose image can not be decoded is left without one, so it is
+	 * blank
+	 * 
+	 * @param tiles JSONArray, of the tiles of a chunk
+	 */
+	private static void decodeTiles(JSONArray tiles) {
+		if (tiles == null) {
+			return;
+		}
+
+		for (int i = 0; i < tiles.length(); i++) {
+			JSONObject tile = tiles.optJSONObject(i);
+			if (tile == null) {
+				continue;
+			}
+
+			// images are raw bytes when sent in a binary frame
+			Object encoded = tile.opt(Fields.IMAGE);
+			BufferedImage image = encoded instanceof byte[]
+				? SnapshotCodec.fromBytes((byte[]) encoded)
+				: SnapshotCodec.decode(tile.optString(Fields.IMAGE));
+			if (image != null) {
+				tile.put(Fields.IMAGE, image);
+			} else {
+				tile.remove(Fields.IMAGE);
 			}
-		});
+		}
+	}
+
+	/**
+	 * Applies the queued messages as one batch, then repaints the board once.
+	 * If the last batch was less than a frame ago this waits for the rest of
+	 * the frame, and a batch that runs over its budget leaves the rest of the
+	 * queue for the next frame. Must be called on the event dispatch thread
+	 */
+	private void applyFrame() {
+		long now = System.nanoTime();
+		long wait = lastFrame + FRAME_NS - now;
+		if (wait > 0) {
+			frameTimer.setInitialDelay((int) Math.max(1, wait / 1_000_000));
+			frameTimer.setRepeats(false);
+			frameTimer.restart();
+			return;
+		}
+
+		lastFrame = now;
+		scheduled.set(false);
+
+		Rectangle dirty = new Rectangle(0, 0, -1, -1);
+		Object message;
+		while ((message = incoming.poll()) != null) {
+			apply(message, dirty);
+
+			if (System.nanoTime() - now > FRAME_BUDGET_NS) {
+				if (!incoming.isEmpty()
+					&& scheduled.compareAndSet(false, true)) {
+					SwingUtilities.invokeLater(this::applyFrame);
+				}
+				break;
+			}
+		}
+
+		getGUI().repaintBoard(dirty);
+	}
+
+	/**
+	 * Applies a parsed message to the GUI. Must be called on the event
+	 * dispatch thread
+	 * 
+	 * @param message Object, a DrawOp or JSONObject
+	 * @param dirty   Rectangle, the area of the board drawn on without being
+	 *                repainted is added to it
+	 */
+	private void apply(Object message, Rectangle dirty) {
+		if (message instanceof DrawOp) {
+			draw((DrawOp) message, dirty);
+			return;
+		}
+
+		JSONObject json = (JSONObject) message;
+		ClientGUI gui = getGUI();
+
+		try {
+			switch (json.optString(Fields.COMMAND)) {
+			case Fields.USERS:
+				gui.setUsers(json.optJSONArray(Fields.USERS));
+				break;
+			case Fields.BOARD:
+				gui.setBoard(json.optString(Fields.BOARD));
+				replay(json.optLong(Fields.SEQ), null);
+				break;
+			case Fields.SNAPSHOT:
+				receiveSnapshot(json);
+				break;
+			}
+		} catch (JSONException je) {
+			System.out.format("JSON parse error: %s\n", je.getMessage());
+		}
+	}
+
+	/**
+	 * Gets the sequence number of the latest change seen, so a resync only
+	 * needs what was missed
+	 * 
+	 * @return long, 0 if no stamped change has been seen
+	 */
+	public long getLastSeq() {
+		return lastSeq;
+	}
+
+	/**
+	 * Draws a drawing without repainting, remembering it if it is stamped.
+	 * Stamped drawings that have already been seen are skipped. Must be called
+	 * on the event dispatch thread
+	 * 
+	 * @param drawing DrawOp
+	 * @param dirty   Rectangle, the area drawn on is added to it
+	 */
+	private void draw(DrawOp drawing, Rectangle dirty) {
+		long seq = drawing.getSeq();
+		if (seq > 0 && seq <= lastSeq) {
+			// already drawn, or included in a snapshot
+			return;
+		}
+
+		getGUI().drawOnBoard(drawing, null, dirty);
+
+		if (seq > 0) {
+			if (recent.size() >= RECENT_DRAWINGS) {
+				recent.poll();
+			}
+			recent.add(drawing);
+			lastSeq = Math.max(lastSeq, seq);
+		}
+	}
+
+	/**
+	 * Handles a message of a snapshot transfer. Tiles are drawn as each chunk
+	 * arrives, and drawings received in the meantime are still drawn. Must be
+	 * called on the event dispatch thread
+	 * 
+	 * @param json JSONObject, the "snapshot" message
+	 */
+	private void receiveSnapshot(JSONObject json) {
+		int id = json.optInt(Fields.ID);
+		ClientGUI gui = getGUI();
+
+		switch (json.optString(Fields.STATE)) {
+		case Fields.BEGIN:
+			transfers.put(id, json);
+			if (json.optBoolean(Fields.FULL)) {
+				// blank tiles are not sent
+				gui.resetBoard();
+				replay(json.optLong(Fields.SEQ), null);
+			}
+			break;
+		case Fields.CHUNK:
+			JSONObject begin = transfers.get(id);
+			if (begin != null) {
+				Area replaced = gui.setTiles(json.optJSONArray(Fields.TILES),
+					begin.optInt(Fields.TILE_SIZE));
+				replay(begin.optLong(Fields.SEQ), replaced);
+			}
+			break;
+		case Fields.END:
+			transfers.remove(id);
+			break;
+		}
+	}
+
+	/**
+	 * Requests specific tiles of the board from the server
+	 * 
+	 * @param tiles Collection, of the column and row of each tile
+	 */
+	public void requestTiles(Collection<Point> tiles) {
+		JSONArray array = new JSONArray();
+		tiles.forEach(tile -> array.put(
+			new JSONObject().put(Fields.X, tile.x).put(Fields.Y, tile.y)));
+
+		sendToServer(new JSONObject().put(Fields.COMMAND, Fields.TILES)
+			.put(Fields.TILES, array));
+	}
+
+	/**
+	 * Called after (part of) the board is replaced from a snapshot. Drawings
+	 * stamped after the snapshot was taken may have arrived before it, so they
+	 * are drawn again on top of it. Must be called on the event dispatch thread
+	 * 
+	 * @param seq  long, the sequence number of the snapshot, 0 if unknown
+	 * @param clip Shape, the area that was replaced, {@code null} for the
+	 *             whole board
+	 */
+	private void replay(long seq, Shape clip) {
+		if (seq <= 0) {
+			return;
+		}
+
+		ClientGUI gui = getGUI();
+		recent.removeIf(drawing -> drawing.getSeq() <= seq);
+		Rectangle dirty = new Rectangle(0, 0, -1, -1);
+		for (DrawOp drawing : recent) {
+			gui.drawOnBoard(drawing, clip, dirty);
+		}
+		gui.repaintBoard(dirty);
+		lastSeq = Math.max(seq, recent.isEmpty() ? seq : recent.peekLast().getSeq());
 	}
 
 	/**
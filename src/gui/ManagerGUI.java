@@ -1,31 +1,43 @@
 package gui;
 
 import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.Base64;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.imageio.ImageIO;
+import javax.swing.AbstractButton;
+import javax.swing.DefaultListModel;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
+import javax.swing.JList;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
 import javax.swing.JSeparator;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.border.TitledBorder;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import common.Fields;
+import common.SnapshotCodec;
+import server.IUser;
 import server.Manager;
 
 public class ManagerGUI extends ClientGUI {
@@ -42,6 +54,10 @@ public class ManagerGUI extends ClientGUI {
 
 	private Map<Integer, Integer> userUUIDs;
 
+	private final JList<String> listPending;
+	/** the uuid of each user in listPending, only accessed on the EDT */
+	private List<Integer> pendingUUIDs = new ArrayList<>();
+
 	/**
 	 * Creates a ManagerGUI with specified attributes
 	 * 
@@ -149,50 +165,125 @@ public class ManagerGUI extends ClientGUI {
 		gbc_btnKick.gridy = 1;
 		getPnlActiveUsers().add(btnKick, gbc_btnKick);
 
+		JPanel pnlPending = new JPanel();
+		pnlPending.setBorder(
+			new TitledBorder(null, "Waiting to Join", TitledBorder.LEADING,
+				TitledBorder.TOP, null, null));
+		GridBagConstraints gbc_pnlPending = new GridBagConstraints();
+		gbc_pnlPending.fill = GridBagConstraints.BOTH;
+		gbc_pnlPending.insets = new Insets(0, 5, 5, 5);
+		gbc_pnlPending.gridx = 0;
+		gbc_pnlPending.gridy = 2;
+		getPnlActiveUsers().add(pnlPending, gbc_pnlPending);
+		pnlPending.setLayout(new GridBagLayout());
+
+		listPending = new JList<>();
+		listPending.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		JScrollPane scrPending = new JScrollPane(listPending);
+		GridBagConstraints gbc_scrPending = new GridBagConstraints();
+		gbc_scrPending.fill = GridBagConstraints.BOTH;
+		gbc_scrPending.weightx = 1.0;
+		gbc_scrPending.weighty = 1.0;
+		gbc_scrPending.insets = new Insets(5, 5, 5, 5);
+		gbc_scrPending.gridx = 0;
+		gbc_scrPending.gridy = 0;
+		pnlPending.add(scrPending, gbc_scrPending);
+
+		JButton btnApprove = new JButton("Approve");
+		btnApprove.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				manager.approve(getSelectedPending());
+			}
+		});
+		addPendingButton(pnlPending, btnApprove, 1);
+
+		JButton btnApproveAll = new JButton("Approve All");
+		btnApproveAll.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				manager.approveAll();
+			}
+		});
+		addPendingButton(pnlPending, btnApproveAll, 2);
+
+		JButton btnReject = new JButton("Reject");
+		btnReject.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				manager.reject(getSelectedPending());
+			}
+		});
+		addPendingButton(pnlPending, btnReject, 3);
+
+		JCheckBox chckbxOpen = new JCheckBox("Let anyone join");
+		chckbxOpen.setToolTipText("Approve every user without asking");
+		chckbxOpen.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				manager.setOpen(chckbxOpen.isSelected());
+			}
+		});
+		addPendingButton(pnlPending, chckbxOpen, 4);
+
 		pack();
 		
 		setActiveInput(true);
 	}
 
 	/**
-	 * Gets the base 64 representation of the supplied image
+	 * Adds a control below the list of users waiting to join
 	 * 
-	 * @param image BufferedImage
-	 * @return String {@code null} if an error occurred
+	 * @param pnlPending JPanel
+	 * @param control    AbstractButton
+	 * @param row        int
 	 */
-	public String getBoardString(BufferedImage image) {
-		String imageStr = null;
-
-		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			ImageIO
-				.write(image, ACTUAL_FILE_TYPE, Base64.getEncoder().wrap(baos));
-			imageStr = baos.toString();
-			baos.close();
-		} catch (IOException | IllegalArgumentException e) {
-			System.out
-				.format("Error getting image string: %s\n", e.getMessage());
-		}
-
-		return imageStr;
+	private static void addPendingButton(JPanel pnlPending,
+		AbstractButton control, int row) {
+		GridBagConstraints gbc = new GridBagConstraints();
+		gbc.fill = GridBagConstraints.HORIZONTAL;
+		gbc.insets = new Insets(0, 5, 5, 5);
+		gbc.gridx = 0;
+		gbc.gridy = row;
+		pnlPending.add(control, gbc);
 	}
 
 	/**
-	 * Gets the base 64 representation of the ManagerGUI's board
+	 * Gets the uuid of the selected user waiting to join
 	 * 
-	 * @return String
+	 * @return Integer, {@code null} if no one is selected
 	 */
-	public String getBoardString() {
-		String boardString;
+	private Integer getSelectedPending() {
+		int index = listPending.getSelectedIndex();
+		return index >= 0 && index < pendingUUIDs.size()
+			? pendingUUIDs.get(index)
+			: null;
+	}
 
-		getBoardLock().lock();
-		try {
-			boardString = getBoardString(getBoard());
-		} finally {
-			getBoardLock().unlock();
+	/**
+	 * Shows the users waiting to join, in the order they joined
+	 * 
+	 * @param pending List
+	 */
+	public void setPending(List<IUser> pending) {
+		List<Integer> uuids = new ArrayList<>(pending.size());
+		DefaultListModel<String> listModel = new DefaultListModel<>();
+		for (IUser user : pending) {
+			uuids.add(user.getUUID());
+			listModel.addElement(
+				String.format("%s (%d)", user.getUsername(), user.getUUID()));
 		}
 
-		return boardString;
+		SwingUtilities.invokeLater(() -> {
+			pendingUUIDs = uuids;
+			listPending.setModel(listModel);
+		});
+	}
+
+	/**
+	 * Gets the base 64 representation of the supplied image
+	 * 
+	 * @param image BufferedImage
+	 * @return String {@code null} if an error occurred
+	 */
+	public String getBoardString(BufferedImage image) {
+		return SnapshotCodec.encode(image);
 	}
 
 	@Override
@@ -0,0 +1,474 @@
+package server;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import common.DrawOp;
+import common.SnapshotCodec;
+import gui.BoardRenderer;
+
+/**
+ * The server's authoritative copy of the board. Drawings are applied in order
+ * on the model's own thread, so the board exists without any GUI, and
+ * snapshots never wait on a GUI painting.
+ * 
+ * Every change bumps the board's version, so copies of the board can tell if
+ * they are up to date. The board is split into square tiles, each stamped with
+ * the version that last changed it, so only the tiles that are not blank, or
+ * that changed since some version, need to be sent.
+ *
+ * The tiles are kept in a TileStore, on the heap for boards up to
+ * MAX_HEAP_PIXELS, or in a memory-mapped file for larger ones, so the heap
+ * used by a board does not grow with its size
+ */
+public class BoardModel {
+	public static final int DEFAULT_WIDTH = 690;
+	public static final int DEFAULT_HEIGHT = 620;
+	public static final int TILE_SIZE = 64;
+	/** boards larger than this are kept in a file, unless specified */
+	public static final long MAX_HEAP_PIXELS = 4096L * 4096;
+	/** the most tiles of a mapped board cached on the heap, 16MB */
+	private static final int CACHED_TILES = 1024;
+
+	/**
+	 * Enumeration of where the pixels of a board can be kept
+	 */
+	public enum Storage {
+		/** the board is kept on the heap, as one image */
+		HEAP,
+		/**
+		 * tiles are kept in a memory-mapped temporary file, and only those
+		 * used most recently are kept on the heap
+		 */
+		MAPPED;
+	}
+
+	private final int width;
+	private final int height;
+	private final TileStore tiles;
+	/** draws on the board, only used by the painter */
+	private final BoardRenderer renderer = new BoardRenderer();
+	private final ExecutorService painter;
+	private final int columns;
+
+	/** the number of changes made, including those not yet painted */
+	private final AtomicLong version = new AtomicLong();
+	/** the version of the last change painted, only accessed by the painter */
+	private long paintedVersion = 0;
+	/** the version that last changed each tile, only accessed by the painter */
+	private final long[] tileVersions;
+	/** whether each tile is known to be blank, only accessed by the painter */
+	private final boolean[] blank;
+	/** reused for the area of each drawing, only accessed by the painter */
+	private final Rectangle drawn = new Rectangle();
+
+	/**
+	 * Creates a blank BoardModel of the specified size, kept in a file if it
+	 * is larger than MAX_HEAP_PIXELS
+	 *
+	 * @param size Dimension
+	 */
+	public BoardModel(Dimension size) {
+		this(size, (long) size.width * size.height > MAX_HEAP_PIXELS
+			? Storage.MAPPED : Storage.HEAP);
+	}
+
+	/**
+	 * Creates a blank BoardModel of the specified size
+	 *
+	 * @param size    Dimension
+	 * @param storage Storage, where its pixels are kept
+	 *
+	 * @throws IllegalStateException if a mapped board's file can not be
+	 *                               created
+	 */
+	public BoardModel(Dimension size, Storage storage) {
+		this.width = Math.max(1, size.width);
+		this.height = Math.max(1, size.height);
+		try {
+			this.tiles = storage == Storage.MAPPED
+				? TileStore.mapped(width, height, CACHED_TILES)
+				: TileStore.onHeap(width, height);
+		} catch (IOException ioe) {
+			throw new IllegalStateException("Board storage failed", ioe);
+		}
+		this.columns = tiles.getColumns();
+		this.tileVersions = new long[tiles.getTileCount()];
+		this.blank = new boolean[tiles.getTileCount()];
+		this.painter = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "board-model");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		Arrays.fill(blank, true);
+	}
+
+	/**
+	 * Applies a drawing to the board
+	 *
+	 * @param op DrawOp
+	 * @return long, the version of the board after this drawing
+	 */
+	public long apply(DrawOp op) {
+		return change(version -> {
+			BoardRenderer.bounds(op, drawn);
+			int[] range = tiles.range(drawn);
+			if (range == null) {
+				return;
+			}
+
+			tiles.draw(drawn, (g, x, y) -> renderer.draw(g, op, x, y));
+			for (int row = range[1]; row <= range[3]; row++) {
+				for (int column = range[0]; column <= range[2]; column++) {
+					int tile = row * columns + column;
+					tileVersions[tile] = version;
+					blank[tile] = false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Resets the board to be a blank white canvas
+	 *
+	 * @return long, the version of the board after clearing it
+	 */
+	public long clear() {
+		return change(version -> paint(null, version));
+	}
+
+	/**
+	 * Replaces the board with the image represented by the base 64 encoded
+	 * imageStr, scaled to fit. An empty imageStr clears the board
+	 *
+	 * @param imageStr String
+	 * @return long, the version of the board after replacing it
+	 */
+	public long setBoard(String imageStr) {
+		return change(
+			version -> paint(SnapshotCodec.decode(imageStr), version));
+	}
+
+	/**
+	 * Restores the board to a checkpoint of it, scaled to fit. The board is
+	 * then at the checkpoint's version, and later changes carry on from it
+	 *
+	 * @param image    BufferedImage
+	 * @param restored long, the version of the board in the checkpoint
+	 */
+	public synchronized void restore(BufferedImage image, long restored) {
+		version.set(restored);
+		painter.execute(() -> {
+			paint(image, restored);
+			paintedVersion = restored;
+		});
+	}
+
+	/**
+	 * Clears the board to restore a checkpoint of it tile by tile, with
+	 * {@link #restore(int, int, BufferedImage)}. The board is then at the
+	 * checkpoint's version, and later changes carry on from it
+	 *
+	 * @param restored long, the version of the board in the checkpoint
+	 */
+	public synchronized void restore(long restored) {
+		restore(null, restored);
+	}
+
+	/**
+	 * Restores part of the board from a checkpoint, after
+	 * {@link #restore(long)}
+	 *
+	 * @param x     int
+	 * @param y     int
+	 * @param image BufferedImage, drawn unscaled at x, y
+	 */
+	public synchronized void restore(int x, int y, BufferedImage image) {
+		painter.execute(() -> {
+			Rectangle area = new Rectangle(x, y, image.getWidth(),
+				image.getHeight());
+			int[] range = tiles.range(area);
+			if (range == null) {
+				return;
+			}
+
+			tiles.draw(area, (g, originX, originY) -> g.drawImage(image,
+				x - originX, y - originY, null));
+			for (int row = range[1]; row <= range[3]; row++) {
+				for (int column = range[0]; column <= range[2]; column++) {
+					int tile = row * columns + column;
+					blank[tile] = tiles.isWhite(tile);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gets the version of the board. This includes changes that have been made
+	 * but not yet painted
+	 *
+	 * @return long
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Gets a copy of the board, including every change made before this call.
+	 * Every tile is copied, so this is only for boards that fit on the heap
+	 *
+	 * @return Snapshot
+	 */
+	public Snapshot snapshot() {
+		return snapshot(null);
+	}
+
+	/**
+	 * Gets a copy of the tiles of the board that the caller does not already
+	 * have, including every change made before this call. Blank tiles are
+	 * never copied
+	 *
+	 * @param have long[], the version of each tile the caller has, or
+	 *             {@code null} if it has none
+	 * @return Snapshot
+	 */
+	public Snapshot snapshot(long[] have) {
+		return snapshot(have, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Gets a copy of at most {@code maxTiles} of the tiles of the board that
+	 * the caller does not already have, so the copy of a large board can be
+	 * taken a part at a time. Once a snapshot is complete, the caller has
+	 * every tile of the board at the snapshot's version
+	 *
+	 * @param have     long[], the version of each tile the caller has, or
+	 *                 {@code null} if it has none
+	 * @param maxTiles int, the most tiles copied
+	 * @return Snapshot
+	 */
+	public Snapshot snapshot(long[] have, int maxTiles) {
+		Future<Snapshot> copy = painter.submit(() -> {
+			BufferedImage[] images = new BufferedImage[blank.length];
+			int copied = 0;
+			boolean complete = true;
+			for (int tile = 0; tile < blank.length; tile++) {
+				if (!blank[tile] && (have == null || tile >= have.length
+					|| have[tile] != tileVersions[tile])) {
+					if (copied == maxTiles) {
+						complete = false;
+						break;
+					}
+
+					images[tile] = tiles.copy(tile);
+					copied++;
+				}
+			}
+
+			return new Snapshot(width, height, paintedVersion, columns,
+				tileVersions.clone(), blank.clone(), images, complete);
+		});
+
+		try {
+			return copy.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IllegalStateException("Board snapshot failed", e);
+		}
+	}
+
+	/**
+	 * Gets the base 64 representation of the board. Only the copy is made on
+	 * the model's thread, so encoding does not hold up drawings
+	 *
+	 * @return String
+	 */
+	public String getBoardString() {
+		return SnapshotCodec.encode(snapshot().getImage());
+	}
+
+	/**
+	 * Gets the size of the board
+	 *
+	 * @return Dimension
+	 */
+	public Dimension getSize() {
+		return new Dimension(width, height);
+	}
+
+	/**
+	 * Stops the model's thread, and deletes the board's file if it has one
+	 */
+	public synchronized void close() {
+		if (painter.isShutdown()) {
+			return;
+		}
+
+		painter.execute(tiles::close);
+		painter.shutdown();
+	}
+
+	/**
+	 * Bumps the version and paints a change on the model's thread. Changes are
+	 * painted in version order
+	 *
+	 * @param change LongConsumer, accepting the version of the change
+	 * @return long, the version of the board after this change
+	 */
+	private synchronized long change(LongConsumer change) {
+		long changed = version.incrementAndGet();
+		painter.execute(() -> {
+			change.accept(changed);
+			paintedVersion = changed;
+		});
+
+		return changed;
+	}
+
+	/**
+	 * Replaces the board with an image, scaled to fit, and stamps every tile
+	 * with {@code version}. Only called by the painter
+	 *
+	 * @param image   BufferedImage, {@code null} to clear the board
+	 * @param version long
+	 */
+	private void paint(BufferedImage image, long version) {
+		tiles.clear();
+		Arrays.fill(tileVersions, version);
+		Arrays.fill(blank, true);
+		if (image == null) {
+			return;
+		}
+
+		tiles.draw(new Rectangle(width, height), (g, x, y) -> g
+			.drawImage(image, -x, -y, width, height, null));
+		for (int tile = 0; tile < blank.length; tile++) {
+			blank[tile] = tiles.isWhite(tile);
+		}
+	}
+
+	/**
+	 * A copy of the board's tiles, and the version it was copied at
+	 */
+	public static class Snapshot {
+		private final int width;
+		private final int height;
+		private final long version;
+		private final int columns;
+		private final long[] tileVersions;
+		private final boolean[] blank;
+		/** a copy of each tile, {@code null} if it was not copied */
+		private final BufferedImage[] images;
+		private final boolean complete;
+
+		private Snapshot(int width, int height, long version, int columns,
+			long[] tileVersions, boolean[] blank, BufferedImage[] images,
+			boolean complete) {
+			this.width = width;
+			this.height = height;
+			this.version = version;
+			this.columns = columns;
+			this.tileVersions = tileVersions;
+			this.blank = blank;
+			this.images = images;
+			this.complete = complete;
+		}
+
+		/**
+		 * Gets the image of a tile, sharing the snapshot's pixels
+		 *
+		 * @param tile int, the index of the tile, row by row
+		 * @return BufferedImage, {@code null} if the tile is blank or was not
+		 *         copied
+		 */
+		public BufferedImage getTile(int tile) {
+			BufferedImage image = images[tile];
+			if (image == null) {
+				return null;
+			}
+
+			int x = (tile % columns) * TILE_SIZE;
+			int y = (tile / columns) * TILE_SIZE;
+			return image.getSubimage(0, 0, Math.min(TILE_SIZE, width - x),
+				Math.min(TILE_SIZE, height - y));
+		}
+
+		/**
+		 * @param tile int
+		 * @return the version that last changed the tile
+		 */
+		public long getTileVersion(int tile) {
+			return tileVersions[tile];
+		}
+
+		/**
+		 * @param tile int
+		 * @return whether the tile is known to be blank
+		 */
+		public boolean isBlank(int tile) {
+			return blank[tile];
+		}
+
+		/**
+		 * @return the number of tiles
+		 */
+		public int getTileCount() {
+			return tileVersions.length;
+		}
+
+		/**
+		 * @return the number of columns of tiles
+		 */
+		public int getColumns() {
+			return columns;
+		}
+
+		/**
+		 * Gets the whole board, with every tile that was not copied left
+		 * white
+		 *
+		 * @return BufferedImage
+		 */
+		public BufferedImage getImage() {
+			BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = image.createGraphics();
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, width, height);
+			for (int tile = 0; tile < images.length; tile++) {
+				if (images[tile] != null) {
+					g.drawImage(images[tile], (tile % columns) * TILE_SIZE,
+						(tile / columns) * TILE_SIZE, null);
+				}
+			}
+			g.dispose();
+
+			return image;
+		}
+
+		/**
+		 * @return the version
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return whether every tile the caller did not have was copied
+		 */
+		public boolean isComplete() {
+			return complete;
+		}
+	}
+}
@@ -1,17 +1,26 @@
 package server;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.json.JSONObject;
 
+import common.BinaryCodec;
+import common.DrawOp;
 import common.Fields;
+import common.SnapshotCodec;
+import common.WireFormat;
 
 public class ClientUser implements IUser {
+	private static final int WRITE_BUFFER_SIZE = 8192;
+
 	private String username;
 	private int uuid;
 	private Server server;
@@ -19,14 +28,25 @@ public class ClientUser implements IUser {
 	private DataInputStream dis;
 	private DataOutputStream dos;
 	private Thread input;
+	private Thread output;
+	private WireFormat format;
+	private final SnapshotCodec.Format snapshotFormat;
 
-	private ExecutorService pool;
+	private OutboundQueue outbound;
+	private final Metrics.Counter sent;
+	private final Metrics.Counter bytesWritten;
 
-	private Boolean terminated = false;
-	private Boolean started = false;
+	/**
+	 * guards started and terminated, so a user is never started once it is
+	 * terminated. A ReentrantLock, as a monitor would pin a virtual thread
+	 */
+	private final Lock stateLock = new ReentrantLock();
+	private boolean terminated = false;
+	private boolean started = false;
 
 	/**
-	 * Creates a ClientUser with the specified parameters
+	 * Creates a ClientUser with the specified parameters, using platform
+	 * threads
 	 * 
 	 * @param server Server
 	 * @param socket Socket
@@ -36,42 +56,101 @@ public class ClientUser implements IUser {
 	 */
 	public ClientUser(Server server, Socket socket, int uuid)
 		throws IOException {
+		this(server, socket, uuid, Thread::new);
+	}
+
+	/**
+	 * Creates a ClientUser with the specified parameters
+	 * 
+	 * @param server        Server
+	 * @param socket        Socket
+	 * @param uuid          int
+	 * @param threadFactory ThreadFactory used for the reader and writer
+	 *                      threads
+	 * 
+	 * @throws IOException
+	 */
+	public ClientUser(Server server, Socket socket, int uuid,
+		ThreadFactory threadFactory) throws IOException {
 		this.server = server;
 		this.socket = socket;
 		this.uuid = uuid;
 
 		this.dis = new DataInputStream(socket.getInputStream());
-		this.dos = new DataOutputStream(socket.getOutputStream());
+		this.dos = new DataOutputStream(
+			new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE));
 
-		this.pool = Executors.newSingleThreadExecutor();
+		this.outbound = server.createOutboundQueue(this, () -> {
+		});
+		this.sent = server.getMetrics().counter(Server.MESSAGES_SENT);
+		this.bytesWritten = server.getMetrics().counter(Server.BYTES_WRITTEN);
 
+		// a connection that never completes its handshake is dropped
+		socket.setSoTimeout((int) server.getJoinQueue().getHandshakeTimeout());
 		JSONObject json = new JSONObject(dis.readUTF());
+		socket.setSoTimeout(0);
 		this.username = json.optString(Fields.USERNAME);
+		this.format = WireFormat.of(json.optString(Fields.PROTOCOL));
+		this.snapshotFormat = SnapshotCodec.Format
+			.of(json.optString(Fields.CODEC));
 
-		input = new Thread(() -> {
+		// confirm the format before anything is sent in it
+		if (format != WireFormat.JSON) {
+			dos.writeUTF(server.getProtocolMessage(format));
+			dos.flush();
+		}
+
+		input = threadFactory.newThread(() -> {
 			while (true) {
 				if (isTerminated()) {
 					break;
 				}
 
 				try {
-					String in = dis.readUTF();
+					Object in = format == WireFormat.BINARY
+						? BinaryCodec.read(dis,
+							BinaryCodec.MAX_CLIENT_FRAME_LENGTH)
+						: dis.readUTF();
 
-					if (!isStarted()) {
-						return;
+					if (in instanceof DrawOp) {
+						server.recieve((DrawOp) in, this);
+					} else {
+						server.recieve(in.toString(), this);
 					}
-
-					server.recieve(in, this);
 				} catch (IOException ioe) {
 					break;
 				}
 			}
 
 			terminate();
-			server.updateUsers();
+			server.removeUser(this);
 		});
 
-		input.start();
+		output = threadFactory.newThread(() -> {
+			try {
+				Message message = outbound.take();
+				while (message != null) {
+					// small frames are batched into a single write, larger
+					// frames are written directly
+					byte[] frame = frame(message);
+					if (frame != null) {
+						dos.write(frame);
+						sent.increment();
+						bytesWritten.add(frame.length);
+					}
+
+					message = outbound.poll();
+					if (message == null) {
+						dos.flush();
+						message = outbound.take();
+					}
+				}
+			} catch (InterruptedException ignored) {
+			} catch (IOException ioe) {
+				terminate();
+				server.removeUser(this);
+			}
+		});
 	}
 
 	@Override
@@ -84,68 +163,155 @@ public class ClientUser implements IUser {
 		return uuid;
 	}
 
+	@Override
+	public SnapshotCodec.Format getSnapshotFormat() {
+		return snapshotFormat;
+	}
+
 	@Override
 	public void send(String message) {
-		if (isTerminated()) {
-			return;
+		send(Message.of(message));
+	}
+
+	@Override
+	public void send(Message message) {
+		if (!isTerminated() && !outbound.offer(message)) {
+			disconnectSlow();
 		}
+	}
 
-		pool.execute(() -> {
-			try {
-				dos.writeUTF(message);
-			} catch (IOException ioe) {
-				terminate();
-				server.updateUsers();
-			}
-		});
+	@Override
+	public void stream(List<Message> messages) {
+		if (!isTerminated() && !outbound.offer(messages)) {
+			disconnectSlow();
+		}
 	}
 
+	@Override
+	public void replay(List<Message> messages) {
+		if (!isTerminated() && !outbound.offer(messages, true)) {
+			disconnectSlow();
+		}
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return outbound.size();
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return outbound.getDropped();
+	}
+
+	@Override
+	public long getCoalescedCount() {
+		return outbound.getCoalesced();
+	}
+
+	/**
+	 * Gets the frame of a message in the user's format. The frame is shared
+	 * with every other user it is sent to
+	 * 
+	 * @param message Message
+	 * @return byte[], {@code null} if the message can not be encoded
+	 */
+	private byte[] frame(Message message) {
+		try {
+			return format == WireFormat.BINARY ? message.getBinary()
+				: message.getUTF();
+		} catch (IOException ioe) {
+			server.getLog().warn("message dropped", Fields.UUID, uuid,
+				"error", ioe.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Disconnects this user as they have fallen too far behind
+	 */
+	private void disconnectSlow() {
+		server.getLog().warn("disconnecting slow user",
+			Fields.USERNAME, username, Fields.UUID, uuid);
+		terminate();
+		server.removeUser(this);
+	}
+
+	/**
+	 * Starts reading from and writing to the user. Until then, a user waiting
+	 * to join does not use any threads
+	 */
 	@Override
 	public void start() {
-		synchronized (started) {
+		stateLock.lock();
+		try {
+			if (started || terminated) {
+				return;
+			}
 			started = true;
+
+			// started with the lock held, so terminating interrupts them
+			input.start();
+			output.start();
+		} finally {
+			stateLock.unlock();
 		}
 	}
 
 	@Override
 	public boolean terminate() {
-		synchronized (terminated) {
+		stateLock.lock();
+		try {
 			if (terminated) {
 				return true;
 			}
-
 			terminated = true;
+		} finally {
+			stateLock.unlock();
+		}
 
-			try {
-				input.interrupt();
-			} catch (Exception ignored) {
-			}
-			try {
-				dis.close();
-			} catch (Exception ignored) {
-			}
-			try {
-				dos.close();
-			} catch (Exception ignored) {
-			}
-			try {
-				socket.close();
-			} catch (Exception ignored) {
-			}
-			pool.shutdown();
-
+		try {
+			input.interrupt();
+		} catch (Exception ignored) {
+		}
+		try {
+			output.interrupt();
+		} catch (Exception ignored) {
 		}
+		try {
+			dis.close();
+		} catch (Exception ignored) {
+		}
+		try {
+			dos.close();
+		} catch (Exception ignored) {
+		}
+		try {
+			socket.close();
+		} catch (Exception ignored) {
+		}
+		outbound.close();
 
 		return true;
 	}
 
 	@Override
-	public synchronized boolean isTerminated() {
-		return terminated;
+	public boolean isTerminated() {
+		stateLock.lock();
+		try {
+			return terminated;
+		} finally {
+			stateLock.unlock();
+		}
 	}
 
-	public synchronized boolean isStarted() {
-		return started;
+	public boolean isStarted() {
+		stateLock.lock();
+		try {
+			return started;
+		} finally {
+			stateLock.unlock();
+		}
 	}
 
 //	public void restartPool() {
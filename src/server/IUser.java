@@ -1,5 +1,9 @@
 package server;
 
+import java.util.List;
+
+import common.SnapshotCodec;
+
 /**
  * An interface used by classes that store user information/interact with a user
  * 
@@ -27,6 +31,74 @@ public interface IUser {
 	 */
 	public void send(String message);
 
+	/**
+	 * Sends a message to the user, in whichever format the user understands
+	 * 
+	 * @param message Message
+	 */
+	public default void send(Message message) {
+		send(message.getJSON());
+	}
+
+	/**
+	 * Sends a stream of messages to the user, in order. Other messages may be
+	 * sent in between them, so a long stream does not hold up everything else
+	 * 
+	 * @param messages List
+	 */
+	public default void stream(List<Message> messages) {
+		messages.forEach(this::send);
+	}
+
+	/**
+	 * Sends a stream of messages to the user, in order. Nothing sent after
+	 * them is sent in between, so a replay of missed drawings arrives before
+	 * any later drawing
+	 * 
+	 * @param messages List
+	 */
+	public default void replay(List<Message> messages) {
+		messages.forEach(this::send);
+	}
+
+	/**
+	 * Gets the format the user asked for snapshot images in
+	 * 
+	 * @return SnapshotCodec.Format
+	 */
+	public default SnapshotCodec.Format getSnapshotFormat() {
+		return SnapshotCodec.Format.PNG;
+	}
+
+	/**
+	 * Gets the number of messages (or streams) waiting to be sent to the user
+	 * 
+	 * @return int
+	 */
+	public default int getQueueDepth() {
+		return 0;
+	}
+
+	/**
+	 * Gets the number of messages that were dropped because the user fell too
+	 * far behind
+	 * 
+	 * @return long
+	 */
+	public default long getDroppedCount() {
+		return 0;
+	}
+
+	/**
+	 * Gets the number of drawings that were coalesced into catch ups because
+	 * the user fell too far behind
+	 * 
+	 * @return long
+	 */
+	public default long getCoalescedCount() {
+		return 0;
+	}
+
 	/**
 	 * Starts the user. This is used to start communication with the user
 	 */
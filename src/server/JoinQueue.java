@@ -0,0 +1,397 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The users waiting for the manager to let them join. Joining never blocks a
+ * thread: a user that completes their handshake is either approved straight
+ * away by an auto-approve rule, or waits here until the manager approves or
+ * rejects them, or until they time out. Any number of waiting users can be
+ * approved at once.
+ *
+ * Approved users are admitted on the queue's own thread, in batches, so a
+ * storm of joins is admitted by a single thread
+ */
+public class JoinQueue {
+	public static final long DEFAULT_HANDSHAKE_TIMEOUT_MS = 10 * 1000;
+	public static final long DEFAULT_APPROVAL_TIMEOUT_MS = 2 * 60 * 1000;
+
+	private final Consumer<List<IUser>> admit;
+	private final Runnable changed;
+	private final Log log;
+	private final ScheduledExecutorService timer;
+
+	private final Lock lock = new ReentrantLock();
+	/** the users waiting for approval, by uuid, in the order they joined */
+	private final Map<Integer, Pending> pending = new LinkedHashMap<>();
+	/** the usernames that are always approved */
+	private final Set<String> allowed = new HashSet<>();
+	/** whether every user is approved */
+	private boolean open = false;
+	/** the number of users left to approve without asking */
+	private int approveFirst = 0;
+
+	private volatile long handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT_MS;
+	private volatile long approvalTimeout = DEFAULT_APPROVAL_TIMEOUT_MS;
+
+	/**
+	 * Creates an empty JoinQueue
+	 *
+	 * @param admit   Consumer, admits a batch of approved users. Only called
+	 *                from the queue's thread
+	 * @param changed Runnable, run whenever the users waiting change
+	 * @param log     Log, of errors admitting users
+	 */
+	public JoinQueue(Consumer<List<IUser>> admit, Runnable changed, Log log) {
+		this.admit = admit;
+		this.changed = changed;
+		this.log = log;
+		this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "join-queue");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Adds a user that has completed their handshake. They are admitted if an
+	 * auto-approve rule allows it, otherwise they wait for the manager
+	 *
+	 * @param user IUser
+	 */
+	public void submit(IUser user) {
+		boolean approved;
+		lock.lock();
+		try {
+			approved = isApprovedAutomatically(user.getUsername());
+			if (!approved) {
+				pending.put(user.getUUID(), new Pending(user, timer.schedule(
+					() -> expire(user),
+					approvalTimeout,
+					TimeUnit.MILLISECONDS)));
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (approved) {
+			admitLater(List.of(user));
+		} else {
+			changed.run();
+		}
+	}
+
+	/**
+	 * Approves a waiting user
+	 *
+	 * @param uuid int
+	 * @return boolean, {@code false} if the user was not waiting
+	 */
+	public boolean approve(int uuid) {
+		IUser user = take(uuid);
+		if (user == null) {
+			return false;
+		}
+
+		admitLater(List.of(user));
+		changed.run();
+		return true;
+	}
+
+	/**
+	 * Approves every waiting user, admitting them as a single batch
+	 *
+	 * @return int, the number of users approved
+	 */
+	public int approveAll() {
+		List<IUser> approved = takeAll();
+		if (approved.isEmpty()) {
+			return 0;
+		}
+
+		admitLater(approved);
+		changed.run();
+		return approved.size();
+	}
+
+	/**
+	 * Rejects a waiting user, disconnecting them
+	 *
+	 * @param uuid int
+	 * @return boolean, {@code false} if the user was not waiting
+	 */
+	public boolean reject(int uuid) {
+		IUser user = take(uuid);
+		if (user == null) {
+			return false;
+		}
+
+		user.terminate();
+		changed.run();
+		return true;
+	}
+
+	/**
+	 * Removes a user that disconnected while waiting
+	 *
+	 * @param user IUser
+	 */
+	public void withdraw(IUser user) {
+		lock.lock();
+		try {
+			Pending entry = pending.get(user.getUUID());
+			if (entry == null || entry.user != user) {
+				return;
+			}
+
+			pending.remove(user.getUUID());
+			entry.timeout.cancel(false);
+		} finally {
+			lock.unlock();
+		}
+
+		changed.run();
+	}
+
+	/**
+	 * Gets the users waiting for approval, in the order they joined
+	 *
+	 * @return List
+	 */
+	public List<IUser> getPending() {
+		lock.lock();
+		try {
+			List<IUser> users = new ArrayList<>(pending.size());
+			pending.values().forEach(entry -> users.add(entry.user));
+			return users;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Terminates the user if they have not completed their handshake within
+	 * the handshake timeout, so a connection that never sends its handshake is
+	 * not kept open
+	 *
+	 * @param user IUser, with no username until their handshake is complete
+	 */
+	public void expireHandshake(IUser user) {
+		timer.schedule(() -> {
+			if (user.getUsername() == null) {
+				user.terminate();
+			}
+		}, handshakeTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets whether every user is approved without asking. Opening the room
+	 * approves everyone already waiting
+	 *
+	 * @param open boolean
+	 */
+	public void setOpen(boolean open) {
+		lock.lock();
+		try {
+			this.open = open;
+		} finally {
+			lock.unlock();
+		}
+
+		if (open) {
+			approveAll();
+		}
+	}
+
+	/**
+	 * @return whether every user is approved without asking
+	 */
+	public boolean isOpen() {
+		lock.lock();
+		try {
+			return open;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Always approves users with the specified username
+	 *
+	 * @param username String
+	 */
+	public void allow(String username) {
+		lock.lock();
+		try {
+			allowed.add(username);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Approves the next {@code count} users without asking
+	 *
+	 * @param count int
+	 */
+	public void setApproveFirst(int count) {
+		lock.lock();
+		try {
+			approveFirst = Math.max(0, count);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the time a connection has to complete its handshake
+	 */
+	public long getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+
+	/**
+	 * Sets the time a connection has to complete its handshake
+	 *
+	 * @param timeout long, milliseconds
+	 */
+	public void setHandshakeTimeout(long timeout) {
+		this.handshakeTimeout = timeout;
+	}
+
+	/**
+	 * Sets the time a user waits for approval before they are rejected
+	 *
+	 * @param timeout long, milliseconds
+	 */
+	public void setApprovalTimeout(long timeout) {
+		this.approvalTimeout = timeout;
+	}
+
+	/**
+	 * Rejects every waiting user, and stops the queue's thread
+	 */
+	public void close() {
+		timer.shutdownNow();
+		takeAll().forEach(IUser::terminate);
+	}
+
+	/**
+	 * Checks the auto-approve rules for a user. Called with the lock held
+	 *
+	 * @param username String
+	 * @return boolean
+	 */
+	private boolean isApprovedAutomatically(String username) {
+		if (open || allowed.contains(username)) {
+			return true;
+		}
+
+		if (approveFirst > 0) {
+			approveFirst--;
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Rejects a user whose approval timed out
+	 *
+	 * @param user IUser
+	 */
+	private void expire(IUser user) {
+		lock.lock();
+		try {
+			Pending entry = pending.get(user.getUUID());
+			if (entry == null || entry.user != user) {
+				return;
+			}
+
+			pending.remove(user.getUUID());
+		} finally {
+			lock.unlock();
+		}
+
+		user.terminate();
+		changed.run();
+	}
+
+	private IUser take(int uuid) {
+		lock.lock();
+		try {
+			Pending entry = pending.remove(uuid);
+			if (entry == null) {
+				return null;
+			}
+
+			entry.timeout.cancel(false);
+			return entry.user;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private List<IUser> takeAll() {
+		lock.lock();
+		try {
+			List<IUser> users = new ArrayList<>(pending.size());
+			for (Pending entry : pending.values()) {
+				entry.timeout.cancel(false);
+				users.add(entry.user);
+			}
+			pending.clear();
+
+			return users;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Admits a batch of approved users on the queue's thread
+	 *
+	 * @param users List
+	 */
+	private void admitLater(List<IUser> users) {
+		try {
+			timer.execute(() -> {
+				try {
+					admit.accept(users);
+				} catch (RuntimeException re) {
+					log.error("users not admitted", "users", users.size(),
+						"error", re.getMessage());
+					users.forEach(IUser::terminate);
+				}
+			});
+		} catch (RuntimeException re) {
+			// the queue is closed
+			users.forEach(IUser::terminate);
+		}
+	}
+
+	/**
+	 * A user waiting for approval, and when they time out
+	 */
+	private static class Pending {
+		private final IUser user;
+		private final ScheduledFuture<?> timeout;
+
+		private Pending(IUser user, ScheduledFuture<?> timeout) {
+			this.user = user;
+			this.timeout = timeout;
+		}
+	}
+}
@@ -0,0 +1,566 @@
+package server;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import common.BinaryCodec;
+import common.DrawOp;
+import common.Fields;
+import common.SnapshotCodec;
+
+/**
+ * A durable, append-only journal of every change made to the board, so the
+ * board survives the server's process dying. Each change is appended as the
+ * binary frame of the message that was broadcast for it, followed by the
+ * frame's CRC32, to the current segment file.
+ *
+ * Appending only queues the message. The journal's own thread writes whatever
+ * has queued up and forces it to disk in one go (group commit), so fsyncs
+ * never hold up broadcasts, and a busy board needs far fewer of them. A
+ * change is durable once its group is committed, a few milliseconds later.
+ *
+ * Every checkpointInterval changes, and after the board is replaced, the
+ * board's tiles are checkpointed, from the SnapshotCache's RLE encoding of
+ * them, so only the tiles that changed are encoded again and a board of any
+ * size is checkpointed without copying it whole. Then a new segment is
+ * started and the older segments and checkpoint are deleted. Recovery loads
+ * the latest checkpoint and replays the changes after it, so it takes as long
+ * as replaying at most checkpointInterval changes, however long the session
+ * has been
+ */
+public class Journal {
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+	/** a segment longer than this is ended, even between checkpoints */
+	private static final long MAX_SEGMENT_LENGTH = 64L * 1024 * 1024;
+	private static final int CRC_LENGTH = 4;
+
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String CHECKPOINT_PREFIX = "checkpoint-";
+	private static final String CHECKPOINT_SUFFIX = ".img";
+	private static final String TEMP_SUFFIX = ".tmp";
+	/** begins a checkpoint of tiles, "WBC1" */
+	private static final int CHECKPOINT_MAGIC = 0x57424331;
+
+	private final Path directory;
+	private final int checkpointInterval;
+	private final Log log;
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	/** the messages waiting to be written */
+	private List<Message> pending = new ArrayList<>();
+	private boolean closed = false;
+
+	/** the rest is only accessed by the journal's thread, once started */
+	private BoardModel board;
+	private SnapshotCache snapshots;
+	private Thread writer;
+	private FileChannel segment;
+	private long segmentIndex = 0;
+	private long segmentLength = 0;
+	private int sinceCheckpoint = 0;
+	private boolean checkpointDue = false;
+	private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	private final CRC32 crc = new CRC32();
+
+	private final Metrics.Counter records;
+	private final Metrics.Histogram groupSize;
+	private final Metrics.Histogram commitTime;
+	private final Metrics.Histogram checkpointTime;
+
+	/**
+	 * Creates a Journal kept in {@code directory}. Nothing is read or written
+	 * until it is recovered
+	 *
+	 * @param directory          Path, created if it does not exist
+	 * @param checkpointInterval int, the most changes between checkpoints
+	 * @param metrics            Metrics, where the records, commits and
+	 *                           checkpoints are recorded
+	 * @param log                Log, of corrupt files and write errors
+	 */
+	public Journal(Path directory, int checkpointInterval, Metrics metrics,
+		Log log) {
+		this.directory = directory;
+		this.checkpointInterval = Math.max(1, checkpointInterval);
+		this.log = log;
+		this.records = metrics.counter("journal.records");
+		this.groupSize = metrics.histogram("journal.group.size");
+		this.commitTime = metrics.histogram("journal.commit.ns");
+		this.checkpointTime = metrics.histogram("journal.checkpoint.ns");
+		metrics.gauge("journal.pending", this::getPending);
+	}
+
+	/**
+	 * Restores {@code board} to its state when the journal was last written,
+	 * from the latest checkpoint and the changes after it, then checkpoints
+	 * it and starts journaling. Changes are replayed up to the first record
+	 * that is torn or corrupt, which can only be in the last group written
+	 * before a crash
+	 *
+	 * @param board     BoardModel, blank, which changes are then journaled
+	 *                  for
+	 * @param snapshots SnapshotCache, of the board, which checkpoints are
+	 *                  written from
+	 * @return long, the number of changes replayed
+	 *
+	 * @throws IOException if the journal can not be read or started
+	 */
+	public long recover(BoardModel board, SnapshotCache snapshots)
+		throws IOException {
+		this.board = board;
+		this.snapshots = snapshots;
+		Files.createDirectories(directory);
+
+		TreeMap<Long, Path> checkpoints = list(CHECKPOINT_PREFIX,
+			CHECKPOINT_SUFFIX);
+		for (Long version : checkpoints.descendingKeySet()) {
+			if (restore(checkpoints.get(version), version, board)) {
+				break;
+			}
+			log.warn("corrupt checkpoint skipped",
+				"path", checkpoints.get(version).toString());
+			board.restore(0);
+		}
+
+		long checkpointed = board.getVersion();
+		TreeMap<Long, Path> segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+		for (Path path : segments.values()) {
+			if (!replay(path, board)) {
+				break;
+			}
+		}
+		long replayed = board.getVersion() - checkpointed;
+
+		segmentIndex = segments.isEmpty() ? 0 : segments.lastKey();
+		checkpoint();
+
+		writer = new Thread(this::write, "journal");
+		writer.setDaemon(true);
+		writer.start();
+
+		return replayed;
+	}
+
+	/**
+	 * Queues a change to be journaled. Changes must be appended in version
+	 * order. This never waits for the disk
+	 *
+	 * @param message Message, a stamped drawing, or a "board" message with
+	 *                the version ("seq") that replaced the board
+	 */
+	public void append(Message message) {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			pending.add(message);
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of changes waiting to be written
+	 *
+	 * @return int
+	 */
+	public int getPending() {
+		lock.lock();
+		try {
+			return pending.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Commits every change appended so far, then stops the journal. Later
+	 * changes are ignored
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		if (writer != null) {
+			try {
+				writer.join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Commits groups of changes as they are appended, until the journal is
+	 * closed. If the journal can not be written, it stops and changes are no
+	 * longer journaled
+	 */
+	private void write() {
+		try {
+			while (true) {
+				List<Message> group;
+
+				lock.lock();
+				try {
+					while (pending.isEmpty() && !closed) {
+						available.awaitUninterruptibly();
+					}
+					if (pending.isEmpty()) {
+						return;
+					}
+
+					group = pending;
+					pending = new ArrayList<>();
+				} finally {
+					lock.unlock();
+				}
+
+				// a group never spans a checkpoint, so no more than
+				// checkpointInterval changes are ever replayed
+				int from = 0;
+				while (from < group.size()) {
+					int to = (int) Math.min(group.size(),
+						(long) from + checkpointInterval - sinceCheckpoint);
+					commit(group.subList(from, to));
+					from = to;
+
+					if (sinceCheckpoint >= checkpointInterval
+						|| checkpointDue) {
+						checkpoint();
+					} else if (segmentLength >= MAX_SEGMENT_LENGTH) {
+						startSegment();
+					}
+				}
+			}
+		} catch (IOException ioe) {
+			log.error("journal write failed, no longer journaling",
+				"error", ioe.getMessage());
+
+			lock.lock();
+			try {
+				closed = true;
+				pending.clear();
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			try {
+				segment.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Writes a group of changes to the current segment, and forces them to
+	 * disk
+	 *
+	 * @param group List
+	 *
+	 * @throws IOException
+	 */
+	private void commit(List<Message> group) throws IOException {
+		int length = 0;
+		for (Message message : group) {
+			length += message.getBinary().length + CRC_LENGTH;
+			checkpointDue |= message.getDrawing() == null;
+		}
+		if (buffer.capacity() < length) {
+			buffer = ByteBuffer
+				.allocate(Math.max(length, 2 * buffer.capacity()));
+		}
+
+		buffer.clear();
+		for (Message message : group) {
+			byte[] frame = message.getBinary();
+			crc.reset();
+			crc.update(frame, 0, frame.length);
+			buffer.put(frame).putInt((int) crc.getValue());
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			segment.write(buffer);
+		}
+
+		long start = System.nanoTime();
+		segment.force(false);
+		commitTime.recordSince(start);
+
+		segmentLength += length;
+		sinceCheckpoint += group.size();
+		records.add(group.size());
+		groupSize.record(group.size());
+	}
+
+	/**
+	 * Writes the board's tiles to a checkpoint and starts a new segment, then
+	 * deletes the segments and checkpoints it replaces. Every change already
+	 * written is in the checkpoint, as changes are applied to the board before
+	 * they are appended.
+	 *
+	 * A checkpoint is CHECKPOINT_MAGIC, the tile size, the number of columns
+	 * of tiles and the number of tiles that are not blank, then the index,
+	 * length and encoding of each of those tiles
+	 *
+	 * @throws IOException
+	 */
+	private void checkpoint() throws IOException {
+		long start = System.nanoTime();
+		SnapshotCache.Tiles tiles;
+		try {
+			tiles = snapshots.getTiles(SnapshotCodec.Format.RLE);
+		} catch (IllegalStateException ise) {
+			throw new IOException("Board could not be encoded", ise);
+		}
+
+		int count = 0;
+		for (int tile = 0; tile < tiles.getTileCount(); tile++) {
+			if (tiles.getImage(tile) != null) {
+				count++;
+			}
+		}
+
+		Path path = directory.resolve(name(CHECKPOINT_PREFIX,
+			tiles.getVersion(), CHECKPOINT_SUFFIX));
+		Path temp = directory.resolve(path.getFileName() + TEMP_SUFFIX);
+		try (FileChannel channel = FileChannel.open(temp,
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING)) {
+			DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Channels.newOutputStream(channel)));
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeInt(BoardModel.TILE_SIZE);
+			out.writeInt(tiles.getColumns());
+			out.writeInt(count);
+			for (int tile = 0; tile < tiles.getTileCount(); tile++) {
+				byte[] image = tiles.getImage(tile);
+				if (image != null) {
+					out.writeInt(tile);
+					out.writeInt(image.length);
+					out.write(image);
+				}
+			}
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+			StandardCopyOption.REPLACE_EXISTING);
+
+		startSegment();
+		for (Path old : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)
+			.headMap(segmentIndex).values()) {
+			Files.deleteIfExists(old);
+		}
+		for (Path old : list(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX)
+			.headMap(tiles.getVersion()).values()) {
+			Files.deleteIfExists(old);
+		}
+
+		sinceCheckpoint = 0;
+		checkpointDue = false;
+		checkpointTime.recordSince(start);
+	}
+
+	/**
+	 * Ends the current segment, if there is one, and starts the next
+	 *
+	 * @throws IOException
+	 */
+	private void startSegment() throws IOException {
+		if (segment != null) {
+			segment.close();
+		}
+
+		segmentIndex++;
+		segment = FileChannel.open(
+			directory.resolve(
+				name(SEGMENT_PREFIX, segmentIndex, SEGMENT_SUFFIX)),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+		segmentLength = 0;
+	}
+
+	/**
+	 * Restores the board from a checkpoint. Checkpoints written before they
+	 * were tiled are a single image of the board
+	 *
+	 * @param path    Path, of the checkpoint
+	 * @param version long, the version of the board in the checkpoint
+	 * @param board   BoardModel
+	 * @return boolean, {@code false} if the checkpoint is corrupt
+	 *
+	 * @throws IOException if the checkpoint can not be read
+	 */
+	private static boolean restore(Path path, long version, BoardModel board)
+		throws IOException {
+		try (DataInputStream in = new DataInputStream(
+			new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != CHECKPOINT_MAGIC) {
+				BufferedImage image = SnapshotCodec
+					.fromBytes(Files.readAllBytes(path));
+				if (image == null) {
+					return false;
+				}
+
+				board.restore(image, version);
+				return true;
+			}
+
+			int tileSize = in.readInt();
+			int columns = in.readInt();
+			int count = in.readInt();
+			if (tileSize <= 0 || columns <= 0 || count < 0) {
+				return false;
+			}
+
+			board.restore(version);
+			for (int i = 0; i < count; i++) {
+				int tile = in.readInt();
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+
+				BufferedImage image = SnapshotCodec.fromBytes(bytes);
+				if (image == null) {
+					return false;
+				}
+				board.restore((tile % columns) * tileSize,
+					(tile / columns) * tileSize, image);
+			}
+		} catch (EOFException | NegativeArraySizeException e) {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Applies the changes in a segment that are newer than the board
+	 *
+	 * @param path  Path, of the segment
+	 * @param board BoardModel
+	 * @return boolean, {@code false} if the segment ends in a torn or corrupt
+	 *         record, so no later segment follows on from it
+	 *
+	 * @throws IOException if the segment can not be read
+	 */
+	private boolean replay(Path path, BoardModel board)
+		throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+		CRC32 crc = new CRC32();
+
+		while (in.hasRemaining()) {
+			Object change;
+			try {
+				int length = BinaryCodec.frameLength(in);
+				if (length < 0 || in.remaining() < length + CRC_LENGTH) {
+					throw new IOException("Torn record");
+				}
+
+				crc.reset();
+				crc.update(in.array(), in.position(), length);
+				if (in.getInt(in.position() + length) != (int) crc.getValue()) {
+					throw new IOException("Bad checksum");
+				}
+
+				change = BinaryCodec.decode(in);
+				in.getInt();
+			} catch (IOException ioe) {
+				log.warn("journal segment ends early",
+					"path", path.getFileName().toString(),
+					"position", in.position(), "error", ioe.getMessage());
+				return false;
+			}
+
+			apply(change, board);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Applies a journaled change, if it is newer than the board
+	 *
+	 * @param change Object, a DrawOp, or a "board" message
+	 * @param board  BoardModel
+	 */
+	private static void apply(Object change, BoardModel board) {
+		if (change instanceof DrawOp) {
+			DrawOp drawing = (DrawOp) change;
+			if (drawing.getSeq() > board.getVersion()) {
+				board.apply(drawing);
+			}
+			return;
+		}
+
+		try {
+			JSONObject json = new JSONObject((String) change);
+			if (json.optLong(Fields.SEQ) > board.getVersion()) {
+				board.setBoard(json.optString(Fields.BOARD));
+			}
+		} catch (JSONException | ClassCastException ignored) {
+		}
+	}
+
+	/**
+	 * Lists the files in the journal's directory with a prefix and suffix, by
+	 * the number between them
+	 *
+	 * @param prefix String
+	 * @param suffix String
+	 * @return TreeMap
+	 *
+	 * @throws IOException
+	 */
+	private TreeMap<Long, Path> list(String prefix, String suffix)
+		throws IOException {
+		TreeMap<Long, Path> files = new TreeMap<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+			prefix + "*" + suffix)) {
+			for (Path path : stream) {
+				String name = path.getFileName().toString();
+				try {
+					files.put(Long.parseLong(name.substring(prefix.length(),
+						name.length() - suffix.length())), path);
+				} catch (NumberFormatException ignored) {
+				}
+			}
+		}
+
+		return files;
+	}
+
+	private static String name(String prefix, long number, String suffix) {
+		return String.format("%s%020d%s", prefix, number, suffix);
+	}
+}
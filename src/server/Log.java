@@ -0,0 +1,415 @@
+package server;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONObject;
+
+/**
+ * An asynchronous, structured log. Logging a line only copies its fields into
+ * a fixed size ring buffer, and a background thread formats and writes them,
+ * so a slow console never holds up the thread that logged. If the writer
+ * falls so far behind that the buffer fills, new lines are dropped and
+ * counted rather than waited for.
+ *
+ * Each line is written as a JSON object with its time, level and event, and
+ * any number of fields. Long string fields are truncated when they are logged,
+ * so the buffer never holds on to large payloads, and any other long field is
+ * truncated once it is formatted
+ */
+public class Log {
+	public static final int DEFAULT_CAPACITY = 8192;
+	/** the most characters of a string field that are logged */
+	public static final int MAX_VALUE_LENGTH = 256;
+
+	/**
+	 * Enumeration of the levels of a line, in increasing severity
+	 */
+	public enum Level {
+		DEBUG,
+		INFO,
+		WARN,
+		ERROR;
+	}
+
+	private static final String TIME = "time";
+	private static final String LEVEL = "level";
+	private static final String EVENT = "event";
+	private static final String DROPPED = "dropped";
+
+	private final PrintStream out;
+	private final Entry[] ring;
+	private volatile Level level = Level.INFO;
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private final Condition drained = lock.newCondition();
+	/** the index of the oldest entry */
+	private int head = 0;
+	private int size = 0;
+	/** whether the writer is writing entries it has taken */
+	private boolean writing = false;
+	private long dropped = 0;
+	private boolean closed = false;
+
+	private final Thread writer;
+
+	/**
+	 * Creates a Log that writes to {@code out}, with the default capacity
+	 *
+	 * @param out PrintStream
+	 */
+	public Log(PrintStream out) {
+		this(out, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a Log that writes to {@code out}
+	 *
+	 * @param out      PrintStream
+	 * @param capacity int, the number of lines that can be waiting to be
+	 *                 written
+	 */
+	public Log(PrintStream out, int capacity) {
+		this.out = out;
+		this.ring = new Entry[Math.max(1, capacity)];
+		for (int i = 0; i < ring.length; i++) {
+			ring[i] = new Entry();
+		}
+
+		this.writer = new Thread(this::write, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Sets the least severe level that is logged
+	 *
+	 * @param level Level
+	 */
+	public void setLevel(Level level) {
+		this.level = level;
+	}
+
+	/**
+	 * @return the least severe level that is logged
+	 */
+	public Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * Checks if lines at a level are logged. Callers can check this before
+	 * doing any work to build a line
+	 *
+	 * @param level Level
+	 * @return boolean
+	 */
+	public boolean isEnabled(Level level) {
+		return level.compareTo(this.level) >= 0;
+	}
+
+	/**
+	 * Logs a line, if its level is enabled. This never waits for the line to
+	 * be written
+	 *
+	 * @param level  Level
+	 * @param event  String, what happened
+	 * @param fields Object..., alternating names and values
+	 */
+	public void log(Level level, String event, Object... fields) {
+		if (!isEnabled(level)) {
+			return;
+		}
+
+		long time = System.currentTimeMillis();
+		truncate(fields);
+
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+
+			if (size == ring.length) {
+				dropped++;
+				return;
+			}
+
+			Entry entry = ring[(head + size) % ring.length];
+			entry.time = time;
+			entry.level = level;
+			entry.event = event;
+			entry.fields = fields;
+
+			if (size++ == 0) {
+				available.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Logs a line at DEBUG
+	 *
+	 * @param event  String
+	 * @param fields Object..., alternating names and values
+	 */
+	public void debug(String event, Object... fields) {
+		log(Level.DEBUG, event, fields);
+	}
+
+	/**
+	 * Logs a line at INFO
+	 *
+	 * @param event  String
+	 * @param fields Object..., alternating names and values
+	 */
+	public void info(String event, Object... fields) {
+		log(Level.INFO, event, fields);
+	}
+
+	/**
+	 * Logs a line at WARN
+	 *
+	 * @param event  String
+	 * @param fields Object..., alternating names and values
+	 */
+	public void warn(String event, Object... fields) {
+		log(Level.WARN, event, fields);
+	}
+
+	/**
+	 * Logs a line at ERROR
+	 *
+	 * @param event  String
+	 * @param fields Object..., alternating names and values
+	 */
+	public void error(String event, Object... fields) {
+		log(Level.ERROR, event, fields);
+	}
+
+	/**
+	 * Gets the number of lines dropped because the buffer was full
+	 *
+	 * @return long
+	 */
+	public long getDropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until every line logged so far has been written
+	 *
+	 * @throws InterruptedException
+	 */
+	public void flush() throws InterruptedException {
+		lock.lock();
+		try {
+			while ((size > 0 || writing) && writer.isAlive()) {
+				drained.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes every line logged so far, then stops the writer. Later lines are
+	 * ignored
+	 */
+	public void close() {
+		try {
+			flush();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+
+		lock.lock();
+		try {
+			closed = true;
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Truncates long string fields, so only their start is kept
+	 *
+	 * @param fields Object[]
+	 */
+	private static void truncate(Object[] fields) {
+		for (int i = 1; i < fields.length; i += 2) {
+			if (fields[i] instanceof CharSequence) {
+				fields[i] = truncate((CharSequence) fields[i]);
+			}
+		}
+	}
+
+	/**
+	 * Truncates a long value, so only its start is kept
+	 *
+	 * @param value CharSequence
+	 * @return CharSequence, {@code value} if it is not too long
+	 */
+	private static CharSequence truncate(CharSequence value) {
+		if (value.length() <= MAX_VALUE_LENGTH) {
+			return value;
+		}
+
+		return String.format("%s... (%d chars)",
+			value.subSequence(0, MAX_VALUE_LENGTH), value.length());
+	}
+
+	/**
+	 * Writes lines as they are logged, until the log is closed. Entries are
+	 * taken from the ring in batches, and formatted without the lock held
+	 */
+	private void write() {
+		StringBuilder line = new StringBuilder();
+		long reported = 0;
+		Entry[] batch = new Entry[ring.length];
+		for (int i = 0; i < batch.length; i++) {
+			batch[i] = new Entry();
+		}
+
+		while (true) {
+			int count;
+			long lost;
+
+			lock.lock();
+			try {
+				writing = false;
+				drained.signalAll();
+				while (size == 0 && !closed) {
+					available.awaitUninterruptibly();
+				}
+				if (size == 0) {
+					return;
+				}
+
+				// swap the waiting entries with the batch's spent ones
+				count = size;
+				for (int i = 0; i < count; i++) {
+					int index = (head + i) % ring.length;
+					Entry entry = ring[index];
+					ring[index] = batch[i];
+					batch[i] = entry;
+				}
+				head = (head + count) % ring.length;
+				size = 0;
+				writing = true;
+
+				lost = dropped - reported;
+				reported = dropped;
+			} finally {
+				lock.unlock();
+			}
+
+			for (int i = 0; i < count; i++) {
+				out.println(batch[i].format(line));
+				batch[i].fields = null;
+			}
+			if (lost > 0) {
+				Entry entry = batch[0];
+				entry.time = System.currentTimeMillis();
+				entry.level = Level.WARN;
+				entry.event = "log lines dropped";
+				entry.fields = new Object[] { DROPPED, lost };
+				out.println(entry.format(line));
+				entry.fields = null;
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * Logs one line in every {@code rate}, for events too frequent to log
+	 * every time
+	 */
+	public static class Sampler {
+		private final int rate;
+		private final AtomicLong count = new AtomicLong();
+
+		/**
+		 * Creates a Sampler
+		 *
+		 * @param rate int, log one line in this many. 1 logs every line
+		 */
+		public Sampler(int rate) {
+			this.rate = Math.max(1, rate);
+		}
+
+		/**
+		 * Checks if the next line should be logged
+		 *
+		 * @return boolean
+		 */
+		public boolean next() {
+			return count.getAndIncrement() % rate == 0;
+		}
+
+		/**
+		 * @return the number of lines each logged line stands for
+		 */
+		public int getRate() {
+			return rate;
+		}
+	}
+
+	/**
+	 * A line waiting to be written
+	 */
+	private static class Entry {
+		private long time;
+		private Level level;
+		private String event;
+		private Object[] fields;
+
+		/**
+		 * Formats this line as a JSON object, with its time, level and event
+		 * first
+		 *
+		 * @param line StringBuilder, reused for every line
+		 * @return StringBuilder, {@code line}
+		 */
+		private StringBuilder format(StringBuilder line) {
+			line.setLength(0);
+			line.append('{');
+			append(line, TIME, Instant.ofEpochMilli(time).toString());
+			append(line.append(','), LEVEL, level.toString());
+			append(line.append(','), EVENT, event);
+			for (int i = 0; i + 1 < fields.length; i += 2) {
+				append(line.append(','), String.valueOf(fields[i]),
+					fields[i + 1]);
+			}
+
+			return line.append('}');
+		}
+
+		private static void append(StringBuilder line, String name,
+			Object value) {
+			line.append(JSONObject.quote(name)).append(':');
+			if (value == null) {
+				line.append("null");
+			} else if (value instanceof Number || value instanceof Boolean) {
+				line.append(value);
+			} else {
+				// objects such as drawings are only formatted here
+				line.append(JSONObject.quote(
+					truncate(value.toString()).toString()));
+			}
+		}
+	}
+}
@@ -1,11 +1,15 @@
 package server;
 
-import javax.swing.JOptionPane;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.util.List;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import common.DrawOp;
 import common.Fields;
+import common.SnapshotCodec;
 import gui.ClientGUI;
 import gui.GUIController;
 import gui.ManagerGUI;
@@ -35,6 +39,14 @@ public class Manager extends GUIController implements IUser {
 		return username;
 	}
 
+	/**
+	 * The manager's GUI understands every format, so it gets the fastest
+	 */
+	@Override
+	public SnapshotCodec.Format getSnapshotFormat() {
+		return SnapshotCodec.Format.RLE;
+	}
+
 	/**
 	 * Sends a message to the manager. As the manager is hosted locally, this
 	 * message is passed directly to the GUI
@@ -44,26 +56,71 @@ public class Manager extends GUIController implements IUser {
 		receive(message);
 	}
 
+	/**
+	 * Sends a message to the manager. Drawings are passed directly to the GUI
+	 * without being converted to JSON
+	 */
+	@Override
+	public void send(Message message) {
+		if (message.getDrawing() != null) {
+			super.receive(message.getDrawing());
+		} else {
+			receive(message.getJSON());
+		}
+	}
+
 	@Override
 	public int getUUID() {
 		return uuid;
 	}
 
 	/**
-	 * Asks the manager if they want to accept a new user
+	 * Shows the manager the users waiting to join
 	 * 
-	 * @param username String
+	 * @param pending List
+	 */
+	public void setPending(List<IUser> pending) {
+		gui.setPending(pending);
+	}
+
+	/**
+	 * Lets a waiting user join
 	 * 
-	 * @return boolean, true if accepted
+	 * @param uuid Integer
 	 */
-	public boolean checkAcceptNewUser(String username) {
-		return JOptionPane.showConfirmDialog(
-			gui,
-			String.format(
-				"Do you want to allow %s to join the whiteboard?",
-				username),
-			"New Connection",
-			JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION;
+	public void approve(Integer uuid) {
+		if (uuid == null) {
+			return;
+		}
+		server.getJoinQueue().approve(uuid);
+	}
+
+	/**
+	 * Lets every waiting user join
+	 */
+	public void approveAll() {
+		server.getJoinQueue().approveAll();
+	}
+
+	/**
+	 * Turns a waiting user away
+	 * 
+	 * @param uuid Integer
+	 */
+	public void reject(Integer uuid) {
+		if (uuid == null) {
+			return;
+		}
+		server.getJoinQueue().reject(uuid);
+	}
+
+	/**
+	 * Sets whether anyone can join without being approved
+	 * 
+	 * @param open boolean
+	 */
+	public void setOpen(boolean open) {
+		server.getJoinQueue().setOpen(open);
 	}
 
 	/**
@@ -72,7 +129,11 @@ public class Manager extends GUIController implements IUser {
 	 * @param message Object
 	 */
 	public void sendToServer(Object message) {
-		server.recieve(message.toString(), this);
+		if (message instanceof DrawOp) {
+			server.recieve((DrawOp) message, this);
+		} else {
+			server.recieve(message.toString(), this);
+		}
 	}
 
 	/**
@@ -109,13 +170,14 @@ public class Manager extends GUIController implements IUser {
 	}
 
 	/**
-	 * Gets the base 64 representation of the current state of the manager's
-	 * board
+	 * Gets the size of the manager's board, which all other boards should
+	 * match
 	 * 
-	 * @return String
+	 * @return Dimension
 	 */
-	public String getBoardString() {
-		return gui.getBoardString();
+	public Dimension getBoardSize() {
+		BufferedImage board = gui.getBoard();
+		return new Dimension(board.getWidth(), board.getHeight());
 	}
 
 	/**
@@ -127,8 +189,9 @@ public class Manager extends GUIController implements IUser {
 	}
 
 	public void receive(String message) {
+		JSONObject json;
 		try {
-			JSONObject json = new JSONObject(message);
+			json = new JSONObject(message);
 			if (Fields.RESYNC.equals(json.optString(Fields.COMMAND))) {
 				return;
 			}
@@ -136,6 +199,7 @@ public class Manager extends GUIController implements IUser {
 			return;
 		}
 
-		super.receive(message);
+		// already parsed, so the GUI doesn't parse it again
+		super.receive(json);
 	}
 }
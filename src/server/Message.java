@@ -0,0 +1,165 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+
+import common.BinaryCodec;
+import common.DrawOp;
+import common.WireFormat;
+
+/**
+ * A message being sent to users. Each representation (JSON, or a frame in
+ * either WireFormat) is only created when first needed, and is then shared by
+ * every user it is sent to
+ */
+public class Message {
+	private static final int UTF_HEADER_SIZE = 2;
+
+	private final DrawOp drawing;
+	/** create the JSON and binary representations, if they are not given */
+	private final Supplier<String> toJSON;
+	private final Supplier<byte[]> toBinary;
+
+	private volatile String json;
+	private volatile byte[] binary;
+	private volatile byte[] utf;
+
+	private Message(String json, DrawOp drawing) {
+		this.json = json;
+		this.drawing = drawing;
+		this.toJSON = null;
+		this.toBinary = null;
+	}
+
+	private Message(Supplier<String> toJSON, Supplier<byte[]> toBinary) {
+		this.drawing = null;
+		this.toJSON = toJSON;
+		this.toBinary = toBinary;
+	}
+
+	/**
+	 * Creates a Message from a JSON message
+	 *
+	 * @param json String
+	 * @return Message
+	 */
+	public static Message of(String json) {
+		return new Message(json, null);
+	}
+
+	/**
+	 * Creates a Message for a drawing
+	 *
+	 * @param drawing DrawOp
+	 * @return Message
+	 */
+	public static Message of(DrawOp drawing) {
+		return new Message(null, drawing);
+	}
+
+	/**
+	 * Creates a Message whose representations are created by Suppliers, when
+	 * first needed
+	 *
+	 * @param toJSON   Supplier, of the JSON message
+	 * @param toBinary Supplier, of the binary frame, {@code null} to send the
+	 *                 JSON message as a binary frame
+	 * @return Message
+	 */
+	public static Message of(Supplier<String> toJSON,
+		Supplier<byte[]> toBinary) {
+		return new Message(toJSON, toBinary);
+	}
+
+	/**
+	 * Gets the drawing carried by this message
+	 *
+	 * @return DrawOp, {@code null} if this is not a drawing
+	 */
+	public DrawOp getDrawing() {
+		return drawing;
+	}
+
+	/**
+	 * Gets the JSON representation of this message
+	 *
+	 * @return String
+	 */
+	public String getJSON() {
+		String json = this.json;
+		if (json == null) {
+			json = drawing != null ? drawing.toString() : toJSON.get();
+			this.json = json;
+		}
+
+		return json;
+	}
+
+	/**
+	 * Gets the binary frame for this message. Drawings and messages created
+	 * with a binary frame get their own compact frame, anything else is sent
+	 * as a JSON frame. The returned array is shared, and must not be modified
+	 *
+	 * @return byte[]
+	 */
+	public byte[] getBinary() {
+		byte[] binary = this.binary;
+		if (binary == null) {
+			if (drawing != null) {
+				binary = BinaryCodec.encode(drawing);
+			} else if (toBinary != null) {
+				binary = toBinary.get();
+			} else {
+				binary = BinaryCodec.encode(getJSON());
+			}
+			this.binary = binary;
+		}
+
+		return binary;
+	}
+
+	/**
+	 * Gets the writeUTF frame for this message. The returned array is shared,
+	 * and must not be modified
+	 *
+	 * @return byte[]
+	 *
+	 * @throws IOException if the message is too long for a writeUTF frame
+	 */
+	public byte[] getUTF() throws IOException {
+		byte[] utf = this.utf;
+		if (utf == null) {
+			String json = getJSON();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(
+				json.length() + UTF_HEADER_SIZE);
+			new DataOutputStream(baos).writeUTF(json);
+			utf = baos.toByteArray();
+			this.utf = utf;
+		}
+
+		return utf;
+	}
+
+	/**
+	 * Gets the frame for this message in the specified format, as a read-only
+	 * buffer of its own over the shared frame, so any number of connections
+	 * can write the same frame without copying it
+	 *
+	 * @param format WireFormat
+	 * @return ByteBuffer
+	 *
+	 * @throws IOException if the message is too long for a writeUTF frame
+	 */
+	public ByteBuffer getFrame(WireFormat format) throws IOException {
+		byte[] frame = format == WireFormat.BINARY ? getBinary() : getUTF();
+		return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+	}
+
+	@Override
+	public String toString() {
+		return getJSON();
+	}
+}
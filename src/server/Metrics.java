@@ -0,0 +1,401 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * A registry of counters, gauges and latency histograms, exported over JMX as
+ * a single MBean with an attribute for each. Recording is lock free and does
+ * not allocate: a counter is a LongAdder, and a histogram a fixed array of
+ * buckets. Gauges, percentiles and means are only worked out when read.
+ *
+ * A histogram named {@code name} is exported as the attributes
+ * {@code name.count}, {@code name.mean}, {@code name.p50}, {@code name.p90},
+ * {@code name.p99} and {@code name.max}
+ */
+public class Metrics implements DynamicMBean {
+	private static final String[] HISTOGRAM_STATISTICS = { "count", "mean",
+		"p50", "p90", "p99", "max" };
+
+	private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+	private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+	private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+	private ObjectName name = null;
+
+	/**
+	 * Gets the counter with the specified name, creating it if needed
+	 *
+	 * @param name String
+	 * @return Counter
+	 */
+	public Counter counter(String name) {
+		return counters.computeIfAbsent(name, ignored -> new Counter());
+	}
+
+	/**
+	 * Gets the histogram with the specified name, creating it if needed
+	 *
+	 * @param name String
+	 * @return Histogram
+	 */
+	public Histogram histogram(String name) {
+		return histograms.computeIfAbsent(name, ignored -> new Histogram());
+	}
+
+	/**
+	 * Adds a gauge, which is read whenever it is exported
+	 *
+	 * @param name  String
+	 * @param gauge LongSupplier
+	 */
+	public void gauge(String name, LongSupplier gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Removes a gauge, such as one of something that no longer exists
+	 *
+	 * @param name String
+	 */
+	public void removeGauge(String name) {
+		gauges.remove(name);
+	}
+
+	/**
+	 * Registers this registry with the platform MBean server
+	 *
+	 * @param name String, the MBean's object name
+	 *
+	 * @throws JMException if the registry could not be registered
+	 */
+	public void register(String name) throws JMException {
+		ObjectName objectName = new ObjectName(name);
+		ManagementFactory.getPlatformMBeanServer()
+			.registerMBean(this, objectName);
+		this.name = objectName;
+	}
+
+	/**
+	 * Unregisters this registry from the platform MBean server
+	 */
+	public void unregister() {
+		if (name == null) {
+			return;
+		}
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException ignored) {
+		}
+		name = null;
+	}
+
+	/**
+	 * Clears every histogram
+	 */
+	public void reset() {
+		histograms.values().forEach(Histogram::reset);
+	}
+
+	@Override
+	public Object getAttribute(String attribute)
+		throws AttributeNotFoundException {
+		Counter counter = counters.get(attribute);
+		if (counter != null) {
+			return counter.get();
+		}
+
+		LongSupplier gauge = gauges.get(attribute);
+		if (gauge != null) {
+			return gauge.getAsLong();
+		}
+
+		int dot = attribute.lastIndexOf('.');
+		Histogram histogram = dot < 0 ? null
+			: histograms.get(attribute.substring(0, dot));
+		if (histogram != null) {
+			switch (attribute.substring(dot + 1)) {
+			case "count":
+				return histogram.getCount();
+			case "mean":
+				return histogram.getMean();
+			case "p50":
+				return histogram.getPercentile(0.5);
+			case "p90":
+				return histogram.getPercentile(0.9);
+			case "p99":
+				return histogram.getPercentile(0.99);
+			case "max":
+				return histogram.getMax();
+			}
+		}
+
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException ignored) {
+			}
+		}
+
+		return list;
+	}
+
+	/**
+	 * Every attribute is read only
+	 */
+	@Override
+	public void setAttribute(Attribute attribute)
+		throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName());
+	}
+
+	/**
+	 * Every attribute is read only
+	 */
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params,
+		String[] signature) throws ReflectionException {
+		if ("reset".equals(actionName)) {
+			reset();
+			return null;
+		}
+
+		throw new ReflectionException(
+			new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for (String counter : counters.keySet()) {
+			attributes.add(attributeInfo(counter, "long", "Counter"));
+		}
+		for (String gauge : gauges.keySet()) {
+			attributes.add(attributeInfo(gauge, "long", "Gauge"));
+		}
+		for (String histogram : histograms.keySet()) {
+			for (String statistic : HISTOGRAM_STATISTICS) {
+				attributes.add(attributeInfo(histogram + "." + statistic,
+					statistic.equals("mean") ? "double" : "long",
+					"Histogram " + statistic));
+			}
+		}
+		attributes.sort((a, b) -> a.getName().compareTo(b.getName()));
+
+		return new MBeanInfo(
+			getClass().getName(),
+			"Whiteboard server metrics",
+			attributes.toArray(new MBeanAttributeInfo[0]),
+			null,
+			new MBeanOperationInfo[] {
+				new MBeanOperationInfo("reset", "Clears every histogram", null,
+					"void", MBeanOperationInfo.ACTION) },
+			null);
+	}
+
+	private static MBeanAttributeInfo attributeInfo(String name, String type,
+		String description) {
+		return new MBeanAttributeInfo(name, type, description, true, false,
+			false);
+	}
+
+	/**
+	 * A count that only goes up
+	 */
+	public static class Counter {
+		private final LongAdder count = new LongAdder();
+
+		public void increment() {
+			count.increment();
+		}
+
+		/**
+		 * @param amount long, non-negative
+		 */
+		public void add(long amount) {
+			count.add(amount);
+		}
+
+		/**
+		 * @return the count
+		 */
+		public long get() {
+			return count.sum();
+		}
+	}
+
+	/**
+	 * A histogram of non-negative values, such as latencies in nanoseconds.
+	 * Each power of two is split into SUB_BUCKETS buckets, so a percentile is
+	 * within 25% of the true value, however large
+	 */
+	public static class Histogram {
+		private static final int SUB_BUCKET_BITS = 2;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private static final int BUCKETS = (64 - SUB_BUCKET_BITS)
+			* SUB_BUCKETS;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * Records a value. Negative values are recorded as 0
+		 *
+		 * @param value long
+		 */
+		public void record(long value) {
+			value = Math.max(0, value);
+
+			buckets.incrementAndGet(bucket(value));
+			sum.add(value);
+			if (value > max.get()) {
+				max.accumulateAndGet(value, Math::max);
+			}
+		}
+
+		/**
+		 * Records the time since {@code start}
+		 *
+		 * @param start long, from System.nanoTime()
+		 */
+		public void recordSince(long start) {
+			record(System.nanoTime() - start);
+		}
+
+		/**
+		 * @return the number of values recorded
+		 */
+		public long getCount() {
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				count += buckets.get(i);
+			}
+
+			return count;
+		}
+
+		/**
+		 * @return the mean of the values recorded
+		 */
+		public double getMean() {
+			long count = getCount();
+			return count == 0 ? 0 : (double) sum.sum() / count;
+		}
+
+		/**
+		 * @return the largest value recorded
+		 */
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * Gets the value that {@code quantile} of the recorded values are at or
+		 * below, rounded up to the top of its bucket
+		 *
+		 * @param quantile double, between 0 and 1
+		 * @return long
+		 */
+		public long getPercentile(double quantile) {
+			long[] counts = new long[BUCKETS];
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = buckets.get(i);
+				count += counts[i];
+			}
+			if (count == 0) {
+				return 0;
+			}
+
+			long rank = Math.max(1, (long) Math.ceil(quantile * count));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(upperBound(i), getMax());
+				}
+			}
+
+			return getMax();
+		}
+
+		/**
+		 * Clears the histogram. Values recorded at the same time may be lost
+		 */
+		public void reset() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets.set(i, 0);
+			}
+			sum.reset();
+			max.set(0);
+		}
+
+		/**
+		 * Gets the bucket of a value. Values below SUB_BUCKETS have a bucket
+		 * each, larger values share a bucket with those of the same highest
+		 * SUB_BUCKET_BITS + 1 bits
+		 *
+		 * @param value long, non-negative
+		 * @return int
+		 */
+		private static int bucket(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+				& (SUB_BUCKETS - 1);
+			return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		/**
+		 * Gets the largest value in a bucket
+		 *
+		 * @param bucket int
+		 * @return long
+		 */
+		private static long upperBound(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+
+			int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+			int sub = bucket % SUB_BUCKETS;
+			long lower = (long) (SUB_BUCKETS | sub)
+				<< (exponent - SUB_BUCKET_BITS);
+			return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking connection engine. A small, fixed set of event loops, each
+ * with their own Selector, handle accepting, reading, framing and writing for
+ * every connected client
+ */
+public class NioEngine {
+	private final Server server;
+	private final ServerSocketChannel acceptor;
+	private final EventLoop[] loops;
+
+	private int nextLoop = 0;
+
+	/**
+	 * Creates a NioEngine bound to the specified address
+	 *
+	 * @param server    Server
+	 * @param address   InetSocketAddress to accept connections on
+	 * @param backlog   int, the connection backlog
+	 * @param loopCount int, the number of event loops
+	 *
+	 * @throws IOException
+	 */
+	public NioEngine(Server server, InetSocketAddress address, int backlog,
+		int loopCount) throws IOException {
+		this.server = server;
+		this.acceptor = ServerSocketChannel.open();
+		acceptor.bind(address, backlog);
+		acceptor.configureBlocking(false);
+
+		this.loops = new EventLoop[Math.max(1, loopCount)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(i);
+		}
+	}
+
+	/**
+	 * Starts the event loops. The first event loop also accepts connections
+	 */
+	public void start() {
+		EventLoop acceptLoop = loops[0];
+		acceptLoop.execute(() -> {
+			try {
+				acceptor.register(acceptLoop.selector, SelectionKey.OP_ACCEPT,
+					this);
+			} catch (IOException ioe) {
+				server.getLog().error("connections not accepted",
+					"error", ioe.getMessage());
+				close();
+			}
+		});
+
+		for (EventLoop loop : loops) {
+			loop.thread.start();
+		}
+	}
+
+	/**
+	 * Waits for all event loops to finish
+	 *
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException {
+		for (EventLoop loop : loops) {
+			loop.thread.join();
+		}
+	}
+
+	/**
+	 * Stops accepting connections and stops all event loops, closing their
+	 * connections
+	 */
+	public void close() {
+		try {
+			acceptor.close();
+		} catch (Exception ignored) {
+		}
+
+		for (EventLoop loop : loops) {
+			loop.close();
+		}
+	}
+
+	/**
+	 * Accepts all pending connections, spreading them across the event loops.
+	 * Only called from the first event loop
+	 */
+	private void accept() {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = acceptor.accept();
+				if (channel == null) {
+					return;
+				}
+
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			} catch (IOException ioe) {
+				return;
+			}
+
+			EventLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+
+			NioUser user = new NioUser(server, channel, loop,
+				server.allocateUUID());
+			loop.execute(user::register);
+		}
+	}
+
+	/**
+	 * A single threaded event loop. All reads and writes for the connections
+	 * registered with it, and all tasks passed to {@link #execute(Runnable)},
+	 * run on its thread
+	 */
+	class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Thread thread;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+		private volatile boolean closed = false;
+
+		/**
+		 * Creates an EventLoop
+		 *
+		 * @param index int, used to name the thread
+		 *
+		 * @throws IOException
+		 */
+		EventLoop(int index) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, "nio-loop-" + index);
+		}
+
+		/**
+		 * Runs a task on this loop's thread
+		 *
+		 * @param task Runnable
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+
+			if (Thread.currentThread() != thread
+				&& wakeupPending.compareAndSet(false, true)) {
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Gets the selector used by this loop
+		 *
+		 * @return Selector
+		 */
+		Selector getSelector() {
+			return selector;
+		}
+
+		/**
+		 * Stops the loop, closing all of its connections
+		 */
+		void close() {
+			closed = true;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (!closed) {
+				try {
+					if (tasks.isEmpty()) {
+						selector.select();
+					} else {
+						selector.selectNow();
+					}
+				} catch (IOException ioe) {
+					break;
+				}
+
+				wakeupPending.set(false);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+					.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (!key.isValid()) {
+						continue;
+					}
+
+					if (key.attachment() == NioEngine.this) {
+						accept();
+						continue;
+					}
+
+					NioUser user = (NioUser) key.attachment();
+					try {
+						if (key.isReadable()) {
+							user.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							user.onWritable();
+						}
+					} catch (IOException | RuntimeException e) {
+						user.terminate();
+					}
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						server.getLog().error("event loop task failed",
+							"loop", thread.getName(), "error", e.getMessage());
+					}
+				}
+			}
+
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof NioUser) {
+					((NioUser) key.attachment()).terminate();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
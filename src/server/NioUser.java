@@ -0,0 +1,426 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import common.BinaryCodec;
+import common.DrawOp;
+import common.Fields;
+import common.SnapshotCodec;
+import common.WireFormat;
+
+/**
+ * A user connected through a NioEngine. Frames are the same as those used by
+ * ClientUser (writeUTF frames, or BinaryCodec frames once negotiated), so
+ * clients can not tell the difference between a NioUser and a ClientUser
+ */
+public class NioUser implements IUser {
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	private static final int FRAME_HEADER_SIZE = 2;
+	/** the most frames written by a single gathering write */
+	private static final int MAX_GATHER = 16;
+
+	private final Server server;
+	private final SocketChannel channel;
+	private final NioEngine.EventLoop loop;
+	private final int uuid;
+
+	private volatile String username = null;
+	private volatile WireFormat format = WireFormat.JSON;
+	private volatile SnapshotCodec.Format snapshotFormat =
+		SnapshotCodec.Format.PNG;
+	private SelectionKey key;
+
+	/** only accessed from the loop's thread */
+	private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	/**
+	 * the frames being written, from {@code writeStart} up to {@code writeEnd},
+	 * only accessed from the loop's thread
+	 */
+	private final ByteBuffer[] writing = new ByteBuffer[MAX_GATHER];
+	private int writeStart = 0;
+	private int writeEnd = 0;
+	private final OutboundQueue outbound;
+	private final AtomicBoolean flushPending = new AtomicBoolean();
+	private final Metrics.Counter sent;
+	private final Metrics.Counter bytesWritten;
+
+	private volatile boolean started = false;
+	private boolean terminated = false;
+
+	/**
+	 * Creates a NioUser with the specified parameters. The user must be
+	 * registered on its loop before it reads anything
+	 *
+	 * @param server  Server
+	 * @param channel SocketChannel, in non-blocking mode
+	 * @param loop    EventLoop that handles this user
+	 * @param uuid    int
+	 */
+	NioUser(Server server, SocketChannel channel, NioEngine.EventLoop loop,
+		int uuid) {
+		this.server = server;
+		this.channel = channel;
+		this.loop = loop;
+		this.uuid = uuid;
+		this.outbound = server.createOutboundQueue(this, this::flush);
+		this.sent = server.getMetrics().counter(Server.MESSAGES_SENT);
+		this.bytesWritten = server.getMetrics().counter(Server.BYTES_WRITTEN);
+	}
+
+	/**
+	 * Registers this user with its loop's selector, and drops them if they do
+	 * not complete their handshake in time. Must be called from the loop's
+	 * thread
+	 */
+	void register() {
+		try {
+			key = channel.register(loop.getSelector(), SelectionKey.OP_READ,
+				this);
+		} catch (ClosedChannelException cce) {
+			terminate();
+			return;
+		}
+
+		server.getJoinQueue().expireHandshake(this);
+	}
+
+	@Override
+	public String getUsername() {
+		return username;
+	}
+
+	@Override
+	public SnapshotCodec.Format getSnapshotFormat() {
+		return snapshotFormat;
+	}
+
+	@Override
+	public int getUUID() {
+		return uuid;
+	}
+
+	@Override
+	public void send(String message) {
+		send(Message.of(message));
+	}
+
+	@Override
+	public void send(Message message) {
+		if (isTerminated()) {
+			return;
+		}
+
+		if (outbound.offer(message)) {
+			flush();
+		} else {
+			disconnectSlow();
+		}
+	}
+
+	@Override
+	public void stream(List<Message> messages) {
+		stream(messages, false);
+	}
+
+	@Override
+	public void replay(List<Message> messages) {
+		stream(messages, true);
+	}
+
+	private void stream(List<Message> messages, boolean contiguous) {
+		if (isTerminated()) {
+			return;
+		}
+
+		if (outbound.offer(messages, contiguous)) {
+			flush();
+		} else {
+			disconnectSlow();
+		}
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return outbound.size();
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return outbound.getDropped();
+	}
+
+	@Override
+	public long getCoalescedCount() {
+		return outbound.getCoalesced();
+	}
+
+	/**
+	 * Asks the loop to write whatever is queued, unless it has already been
+	 * asked to
+	 */
+	private void flush() {
+		if (!flushPending.compareAndSet(false, true)) {
+			return;
+		}
+
+		loop.execute(() -> {
+			flushPending.set(false);
+			try {
+				onWritable();
+			} catch (IOException | CancelledKeyException e) {
+				terminate();
+			}
+		});
+	}
+
+	/**
+	 * Disconnects this user as they have fallen too far behind
+	 */
+	private void disconnectSlow() {
+		server.getLog().warn("disconnecting slow user",
+			Fields.USERNAME, username, Fields.UUID, uuid);
+		terminate();
+	}
+
+	/**
+	 * Gets the frame of a message in the current format. The frame is shared
+	 * with every other user it is sent to
+	 * 
+	 * @param message Message
+	 * @return ByteBuffer, {@code null} if the message can not be encoded
+	 */
+	private ByteBuffer frame(Message message) {
+		try {
+			return message.getFrame(format);
+		} catch (IOException ioe) {
+			server.getLog().warn("message dropped", Fields.UUID, uuid,
+				"error", ioe.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Encodes a message as a writeUTF frame
+	 * 
+	 * @param message String
+	 * @return ByteBuffer
+	 * 
+	 * @throws IOException if the message is too long
+	 */
+	private static ByteBuffer encodeUTF(String message) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(
+			message.length() + FRAME_HEADER_SIZE);
+		new DataOutputStream(baos).writeUTF(message);
+		return ByteBuffer.wrap(baos.toByteArray());
+	}
+
+	/**
+	 * Reads any available data and handles every complete frame. Must be
+	 * called from the loop's thread
+	 *
+	 * @throws IOException
+	 */
+	void onReadable() throws IOException {
+		if (channel.read(readBuffer) < 0) {
+			terminate();
+			return;
+		}
+
+		readBuffer.flip();
+		while (readBuffer.hasRemaining()) {
+			int length = frameLength();
+			if (length < 0) {
+				break;
+			}
+
+			if (readBuffer.remaining() < length) {
+				// make sure the rest of the frame will fit
+				if (readBuffer.capacity() < length) {
+					ByteBuffer larger = ByteBuffer.allocate(length);
+					larger.put(readBuffer);
+					readBuffer = larger;
+					return;
+				}
+				break;
+			}
+
+			if (format == WireFormat.BINARY) {
+				Object in = BinaryCodec.decode(readBuffer);
+				if (in instanceof DrawOp) {
+					if (started) {
+						server.recieve((DrawOp) in, this);
+					}
+				} else {
+					onMessage(in.toString());
+				}
+			} else {
+				DataInputStream dis = new DataInputStream(
+					new ByteArrayInputStream(readBuffer.array(),
+						readBuffer.arrayOffset() + readBuffer.position(),
+						length));
+				readBuffer.position(readBuffer.position() + length);
+
+				onMessage(dis.readUTF());
+			}
+		}
+
+		if (readBuffer.capacity() > INITIAL_BUFFER_SIZE
+			&& !readBuffer.hasRemaining()) {
+			// every large frame is done with, so their buffer is not kept
+			readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		} else {
+			readBuffer.compact();
+		}
+	}
+
+	/**
+	 * Gets the length of the frame at the start of the read buffer, in the
+	 * current format
+	 * 
+	 * @return int, -1 if the header is incomplete
+	 * 
+	 * @throws IOException
+	 */
+	private int frameLength() throws IOException {
+		if (format == WireFormat.BINARY) {
+			return BinaryCodec.frameLength(readBuffer,
+				BinaryCodec.MAX_CLIENT_FRAME_LENGTH);
+		}
+
+		if (readBuffer.remaining() < FRAME_HEADER_SIZE) {
+			return -1;
+		}
+		return FRAME_HEADER_SIZE
+			+ (readBuffer.getShort(readBuffer.position()) & 0xFFFF);
+	}
+
+	/**
+	 * Writes as many of the queued messages as the socket will accept, several
+	 * frames at a time, only waiting for the socket to become writable while
+	 * there is data left. Must be called from the loop's thread
+	 *
+	 * @throws IOException
+	 */
+	void onWritable() throws IOException {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+
+		while (true) {
+			if (writeStart == writeEnd) {
+				writeStart = writeEnd = 0;
+			}
+			while (writeEnd < MAX_GATHER) {
+				Message message = outbound.poll();
+				if (message == null) {
+					break;
+				}
+
+				ByteBuffer frame = frame(message);
+				if (frame != null) {
+					writing[writeEnd++] = frame;
+				}
+			}
+
+			if (writeStart == writeEnd) {
+				break;
+			}
+
+			bytesWritten.add(
+				channel.write(writing, writeStart, writeEnd - writeStart));
+			while (writeStart < writeEnd && !writing[writeStart].hasRemaining()) {
+				writing[writeStart++] = null;
+				sent.increment();
+			}
+			if (writeStart < writeEnd) {
+				break;
+			}
+		}
+
+		key.interestOps(writeStart == writeEnd ? SelectionKey.OP_READ
+			: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Handles a complete message. The first message is the handshake, which
+	 * selects the format of every later frame, and is then passed to the
+	 * server for acceptance
+	 *
+	 * @param message String
+	 *
+	 * @throws IOException
+	 */
+	private void onMessage(String message) throws IOException {
+		if (username == null) {
+			WireFormat requested;
+			try {
+				JSONObject json = new JSONObject(message);
+				username = json.optString(Fields.USERNAME);
+				requested = WireFormat.of(json.optString(Fields.PROTOCOL));
+				snapshotFormat = SnapshotCodec.Format
+					.of(json.optString(Fields.CODEC));
+			} catch (JSONException je) {
+				terminate();
+				return;
+			}
+
+			// confirm the format before anything is sent in it
+			if (requested != WireFormat.JSON) {
+				writing[writeEnd++] = encodeUTF(
+					server.getProtocolMessage(requested));
+				onWritable();
+				format = requested;
+			}
+
+			server.admitUser(this);
+			return;
+		}
+
+		if (started) {
+			server.recieve(message, this);
+		}
+	}
+
+	@Override
+	public void start() {
+		started = true;
+	}
+
+	@Override
+	public boolean terminate() {
+		synchronized (this) {
+			if (terminated) {
+				return true;
+			}
+			terminated = true;
+		}
+
+		outbound.close();
+		try {
+			channel.close();
+		} catch (Exception ignored) {
+		}
+		server.removeUser(this);
+
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isTerminated() {
+		return terminated;
+	}
+}
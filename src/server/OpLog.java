@@ -0,0 +1,77 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A bounded log of the most recent drawings broadcast, in sequence order.
+ * Users that missed some drawings can be sent just those, rather than the
+ * whole board, as long as the log still covers them
+ */
+public class OpLog {
+	private final int capacity;
+	private final Deque<Message> messages;
+
+	/** every drawing after this sequence number is in the log */
+	private long floor = 0;
+	private long latest = 0;
+
+	/**
+	 * Creates an empty OpLog
+	 *
+	 * @param capacity int, the number of drawings kept
+	 */
+	public OpLog(int capacity) {
+		this.capacity = capacity;
+		this.messages = new ArrayDeque<>(capacity);
+	}
+
+	/**
+	 * Adds a stamped drawing to the log, dropping the oldest if the log is
+	 * full. Drawings must be added in sequence order
+	 *
+	 * @param message Message, a drawing
+	 */
+	public synchronized void add(Message message) {
+		if (messages.size() >= capacity) {
+			floor = messages.poll().getDrawing().getSeq();
+		}
+
+		messages.add(message);
+		latest = message.getDrawing().getSeq();
+	}
+
+	/**
+	 * Empties the log after the board is replaced. Earlier drawings no longer
+	 * apply, so anyone behind {@code seq} needs the whole board
+	 *
+	 * @param seq long, the sequence number of the replacement
+	 */
+	public synchronized void reset(long seq) {
+		messages.clear();
+		floor = latest = seq;
+	}
+
+	/**
+	 * Gets every drawing after {@code seq}
+	 *
+	 * @param seq long, the last sequence number a user has
+	 * @return List, {@code null} if the log no longer covers {@code seq}
+	 */
+	public synchronized List<Message> since(long seq) {
+		if (seq < floor || seq > latest) {
+			return null;
+		}
+
+		List<Message> missed = new ArrayList<>();
+		for (Message message : messages) {
+			if (message.getDrawing().getSeq() > seq) {
+				missed.add(message);
+			}
+		}
+
+		return missed;
+	}
+}
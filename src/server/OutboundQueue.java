@@ -0,0 +1,460 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+
+/**
+ * A bounded queue of the messages waiting to be sent to a single user. When a
+ * user falls so far behind that the queue fills, its Policy decides what
+ * happens, so the server's memory is bounded however slow a user is.
+ *
+ * A stream of messages takes up a single place in the queue, and only gives
+ * up its next message when it reaches the head, so other messages are sent in
+ * between. A contiguous stream is sent all the way through once it reaches the
+ * head, for messages that must not be interleaved with later ones.
+ *
+ * The queue is guarded by a ReentrantLock rather than its monitor, as waiting
+ * on a monitor pins a virtual thread to its carrier
+ */
+public class OutboundQueue {
+	/**
+	 * Enumeration of what to do when a user's queue is full
+	 */
+	public enum Policy {
+		/**
+		 * Drop the oldest queued drawing. Other messages are not dropped, as
+		 * the user can not recover from missing part of a stream, unless the
+		 * queue holds twice its capacity of them and the user is disconnected
+		 */
+		DROP_OLDEST,
+		/**
+		 * Drop every queued drawing, and send the tiles they changed instead
+		 * once the user catches up. Later drawings are dropped until then
+		 */
+		COALESCE,
+		/** Disconnect the user */
+		DISCONNECT;
+	}
+
+	/** the counters of the messages dropped and drawings coalesced */
+	public static final String DROPPED = "outbound.dropped";
+	public static final String COALESCED = "outbound.coalesced";
+
+	/** marks where the user is sent the tiles changed by coalesced drawings */
+	private static final Entry CATCH_UP = new Entry(null, null, false);
+
+	private final int capacity;
+	private final Policy policy;
+	private final LongFunction<List<Message>> catchUp;
+	private final Runnable ready;
+	private final ThreadFactory threadFactory;
+	private final Log log;
+	/** the messages dropped and drawings coalesced by every queue */
+	private final Metrics.Counter droppedTotal;
+	private final Metrics.Counter coalescedTotal;
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private final Deque<Entry> entries = new ArrayDeque<>();
+	/** whether drawings are being coalesced */
+	private boolean behind = false;
+	/** whether the tiles changed by coalesced drawings are being fetched */
+	private boolean catchingUp = false;
+	private boolean closed = false;
+	/** the sequence number of the last drawing taken from the queue */
+	private long lastSeq = 0;
+
+	private long dropped = 0;
+	private long coalesced = 0;
+
+	/**
+	 * Creates an empty OutboundQueue
+	 *
+	 * @param capacity      int, the number of messages (or streams) that can
+	 *                      be queued
+	 * @param policy        Policy, what to do when the queue is full
+	 * @param catchUp       LongFunction, gets a transfer of the tiles changed
+	 *                      after a sequence number
+	 * @param ready         Runnable, run when messages become available after
+	 *                      a catch up, so the user can resume sending
+	 * @param threadFactory ThreadFactory, of the threads catch ups are fetched
+	 *                      in
+	 * @param log           Log, of catch ups that could not be fetched
+	 * @param metrics       Metrics, where the messages dropped and drawings
+	 *                      coalesced are counted, across every queue
+	 */
+	public OutboundQueue(int capacity, Policy policy,
+		LongFunction<List<Message>> catchUp, Runnable ready,
+		ThreadFactory threadFactory, Log log, Metrics metrics) {
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+		this.catchUp = catchUp;
+		this.ready = ready;
+		this.threadFactory = threadFactory;
+		this.log = log;
+		this.droppedTotal = metrics.counter(DROPPED);
+		this.coalescedTotal = metrics.counter(COALESCED);
+	}
+
+	/**
+	 * Queues a message
+	 *
+	 * @param message Message
+	 * @return boolean, {@code false} if the queue is full and the user should
+	 *         be disconnected
+	 */
+	public boolean offer(Message message) {
+		lock.lock();
+		try {
+			if (behind && message.getDrawing() != null) {
+				countCoalesced(1);
+				return true;
+			}
+
+			return add(new Entry(message, null, false));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a stream of messages, taking up a single place in the queue
+	 *
+	 * @param messages List
+	 * @return boolean, {@code false} if the queue is full and the user should
+	 *         be disconnected
+	 */
+	public boolean offer(List<Message> messages) {
+		return offer(messages, false);
+	}
+
+	/**
+	 * Queues a stream of messages, taking up a single place in the queue
+	 *
+	 * @param messages   List
+	 * @param contiguous boolean, whether nothing queued after the stream may be
+	 *                   sent before the end of it
+	 * @return boolean, {@code false} if the queue is full and the user should
+	 *         be disconnected
+	 */
+	public boolean offer(List<Message> messages, boolean contiguous) {
+		if (messages.isEmpty()) {
+			return true;
+		}
+
+		lock.lock();
+		try {
+			return add(new Entry(null, messages.iterator(), contiguous));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next message to send, without waiting
+	 *
+	 * @return Message, {@code null} if there is nothing to send yet
+	 */
+	public Message poll() {
+		lock.lock();
+		try {
+			while (!closed && !catchingUp && !entries.isEmpty()) {
+				Entry entry = entries.poll();
+
+				if (entry == CATCH_UP) {
+					startCatchUp();
+					return null;
+				}
+
+				if (entry.stream == null) {
+					return taken(entry.message);
+				}
+
+				Message message = entry.stream.next();
+				if (entry.stream.hasNext()) {
+					if (entry.contiguous) {
+						entries.addFirst(entry);
+					} else {
+						entries.add(entry);
+					}
+				}
+				return taken(message);
+			}
+
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next message to send, waiting until there is one
+	 *
+	 * @return Message, {@code null} if the queue was closed
+	 *
+	 * @throws InterruptedException
+	 */
+	public Message take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (!closed) {
+				Message message = poll();
+				if (message != null) {
+					return message;
+				}
+
+				available.await();
+			}
+
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Empties the queue, and wakes anything waiting to take from it
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			entries.clear();
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of messages (or streams) queued, including a catch up
+	 *         being fetched
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return queued();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of messages dropped because the queue was full
+	 */
+	public long getDropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of drawings coalesced into catch ups
+	 */
+	public long getCoalesced() {
+		lock.lock();
+		try {
+			return coalesced;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds an entry, making room for it according to the policy if the queue is
+	 * full
+	 *
+	 * @param entry Entry
+	 * @return boolean, {@code false} if the user should be disconnected
+	 */
+	private boolean add(Entry entry) {
+		if (closed) {
+			return true;
+		}
+
+		if (queued() >= capacity) {
+			switch (policy) {
+			case DISCONNECT:
+				return false;
+			case COALESCE:
+				if (coalesce() && entry.isDrawing()) {
+					countCoalesced(1);
+					return true;
+				}
+				if (queued() >= capacity && !makeRoom(entry)) {
+					return entry.isDrawing();
+				}
+				break;
+			case DROP_OLDEST:
+			default:
+				if (!makeRoom(entry)) {
+					return entry.isDrawing();
+				}
+				break;
+			}
+		}
+
+		entries.add(entry);
+		available.signal();
+		return true;
+	}
+
+	/**
+	 * Makes room for an entry in a full queue by dropping the oldest queued
+	 * drawing. If there is none, a drawing is dropped itself, and anything
+	 * else is queued anyway, unless the queue already holds twice its capacity
+	 * and the user should be disconnected
+	 *
+	 * @param entry Entry
+	 * @return boolean, {@code false} if the entry should not be queued
+	 */
+	private boolean makeRoom(Entry entry) {
+		if (dropOldest()) {
+			return true;
+		}
+
+		if (entry.isDrawing()) {
+			countDropped(1);
+			return false;
+		}
+
+		return queued() < 2 * capacity;
+	}
+
+	/**
+	 * Drops every queued drawing, and marks where the user should catch up
+	 *
+	 * @return boolean, {@code true} if any drawings were dropped
+	 */
+	private boolean coalesce() {
+		int before = entries.size();
+		entries.removeIf(Entry::isDrawing);
+
+		int removed = before - entries.size();
+		if (removed == 0) {
+			return false;
+		}
+
+		countCoalesced(removed);
+		if (!behind) {
+			behind = true;
+			entries.add(CATCH_UP);
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the number of entries queued. A catch up being fetched keeps its
+	 * place, as its transfer is queued once it has been fetched
+	 *
+	 * @return int
+	 */
+	private int queued() {
+		return entries.size() + (catchingUp ? 1 : 0);
+	}
+
+	/**
+	 * Drops the oldest queued drawing. Streams and other messages are kept, as
+	 * the user can not make up for missing part of a snapshot or replay, or
+	 * the latest list of users
+	 *
+	 * @return boolean, {@code false} if there was nothing to drop
+	 */
+	private boolean dropOldest() {
+		for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+			if (it.next().isDrawing()) {
+				it.remove();
+				countDropped(1);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Fetches the tiles changed since the last drawing taken, in a thread of
+	 * the queue's ThreadFactory as it may need to wait for the board to be
+	 * encoded. Nothing else is taken until they are queued
+	 */
+	private void startCatchUp() {
+		behind = false;
+		catchingUp = true;
+		long since = lastSeq;
+
+		Thread thread = threadFactory.newThread(() -> {
+			List<Message> transfer;
+			try {
+				transfer = catchUp.apply(since);
+			} catch (RuntimeException re) {
+				log.error("catch up failed", "since", since,
+					"error", re.getMessage());
+				transfer = null;
+			}
+
+			lock.lock();
+			try {
+				catchingUp = false;
+				if (transfer != null && !transfer.isEmpty()) {
+					entries.addFirst(
+						new Entry(null, transfer.iterator(), false));
+				}
+				available.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			ready.run();
+		});
+		thread.setName("catch-up");
+		thread.start();
+	}
+
+	private void countDropped(long count) {
+		dropped += count;
+		droppedTotal.add(count);
+	}
+
+	private void countCoalesced(long count) {
+		coalesced += count;
+		coalescedTotal.add(count);
+	}
+
+	private Message taken(Message message) {
+		if (message.getDrawing() != null) {
+			lastSeq = message.getDrawing().getSeq();
+		}
+
+		return message;
+	}
+
+	/**
+	 * A queued message, or stream of messages
+	 */
+	private static class Entry {
+		private final Message message;
+		private final Iterator<Message> stream;
+		/** whether the stream is sent without anything in between */
+		private final boolean contiguous;
+
+		private Entry(Message message, Iterator<Message> stream,
+			boolean contiguous) {
+			this.message = message;
+			this.stream = stream;
+			this.contiguous = contiguous;
+		}
+
+		private boolean isDrawing() {
+			return message != null && message.getDrawing() != null;
+		}
+	}
+}
@@ -1,50 +1,153 @@
 package server;
 
+import java.awt.Dimension;
+import java.awt.Point;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import javax.management.JMException;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import common.DrawOp;
 import common.Fields;
+import common.SnapshotCodec;
+import common.WireFormat;
 
 public class Server {
 	private static final int CONNECTION_BACKLOG = 50;
+	private static final int OP_LOG_CAPACITY = 4096;
+	private static final int DEFAULT_OUTBOUND_CAPACITY = 1024;
+	/** only one in this many drawings is logged, unless debugging */
+	private static final int DRAWING_LOG_RATE = 100;
+
+	/** The names of the metrics recorded by users */
+	public static final String MESSAGES_SENT = "messages.sent";
+	public static final String BYTES_WRITTEN = "bytes.written";
+	/** followed by a user's uuid, the gauge of their queue's depth */
+	public static final String OUTBOUND_DEPTH_USER = "outbound.depth.user.";
+	private static final int NIO_EVENT_LOOPS = Math.max(1,
+		Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * Enumeration of the ways the server can handle client connections
+	 */
+	public enum Mode {
+		/** A blocking reader thread and writer thread for every client */
+		BLOCKING,
+		/** A small, fixed set of selector event loops shared by all clients */
+		NIO,
+		/** As BLOCKING, but every connection thread is a virtual thread */
+		VIRTUAL;
+	}
 
 	private final int port;
-	private List<IUser> users;
-	private Integer nextUUID;
+	private final Mode mode;
+	private final ThreadFactory threadFactory;
+	/** every user, by uuid. Iterated without locking */
+	private final ConcurrentMap<Integer, IUser> users = new ConcurrentHashMap<>();
+	private final AtomicInteger nextUUID = new AtomicInteger();
 	private Manager manager;
 	private final String ip;
 	private final String managerUsername;
 
-	private Lock userLock = new ReentrantLock();
+	/** held while the user list is broadcast, so every user gets them in order */
+	private Lock membershipLock = new ReentrantLock();
+	/** held while changes to the board are stamped and broadcast */
+	private Lock sequenceLock = new ReentrantLock();
+	private OpLog opLog = new OpLog(OP_LOG_CAPACITY);
+
+	private int outboundCapacity = DEFAULT_OUTBOUND_CAPACITY;
+	private OutboundQueue.Policy outboundPolicy = OutboundQueue.Policy.COALESCE;
+	/** merges and simplifies strokes, {@code null} if they are not */
+	private volatile StrokeSimplifier simplifier = null;
+	/** where changes to the board are journaled, {@code null} if they are not */
+	private Path journalDirectory = null;
+	private int checkpointInterval = Journal.DEFAULT_CHECKPOINT_INTERVAL;
+	private Journal journal;
+	/** the size of the board, {@code null} for the manager's */
+	private Dimension boardSize = null;
+
+	private final Log log = new Log(System.out);
+	private final Metrics metrics = new Metrics();
+	private final Metrics.Counter received = metrics
+		.counter("messages.received");
+	private final Metrics.Counter broadcasts = metrics.counter("broadcasts");
+	/** from receiving a message to it being queued for every user */
+	private final Metrics.Histogram receiveToBroadcast = metrics
+		.histogram("receive.to.broadcast.ns");
+	private final Metrics.Histogram broadcastTime = metrics
+		.histogram("broadcast.ns");
+	private final Metrics.Histogram boardTransferTime = metrics
+		.histogram("board.transfer.ns");
+	private final Log.Sampler drawingSampler = new Log.Sampler(
+		DRAWING_LOG_RATE);
+
+	/** the users waiting to join */
+	private final JoinQueue joins = new JoinQueue(this::admitUsers,
+		this::joinsChanged, log);
+
+	/** counted down once the board exists and connections are accepted */
+	private final CountDownLatch started = new CountDownLatch(1);
+
+	private ServerSocket serverSocket;
+	private NioEngine engine;
+	private BoardModel board;
+	private SnapshotCache snapshots;
 
 	/**
-	 * Creates the Server with the specified parameters
+	 * Creates the Server with the specified parameters, using blocking
+	 * connections
 	 * 
 	 * @param ip              IP address to host the server on
 	 * @param port            port to receive connections on
 	 * @param managerUsername username of the manager
 	 */
 	public Server(String ip, int port, String managerUsername) {
+		this(ip, port, managerUsername, Mode.BLOCKING);
+	}
+
+	/**
+	 * Creates the Server with the specified parameters
+	 * 
+	 * @param ip              IP address to host the server on
+	 * @param port            port to receive connections on
+	 * @param managerUsername username of the manager
+	 * @param mode            how client connections are handled
+	 */
+	public Server(String ip, int port, String managerUsername, Mode mode) {
 		this.ip = ip;
 		this.port = port;
 		this.managerUsername = managerUsername;
-		this.users = new ArrayList<>();
-		this.nextUUID = 0;
+		this.mode = mode;
+		this.threadFactory = createThreadFactory(mode);
+
+		addGauges();
 	}
 
 	public static void main(String args[]) {
-		if (args.length != 3) {
-			System.err.println("usage: <ip> <port> <username>");
+		if (args.length < 3 || args.length > 7) {
+			System.err.println("usage: <ip> <port> <username> [blocking|nio|virtual] [coalesce|drop_oldest|disconnect] [stroke tolerance] [journal directory]");
 			System.exit(1);
 		}
 
@@ -52,88 +155,356 @@ public class Server {
 		String portStr = args[1];
 		String managerUsername = args[2];
 
+		Mode mode = Mode.BLOCKING;
+		if (args.length >= 4) {
+			try {
+				mode = Mode.valueOf(args[3].toUpperCase());
+			} catch (IllegalArgumentException iae) {
+				System.err.format("Unknown mode: %s\n", args[3]);
+				System.exit(1);
+			}
+		}
+
+		OutboundQueue.Policy policy = OutboundQueue.Policy.COALESCE;
+		if (args.length >= 5) {
+			try {
+				policy = OutboundQueue.Policy.valueOf(args[4].toUpperCase());
+			} catch (IllegalArgumentException iae) {
+				System.err.format("Unknown policy: %s\n", args[4]);
+				System.exit(1);
+			}
+		}
+
+		double tolerance = 0;
+		if (args.length >= 6) {
+			try {
+				tolerance = Double.parseDouble(args[5]);
+			} catch (NumberFormatException nfe) {
+				System.err.format("Number format error: %s\n", args[5]);
+				System.exit(1);
+			}
+		}
+
 		try {
-			new Server(ip, Integer.parseInt(portStr), managerUsername).start();
+			Server server = new Server(ip, Integer.parseInt(portStr),
+				managerUsername, mode);
+			server.setOutboundPolicy(policy, DEFAULT_OUTBOUND_CAPACITY);
+			server.setStrokeTolerance(tolerance);
+			if (args.length == 7) {
+				server.setJournal(Paths.get(args[6]),
+					Journal.DEFAULT_CHECKPOINT_INTERVAL);
+			}
+			server.start();
 		} catch (NumberFormatException nfe) {
 			System.err.format("Number format error: %s\n", portStr);
 		}
 	}
 
 	/**
-	 * Starts the Server
+	 * Starts the Server. This blocks until the Server is stopped
 	 */
 	public void start() {
 		try {
-			final ServerSocket server = new ServerSocket(port,
-				CONNECTION_BACKLOG, InetAddress.getByName(ip));
+			InetAddress address = InetAddress.getByName(ip);
+
+			if (mode == Mode.NIO) {
+				engine = new NioEngine(this,
+					new InetSocketAddress(address, port), CONNECTION_BACKLOG,
+					NIO_EVENT_LOOPS);
+			} else {
+				serverSocket = new ServerSocket(port, CONNECTION_BACKLOG,
+					address);
+			}
 
 			System.out.format(
-				"Whiteboard server now running at %s:%d\n",
-				server.getInetAddress().getHostAddress(),
-				port);
+				"Whiteboard server now running at %s:%d (%s)\n",
+				address.getHostAddress(),
+				port,
+				mode.toString().toLowerCase());
 
 			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-				try {
-					server.close();
-				} catch (Exception ignored) {
-				}
+				stop();
 			}));
 
-			this.manager = new Manager(this, managerUsername, nextUUID++);
-			addUser(manager);
-
-			// start manager in their own thread
-			new Thread(() -> {
-				manager.start();
-			}).start();
-
-			while (true) {
-				try {
-					Socket client = server.accept();
+			startManager();
+			board = new BoardModel(boardSize != null ? boardSize
+				: manager != null ? manager.getBoardSize()
+					: new Dimension(BoardModel.DEFAULT_WIDTH,
+						BoardModel.DEFAULT_HEIGHT));
+			snapshots = new SnapshotCache(board,
+				metrics.histogram("snapshot.encode.ns"), log);
+			recoverJournal();
+			if (board.getVersion() > 0) {
+				// show the manager the recovered board
+				broadcastBoard();
+			}
+			try {
+				metrics.register(
+					String.format("whiteboard:type=Server,port=%d", port));
+			} catch (JMException jme) {
+				log.warn("metrics not registered", "error", jme.getMessage());
+			}
+			started.countDown();
 
-					// start client in their own thread
-					new Thread(() -> {
-						addUser(client);
-					}).start();
-				} catch (IOException ignored) {
-				}
+			if (engine != null) {
+				engine.start();
+				engine.join();
+			} else {
+				acceptConnections(serverSocket);
 			}
 		} catch (IOException ioe) {
 			System.err.format(
 				"There was an error setting up the server (%s)\n",
 				ioe.getMessage());
 			System.exit(1);
+		} catch (InterruptedException ignored) {
 		}
 	}
 
 	/**
-	 * Creates and adds a new User for the given Socket, and if the manager
-	 * accepts their connection, starts the User
+	 * Restores the board from the journal, if changes are journaled, and
+	 * starts journaling them
 	 * 
-	 * @param socket Socket
+	 * @throws IOException if the journal can not be read or written
 	 */
-	public void addUser(Socket socket) {
-		int uuid;
-		synchronized (nextUUID) {
-			uuid = nextUUID++;
+	private void recoverJournal() throws IOException {
+		if (journalDirectory == null) {
+			return;
 		}
 
+		long start = System.nanoTime();
+		journal = new Journal(journalDirectory, checkpointInterval, metrics,
+			log);
+		long replayed = journal.recover(board, snapshots);
+		opLog.reset(board.getVersion());
+
+		log.info("journal recovered",
+			"directory", journalDirectory,
+			"version", board.getVersion(),
+			"replayed", replayed,
+			"ms", (System.nanoTime() - start) / 1000000);
+	}
+
+	/**
+	 * Sets where every change to the board is journaled, so the board can be
+	 * recovered if the server stops. The board is restored from the journal
+	 * when the server starts, so this must be called before then
+	 * 
+	 * @param directory          Path, {@code null} to not journal changes
+	 * @param checkpointInterval int, the most changes between checkpoints of
+	 *                           the board, bounding how many are replayed on
+	 *                           recovery
+	 */
+	public void setJournal(Path directory, int checkpointInterval) {
+		this.journalDirectory = directory;
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * Sets the size of the board, instead of the size of the manager's board.
+	 * Boards larger than BoardModel.MAX_HEAP_PIXELS are kept off the heap.
+	 * This must be called before the server starts
+	 * 
+	 * @param size Dimension, {@code null} for the size of the manager's board
+	 */
+	public void setBoardSize(Dimension size) {
+		this.boardSize = size;
+	}
+
+	/**
+	 * Waits until the server has started, so the board exists and users can
+	 * join
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void awaitStarted() throws InterruptedException {
+		started.await();
+	}
+
+	/**
+	 * Stops accepting connections and terminates all connected users
+	 */
+	public void stop() {
 		try {
-			ClientUser user = new ClientUser(this, socket, uuid);
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+		} catch (Exception ignored) {
+		}
+		if (engine != null) {
+			engine.close();
+		}
+		joins.close();
+		if (simplifier != null) {
+			simplifier.close();
+		}
+		if (journal != null) {
+			journal.close();
+		}
+		if (snapshots != null) {
+			snapshots.close();
+		}
+		if (board != null) {
+			board.close();
+		}
+		metrics.unregister();
+		log.close();
 
-			if (manager.checkAcceptNewUser(user.getUsername())) {
-				addUser(user);
-				user.send(getJSONBoardMessage());
-				broadcast(getUserListMessage());
+		users.values().forEach(IUser::terminate);
+	}
 
-				user.start();
-			} else {
-				user.terminate();
+	/**
+	 * Creates the Manager, adds them as a user and displays their GUI
+	 */
+	protected void startManager() {
+		this.manager = new Manager(this, managerUsername, allocateUUID());
+		addUser(manager);
+
+		// start manager in their own thread
+		new Thread(() -> {
+			manager.start();
+		}).start();
+	}
+
+	/**
+	 * Accepts connections from {@code server} until it is closed, starting
+	 * each client in their own thread
+	 * 
+	 * @param server ServerSocket
+	 */
+	private void acceptConnections(ServerSocket server) {
+		while (!server.isClosed()) {
+			try {
+				Socket client = server.accept();
+
+				// start client in their own thread
+				threadFactory.newThread(() -> {
+					addUser(client);
+				}).start();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Creates the ThreadFactory used for connection threads. In VIRTUAL mode
+	 * this creates virtual threads if the running Java version supports them
+	 * (Java 21+), otherwise platform threads are used
+	 * 
+	 * @param mode Mode
+	 * @return ThreadFactory
+	 */
+	private ThreadFactory createThreadFactory(Mode mode) {
+		if (mode == Mode.VIRTUAL) {
+			// resolved reflectively so the server still runs on older Javas
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual")
+					.invoke(null);
+				return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory").invoke(builder);
+			} catch (ReflectiveOperationException roe) {
+				log.warn("virtual threads not supported, using platform threads",
+					"java", System.getProperty("java.version"));
 			}
+		}
+
+		return Thread::new;
+	}
+
+	/**
+	 * Gets the ThreadFactory used for connection threads
+	 * 
+	 * @return ThreadFactory
+	 */
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Allocates a new uuid
+	 * 
+	 * @return int
+	 */
+	int allocateUUID() {
+		return nextUUID.getAndIncrement();
+	}
+
+	/**
+	 * Creates a new User for the given Socket, and once they have completed
+	 * their handshake, asks for them to be admitted
+	 * 
+	 * @param socket Socket
+	 */
+	public void addUser(Socket socket) {
+		try {
+			admitUser(
+				new ClientUser(this, socket, allocateUUID(), threadFactory));
 		} catch (IOException ioe) {
-			System.err.format(
-				"There was an error with a client (%s)\n",
-				ioe.getMessage());
+			log.warn("client error", "error", ioe.getMessage());
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Asks for a user that has completed their handshake to be admitted. This
+	 * never waits: the user is queued until they are approved by an
+	 * auto-approve rule or the manager, and then admitted by
+	 * {@link #admitUsers(List)}
+	 * 
+	 * @param user IUser
+	 */
+	protected void admitUser(IUser user) {
+		joins.submit(user);
+	}
+
+	/**
+	 * Admits a batch of approved users. Each user is added, sent the board and
+	 * started, and the user list is broadcast once for the whole batch
+	 * 
+	 * @param approved List
+	 */
+	protected void admitUsers(List<IUser> approved) {
+		List<IUser> admitted = new ArrayList<>(approved.size());
+		for (IUser user : approved) {
+			if (!user.isTerminated()) {
+				putUser(user);
+				admitted.add(user);
+			}
+		}
+		if (admitted.isEmpty()) {
+			return;
+		}
+
+		// every user in the batch that asked for the same format shares the
+		// same transfer
+		Map<SnapshotCodec.Format, List<Message>> transfers = new EnumMap<>(
+			SnapshotCodec.Format.class);
+		for (IUser user : admitted) {
+			user.stream(transfers.computeIfAbsent(user.getSnapshotFormat(),
+				this::getBoardTransfer));
+			user.start();
+		}
+		broadcastUsers();
+	}
+
+	/**
+	 * Gets the queue of users waiting to join, and its auto-approve rules
+	 * 
+	 * @return JoinQueue
+	 */
+	public JoinQueue getJoinQueue() {
+		return joins;
+	}
+
+	/**
+	 * Shows the manager the users waiting to join
+	 */
+	private void joinsChanged() {
+		if (manager != null) {
+			manager.setPending(joins.getPending());
 		}
 	}
 
@@ -143,69 +514,145 @@ public class Server {
 	 * @param user User
 	 */
 	public void addUser(IUser user) {
-		userLock.lock();
-		try {
-			users.add(user);
-		} finally {
-			userLock.unlock();
-		}
-		broadcast(getUserListMessage());
+		putUser(user);
+		broadcastUsers();
 	}
 
 	/**
-	 * Removes all users from the list that are to be removed and broadcasts the
-	 * user list if changes are made
+	 * Adds a user to the list of users, and exports the depth of their queue
+	 * until they are removed
+	 * 
+	 * @param user IUser
 	 */
-	public void updateUsers() {
-		userLock.lock();
-		try {
-			if (users.removeIf(IUser::isTerminated)) {
-				broadcast(getUserListMessage());
-			}
-		} finally {
-			userLock.unlock();
+	private void putUser(IUser user) {
+		users.put(user.getUUID(), user);
+		metrics.gauge(OUTBOUND_DEPTH_USER + user.getUUID(),
+			user::getQueueDepth);
+	}
+
+	/**
+	 * Removes a user that has disconnected or been terminated, whether they
+	 * had joined or were waiting to, and broadcasts the user list if they had
+	 * not already been removed
+	 * 
+	 * @param user IUser
+	 */
+	public void removeUser(IUser user) {
+		joins.withdraw(user);
+		StrokeSimplifier simplifier = this.simplifier;
+		if (simplifier != null) {
+			simplifier.remove(user);
+		}
+		if (users.remove(user.getUUID(), user)) {
+			metrics.removeGauge(OUTBOUND_DEPTH_USER + user.getUUID());
+			broadcastUsers();
 		}
 	}
 
 	/**
-	 * Sends a message to all connected users, and updates the user list
+	 * Gets the user with the specified uuid
+	 * 
+	 * @param uuid int
+	 * @return IUser, {@code null} if there is no such user
+	 */
+	public IUser getUser(int uuid) {
+		return users.get(uuid);
+	}
+
+	/**
+	 * Sends a message to all connected users
 	 * 
 	 * @param message String
 	 */
 	public void broadcast(String message) {
-		userLock.lock();
-		try {
-			users.forEach(user -> {
-				user.send(message);
-			});
+		broadcast(Message.of(message));
+	}
 
-			updateUsers();
-		} finally {
-			userLock.unlock();
+	/**
+	 * Sends a message to all connected users. Each representation of the
+	 * message is only created once
+	 * 
+	 * @param message Message
+	 */
+	public void broadcast(Message message) {
+		long start = System.nanoTime();
+		for (IUser user : users.values()) {
+			user.send(message);
 		}
+		broadcasts.increment();
+		broadcastTime.recordSince(start);
 	}
 
 	/**
-	 * Broadcasts the user list
+	 * Streams messages to all connected users. Other messages may be sent to
+	 * each user in between them
+	 * 
+	 * @param messages List
 	 */
-	public String getUserListMessage() {
-		List<JSONObject> usernames = new ArrayList<>();
+	public void broadcast(List<Message> messages) {
+		for (IUser user : users.values()) {
+			user.stream(messages);
+		}
+	}
 
-		userLock.lock();
+	/**
+	 * Streams a snapshot of the board to all connected users, once it is
+	 * encoded. Users that asked for the same format share a transfer
+	 */
+	private void broadcastBoard() {
+		Map<SnapshotCodec.Format, CompletableFuture<List<Message>>> transfers =
+			new EnumMap<>(SnapshotCodec.Format.class);
+		for (IUser user : users.values()) {
+			streamWhenEncoded(user, transfers.computeIfAbsent(
+				user.getSnapshotFormat(), snapshots::requestBoardTransfer));
+		}
+	}
+
+	/**
+	 * Broadcasts the user list. Lists are broadcast one at a time, so the last
+	 * list every user gets is the latest
+	 */
+	private void broadcastUsers() {
+		membershipLock.lock();
 		try {
-			for (IUser user : users) {
-				usernames.add(
-					new JSONObject().put(Fields.USERNAME, user.getUsername())
-						.put(Fields.UUID, user.getUUID()));
-			}
+			broadcast(getUserListMessage());
 		} finally {
-			userLock.unlock();
+			membershipLock.unlock();
+		}
+	}
+
+	/**
+	 * Creates the "users" message, listing every user in the order they joined
+	 * 
+	 * @return String
+	 */
+	public String getUserListMessage() {
+		List<IUser> current = new ArrayList<>(users.values());
+		current.sort(Comparator.comparingInt(IUser::getUUID));
+
+		List<JSONObject> usernames = new ArrayList<>();
+		for (IUser user : current) {
+			usernames.add(
+				new JSONObject().put(Fields.USERNAME, user.getUsername())
+					.put(Fields.UUID, user.getUUID()));
 		}
 
 		return new JSONObject().put(Fields.COMMAND, Fields.USERS)
 			.put(Fields.USERS, new JSONArray(usernames)).toString();
 	}
 
+	/**
+	 * Creates the "protocol" message, confirming the WireFormat a user will be
+	 * sent messages in
+	 * 
+	 * @param format WireFormat
+	 * @return String
+	 */
+	public String getProtocolMessage(WireFormat format) {
+		return new JSONObject().put(Fields.COMMAND, Fields.PROTOCOL)
+			.put(Fields.PROTOCOL, format.toString().toLowerCase()).toString();
+	}
+
 	/**
 	 * Receives a message from a user. If the message is not to resync, the
 	 * server broadcasts the message.
@@ -214,67 +661,400 @@ public class Server {
 	 * @param user    User
 	 */
 	public void recieve(String message, IUser user) {
-		System.out.format(
-			"%s/%s (%d): %s\n",
-			user instanceof Manager ? "manager" : "user",
-			user.getUsername(),
-			user.getUUID(),
-			message);
+		long start = System.nanoTime();
+		received.increment();
 
 		try {
 			JSONObject json = new JSONObject(message);
+			logReceived(user, json.optString(Fields.COMMAND), message);
+
+			StrokeSimplifier simplifier = this.simplifier;
+			if (simplifier != null
+				&& !Fields.DRAWING.equals(json.optString(Fields.COMMAND))) {
+				// anything else the user sends comes after their strokes
+				simplifier.flush(user);
+			}
 
 			switch (json.optString(Fields.COMMAND)) {
 			case Fields.RESYNC:
-				if (user instanceof Manager) {
-					broadcast(getJSONBoardMessage());
-					broadcast(getUserListMessage());
-				} else {
-					user.send(getJSONBoardMessage());
-					user.send(getUserListMessage());
-				}
+				resync(json, user);
+				break;
+			case Fields.DRAWING:
+				draw(DrawOp.fromJSON(json.optJSONObject(Fields.DRAWING)), user);
+				receiveToBroadcast.recordSince(start);
+				break;
+			case Fields.BOARD:
+				replaceBoard(json);
+				break;
+			case Fields.TILES:
+				sendTiles(json.optJSONArray(Fields.TILES), user);
 				break;
 			default:
 				broadcast(message);
+				receiveToBroadcast.recordSince(start);
 				break;
 			}
-		} catch (JSONException ignored) {
+		} catch (JSONException je) {
+			log.warn("invalid message", "uuid", user.getUUID(), "message",
+				message);
 		}
 	}
 
 	/**
-	 * Terminates all users with the specified uuid, and updates the user list
-	 * if any were terminated
+	 * Receives a drawing from a user that sent it in binary, and broadcasts it
 	 * 
-	 * @param uuid int
+	 * @param drawing DrawOp
+	 * @param user    User
 	 */
-	public void kick(int uuid) {
-		userLock.lock();
+	public void recieve(DrawOp drawing, IUser user) {
+		long start = System.nanoTime();
+		received.increment();
+		logReceived(user, Fields.DRAWING, drawing);
+
+		draw(drawing, user);
+		receiveToBroadcast.recordSince(start);
+	}
+
+	/**
+	 * Publishes a drawing from a user, through the stroke simplifier if
+	 * strokes are simplified
+	 * 
+	 * @param drawing DrawOp
+	 * @param user    IUser
+	 */
+	private void draw(DrawOp drawing, IUser user) {
+		StrokeSimplifier simplifier = this.simplifier;
+		if (simplifier != null) {
+			simplifier.submit(user, drawing);
+		} else {
+			publish(drawing);
+		}
+	}
+
+	/**
+	 * Sets whether freehand and eraser strokes are merged and simplified
+	 * before they are published, see StrokeSimplifier
+	 * 
+	 * @param tolerance double, as a fraction of a stroke's size. 0 or less
+	 *                  publishes strokes as they are received
+	 */
+	public void setStrokeTolerance(double tolerance) {
+		StrokeSimplifier old = simplifier;
+		simplifier = tolerance > 0
+			? new StrokeSimplifier(tolerance, this::publish, metrics)
+			: null;
+
+		if (old != null) {
+			old.close();
+		}
+	}
+
+	/**
+	 * @return the stroke simplifier's tolerance, 0 if strokes are not
+	 *         simplified
+	 */
+	public double getStrokeTolerance() {
+		StrokeSimplifier simplifier = this.simplifier;
+		return simplifier != null ? simplifier.getTolerance() : 0;
+	}
+
+	/**
+	 * Logs a message received from a user. Drawings arrive too often to log
+	 * each one, so only a sample of them are logged unless debugging. Nothing
+	 * is formatted on the calling thread, and long messages are truncated
+	 * 
+	 * @param user    IUser
+	 * @param command String
+	 * @param message Object, the message or drawing
+	 */
+	private void logReceived(IUser user, String command, Object message) {
+		if (!log.isEnabled(Log.Level.INFO)) {
+			return;
+		}
+
+		int sampled = 1;
+		if (Fields.DRAWING.equals(command)
+			&& !log.isEnabled(Log.Level.DEBUG)) {
+			if (!drawingSampler.next()) {
+				return;
+			}
+			sampled = drawingSampler.getRate();
+		}
+
+		log.info("received",
+			"role", user instanceof Manager ? "manager" : "user",
+			Fields.USERNAME, user.getUsername(),
+			Fields.UUID, user.getUUID(),
+			Fields.COMMAND, command,
+			"sampled", sampled,
+			"message", message);
+	}
+
+	/**
+	 * Gets the server's metrics, which are exported over JMX while the server
+	 * is running
+	 * 
+	 * @return Metrics
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Adds the gauges of the server's state. These are only read when the
+	 * metrics are
+	 */
+	private void addGauges() {
+		metrics.gauge("users", () -> users.size());
+		metrics.gauge("joins.pending", () -> joins.getPending().size());
+		metrics.gauge("board.version",
+			() -> board != null ? board.getVersion() : 0);
+		metrics.gauge("log.dropped", log::getDropped);
+		metrics.gauge("strokes.reduction.pct", () -> {
+			long in = metrics.counter("strokes.points.in").get();
+			long out = metrics.counter("strokes.points.out").get();
+			return in == 0 ? 0 : 100 - 100 * out / in;
+		});
+		metrics.gauge("outbound.depth.max", () -> users.values().stream()
+			.mapToLong(IUser::getQueueDepth).max().orElse(0));
+		metrics.gauge("outbound.depth.total", () -> users.values().stream()
+			.mapToLong(IUser::getQueueDepth).sum());
+		// counted by each user's OutboundQueue, so users that leave still
+		// count
+		metrics.counter(OutboundQueue.DROPPED);
+		metrics.counter(OutboundQueue.COALESCED);
+	}
+
+	/**
+	 * Gets the server's log
+	 * 
+	 * @return Log
+	 */
+	public Log getLog() {
+		return log;
+	}
+
+	/**
+	 * Applies a drawing to the board, stamps it with its sequence number, and
+	 * logs, journals and broadcasts it. Every user receives drawings in sequence order
+	 * 
+	 * @param drawing DrawOp
+	 */
+	private void publish(DrawOp drawing) {
+		sequenceLock.lock();
 		try {
-			boolean update = false;
+			drawing.setSeq(board.apply(drawing));
 
-			for (IUser user : users) {
-				if (user.getUUID() == uuid) {
-					update |= user.terminate();
-				}
+			Message message = Message.of(drawing);
+			opLog.add(message);
+			if (journal != null) {
+				journal.append(message);
 			}
+			broadcast(message);
+		} finally {
+			sequenceLock.unlock();
+		}
+	}
 
-			if (update) {
-				updateUsers();
+	/**
+	 * Replaces the board with the one in a "board" message, and broadcasts a
+	 * snapshot of the new board
+	 * 
+	 * @param json JSONObject, the "board" message
+	 */
+	private void replaceBoard(JSONObject json) {
+		sequenceLock.lock();
+		try {
+			long seq = board.setBoard(json.optString(Fields.BOARD));
+			opLog.reset(seq);
+			if (journal != null) {
+				journal.append(
+					Message.of(json.put(Fields.SEQ, seq).toString()));
 			}
 		} finally {
-			userLock.unlock();
+			sequenceLock.unlock();
 		}
+
+		// drawings published before the snapshot arrives are drawn again on
+		// top of it, so publishing does not wait for the new board's encode
+		broadcastBoard();
 	}
 
 	/**
-	 * Creates a JSONObject (as a String) containing the "board" message
+	 * Resyncs a user. If the user sent the last sequence number they have, they
+	 * are only sent the drawings they missed if the op log still covers it, or
+	 * else the tiles that changed since. Otherwise they are sent the whole
+	 * board. A resync from the manager resyncs everyone
 	 * 
-	 * @return String
+	 * @param json JSONObject, the "resync" message
+	 * @param user IUser
+	 */
+	private void resync(JSONObject json, IUser user) {
+		if (user instanceof Manager) {
+			broadcastBoard();
+			broadcastUsers();
+			return;
+		}
+
+		long seq = json.optLong(Fields.SEQ);
+		if (seq > 0 && seq <= board.getVersion()) {
+			List<Message> missed;
+			// the missed drawings are queued before any later drawing is
+			// broadcast, and sent all the way through before it, as the user
+			// skips drawings older than the latest
+			sequenceLock.lock();
+			try {
+				missed = opLog.since(seq);
+				if (missed != null) {
+					user.replay(missed);
+				}
+			} finally {
+				sequenceLock.unlock();
+			}
+
+			// drawings broadcast before the tiles arrive are drawn again on
+			// top of them, so the encode does not need to hold up publishing
+			if (missed == null) {
+				streamWhenEncoded(user, snapshots.requestTilesTransfer(seq,
+					user.getSnapshotFormat()));
+			}
+		} else {
+			streamWhenEncoded(user,
+				snapshots.requestBoardTransfer(user.getSnapshotFormat()));
+		}
+
+		user.send(getUserListMessage());
+	}
+
+	/**
+	 * Sends a user the tiles they requested
+	 * 
+	 * @param tiles JSONArray, of objects with the column ("x") and row ("y")
+	 *              of each tile
+	 * @param user  IUser
+	 */
+	private void sendTiles(JSONArray tiles, IUser user) {
+		if (tiles == null) {
+			return;
+		}
+
+		List<Point> requested = new ArrayList<>();
+		for (int i = 0; i < tiles.length(); i++) {
+			JSONObject tile = tiles.optJSONObject(i);
+			if (tile != null) {
+				requested.add(
+					new Point(tile.optInt(Fields.X, -1), tile.optInt(Fields.Y, -1)));
+			}
+		}
+
+		streamWhenEncoded(user, snapshots.requestTilesTransfer(requested,
+			user.getSnapshotFormat()));
+	}
+
+	/**
+	 * Streams a transfer to a user once its tiles are encoded. Requests may
+	 * come from an event loop, which must not wait for the board to be
+	 * encoded, as every other connection of the loop would wait too
+	 * 
+	 * @param user     IUser
+	 * @param transfer CompletableFuture, of the messages of the transfer
+	 */
+	private void streamWhenEncoded(IUser user,
+		CompletableFuture<List<Message>> transfer) {
+		transfer.whenComplete((messages, error) -> {
+			if (error != null) {
+				log.error("snapshot not sent", Fields.UUID, user.getUUID(),
+					"error", error.getMessage());
+			} else {
+				user.stream(messages);
+			}
+		});
+	}
+
+	/**
+	 * Terminates the user with the specified uuid, and updates the user list
+	 * 
+	 * @param uuid int
+	 */
+	public void kick(int uuid) {
+		IUser user = users.get(uuid);
+		if (user != null && user.terminate()) {
+			removeUser(user);
+		}
+	}
+
+	/**
+	 * Gets the tiles of the board that changed after the specified sequence
+	 * number, as the messages of a transfer of PNG tiles
+	 * 
+	 * @param since long
+	 * @return List
+	 */
+	public List<Message> getTilesTransfer(long since) {
+		return getTilesTransfer(since, SnapshotCodec.Format.PNG);
+	}
+
+	/**
+	 * Gets the tiles of the board that changed after the specified sequence
+	 * number, as the messages of a transfer
+	 * 
+	 * @param since  long
+	 * @param format SnapshotCodec.Format, of the tile images
+	 * @return List
+	 */
+	public List<Message> getTilesTransfer(long since,
+		SnapshotCodec.Format format) {
+		return snapshots.getTilesTransfer(since, format);
+	}
+
+	/**
+	 * Sets how many messages can be queued for each user, and what happens
+	 * when a user's queue is full. Only affects users that connect afterwards
+	 * 
+	 * @param policy   OutboundQueue.Policy
+	 * @param capacity int
+	 */
+	public void setOutboundPolicy(OutboundQueue.Policy policy, int capacity) {
+		this.outboundPolicy = policy;
+		this.outboundCapacity = capacity;
+	}
+
+	/**
+	 * Creates the queue of messages waiting to be sent to a user
+	 * 
+	 * @param user  IUser, whose snapshot format catch ups are sent in
+	 * @param ready Runnable, run when the user can resume sending after a
+	 *              catch up
+	 * @return OutboundQueue
+	 */
+	public OutboundQueue createOutboundQueue(IUser user, Runnable ready) {
+		return new OutboundQueue(outboundCapacity, outboundPolicy,
+			since -> getTilesTransfer(since, user.getSnapshotFormat()), ready,
+			threadFactory, log, metrics);
+	}
+
+	/**
+	 * Gets a snapshot of the current board, as the messages of a transfer.
+	 * Each tile is only encoded once for each version of it
+	 * 
+	 * @param format SnapshotCodec.Format, of the tile images
+	 * @return List
+	 */
+	public List<Message> getBoardTransfer(SnapshotCodec.Format format) {
+		long start = System.nanoTime();
+		List<Message> transfer = snapshots.getBoardTransfer(format);
+		boardTransferTime.recordSince(start);
+
+		return transfer;
+	}
+
+	/**
+	 * Gets the Server's authoritative board
+	 * 
+	 * @return BoardModel
 	 */
-	public String getJSONBoardMessage() {
-		return new JSONObject().put(Fields.COMMAND, Fields.BOARD)
-			.put(Fields.BOARD, manager.getBoardString()).toString();
+	public BoardModel getBoard() {
+		return board;
 	}
 
 	/**
@@ -0,0 +1,473 @@
+package server;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import common.BinaryCodec;
+import common.Fields;
+import common.SnapshotCodec;
+
+/**
+ * Caches the encoded tiles of a BoardModel. The board is encoded at most once
+ * per version, however many users join or resync, and only the tiles that
+ * changed since the last encode are encoded again. A stale board is re-encoded
+ * in the background so most requests never wait for an encode, and each
+ * transfer can be requested without waiting for one at all.
+ *
+ * Snapshots are sent as a stream of "snapshot" messages, so a snapshot of any
+ * size can be sent without any one message being too large. The stream begins
+ * with a "begin" message, then "chunk" messages containing the tiles, then an
+ * "end" message, all with the same transfer id. Blank tiles are left out of a
+ * full snapshot, and a tile without an image is blank.
+ *
+ * The tiles are copied from the board a batch at a time, so encoding a board
+ * too large for the heap only needs the heap for a batch of tiles and their
+ * encodings.
+ *
+ * Each SnapshotCodec.Format is cached separately, and only encoded once it has
+ * been asked for. Chunks have base 64 images in JSON, but chunks of formats
+ * other than PNG have raw images in their binary frames. Only clients that
+ * asked for another format get those, so older clients still understand
+ * every frame they are sent
+ */
+public class SnapshotCache {
+	private static final long REFRESH_INTERVAL_MS = 1000;
+	/** the most bytes of tile images in a single chunk */
+	private static final int MAX_CHUNK_LENGTH = 24 * 1024;
+	/** the most tiles copied from the board at once, 16MB */
+	private static final int MAX_COPIED_TILES = 1024;
+
+	private static final AtomicInteger nextTransferId = new AtomicInteger();
+
+	private final BoardModel board;
+	private final ScheduledExecutorService encoder;
+	private final Metrics.Histogram encodeTime;
+	private final Log log;
+
+	/** the encodings of the board in each format asked for */
+	private final Map<SnapshotCodec.Format, Encoding> encodings = new EnumMap<>(
+		SnapshotCodec.Format.class);
+
+	/**
+	 * Creates a SnapshotCache for the specified board
+	 *
+	 * @param board      BoardModel
+	 * @param encodeTime Histogram, of the time taken by each encode
+	 * @param log        Log, of tiles that could not be encoded
+	 */
+	public SnapshotCache(BoardModel board, Metrics.Histogram encodeTime,
+		Log log) {
+		this.board = board;
+		this.encodeTime = encodeTime;
+		this.log = log;
+		this.encoder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "snapshot-encoder");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		encoder.scheduleWithFixedDelay(
+			this::refresh,
+			REFRESH_INTERVAL_MS,
+			REFRESH_INTERVAL_MS,
+			TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets a full snapshot of the current version of the board, waiting for it
+	 * to be encoded if needed
+	 *
+	 * @param format SnapshotCodec.Format, of the tile images
+	 * @return List, the messages of the transfer in order
+	 */
+	public List<Message> getBoardTransfer(SnapshotCodec.Format format) {
+		return await(requestBoardTransfer(format));
+	}
+
+	/**
+	 * Requests a full snapshot of the current version of the board, without
+	 * waiting for it to be encoded
+	 *
+	 * @param format SnapshotCodec.Format, of the tile images
+	 * @return CompletableFuture, of the messages of the transfer in order.
+	 *         Completed on the encoder's thread if it needs to be encoded
+	 */
+	public CompletableFuture<List<Message>> requestBoardTransfer(
+		SnapshotCodec.Format format) {
+		return request(format).thenApply(tiles -> tiles
+			.toTransfer(tile -> tiles.images[tile] != null, true));
+	}
+
+	/**
+	 * Gets the tiles that changed after the specified version of the board
+	 *
+	 * @param since  long, a version of the board
+	 * @param format SnapshotCodec.Format, of the tile images
+	 * @return List, the messages of the transfer in order
+	 */
+	public List<Message> getTilesTransfer(long since,
+		SnapshotCodec.Format format) {
+		return await(requestTilesTransfer(since, format));
+	}
+
+	/**
+	 * Requests the tiles that changed after the specified version of the
+	 * board, without waiting for them to be encoded
+	 *
+	 * @param since  long, a version of the board
+	 * @param format SnapshotCodec.Format, of the tile images
+	 * @return CompletableFuture, of the messages of the transfer in order.
+	 *         Completed on the encoder's thread if it needs to be encoded
+	 */
+	public CompletableFuture<List<Message>> requestTilesTransfer(long since,
+		SnapshotCodec.Format format) {
+		return request(format).thenApply(tiles -> tiles
+			.toTransfer(tile -> tiles.versions[tile] > since, false));
+	}
+
+	/**
+	 * Gets the specified tiles of the current version of the board. Tiles that
+	 * are not on the board are ignored
+	 *
+	 * @param requested Collection, of the column and row of each tile
+	 * @param format    SnapshotCodec.Format, of the tile images
+	 * @return List, the messages of the transfer in order
+	 */
+	public List<Message> getTilesTransfer(Collection<Point> requested,
+		SnapshotCodec.Format format) {
+		return await(requestTilesTransfer(requested, format));
+	}
+
+	/**
+	 * Requests the specified tiles of the current version of the board,
+	 * without waiting for them to be encoded. Tiles that are not on the board
+	 * are ignored
+	 *
+	 * @param requested Collection, of the column and row of each tile
+	 * @param format    SnapshotCodec.Format, of the tile images
+	 * @return CompletableFuture, of the messages of the transfer in order.
+	 *         Completed on the encoder's thread if it needs to be encoded
+	 */
+	public CompletableFuture<List<Message>> requestTilesTransfer(
+		Collection<Point> requested, SnapshotCodec.Format format) {
+		return request(format).thenApply(tiles -> {
+			boolean[] included = new boolean[tiles.versions.length];
+			for (Point point : requested) {
+				if (point.x >= 0 && point.x < tiles.columns && point.y >= 0) {
+					int tile = point.y * tiles.columns + point.x;
+					if (tile < included.length) {
+						included[tile] = true;
+					}
+				}
+			}
+
+			return tiles.toTransfer(tile -> included[tile], false);
+		});
+	}
+
+	/**
+	 * Gets the encoded tiles of the current version of the board, waiting for
+	 * them to be encoded if needed
+	 *
+	 * @param format SnapshotCodec.Format, of the tile images
+	 * @return Tiles
+	 */
+	public Tiles getTiles(SnapshotCodec.Format format) {
+		return await(request(format));
+	}
+
+	/**
+	 * Stops encoding in the background
+	 */
+	public void close() {
+		encoder.shutdownNow();
+	}
+
+	/**
+	 * Waits for a request to complete
+	 *
+	 * @param request Future
+	 * @return T, the result of the request
+	 */
+	private static <T> T await(Future<T> request) {
+		try {
+			return request.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IllegalStateException("Board encoding failed", e);
+		}
+	}
+
+	/**
+	 * Re-encodes the board in every format that has been asked for, if it is
+	 * stale
+	 */
+	private synchronized void refresh() {
+		encodings.keySet().forEach(this::request);
+	}
+
+	/**
+	 * Gets the encoding of the current version of the board, starting one if
+	 * the cached encoding is stale. Concurrent requests for the same version
+	 * share a single encode
+	 *
+	 * @param format SnapshotCodec.Format
+	 * @return CompletableFuture
+	 */
+	private synchronized CompletableFuture<Tiles> request(
+		SnapshotCodec.Format format) {
+		Encoding encoding = encodings.computeIfAbsent(format, Encoding::new);
+		long version = board.getVersion();
+		if (encoding.current != null && encoding.current.version >= version) {
+			return encoding.current.tiles;
+		}
+
+		Entry entry = new Entry(version);
+		entry.tiles = CompletableFuture.supplyAsync(() -> {
+			long start = System.nanoTime();
+			Tiles tiles = encoding.encode(board, log);
+			// the copy may include changes made after this request
+			entry.version = tiles.version;
+
+			encodeTime.recordSince(start);
+			return tiles;
+		}, encoder);
+		encoding.current = entry;
+
+		return entry.tiles;
+	}
+
+	/**
+	 * An encoding of the board, and the version it was encoded at
+	 */
+	private static class Entry {
+		private volatile long version;
+		private CompletableFuture<Tiles> tiles;
+
+		private Entry(long version) {
+			this.version = version;
+		}
+	}
+
+	/**
+	 * The latest encoding of the board in one format
+	 */
+	private static class Encoding {
+		private final SnapshotCodec.Format format;
+		/** guarded by the SnapshotCache */
+		private Entry current = null;
+
+		/** the last encoding of each tile, only accessed by the encoder */
+		private byte[][] encoded = new byte[0][];
+		private long[] encodedVersions = new long[0];
+
+		private Encoding(SnapshotCodec.Format format) {
+			this.format = format;
+		}
+
+		/**
+		 * Encodes each tile of the board that is not blank, reusing the
+		 * previous encoding of tiles that have not changed since. Tiles are
+		 * copied and encoded a batch at a time, until a batch includes every
+		 * tile that changed. Only called by the encoder
+		 *
+		 * @param board BoardModel
+		 * @param log   Log, of tiles that could not be encoded
+		 * @return Tiles
+		 */
+		private Tiles encode(BoardModel board, Log log) {
+			BoardModel.Snapshot snapshot;
+			do {
+				snapshot = board.snapshot(encodedVersions, MAX_COPIED_TILES);
+				int count = snapshot.getTileCount();
+				if (encoded.length != count) {
+					encoded = new byte[count][];
+					encodedVersions = new long[count];
+					Arrays.fill(encodedVersions, -1);
+				}
+
+				for (int tile = 0; tile < count; tile++) {
+					BufferedImage image = snapshot.getTile(tile);
+					if (image == null) {
+						continue;
+					}
+
+					try {
+						encoded[tile] = SnapshotCodec.toBytes(image, format);
+						encodedVersions[tile] = snapshot.getTileVersion(tile);
+					} catch (IOException ioe) {
+						// the tile is sent without an image until it is encoded
+						log.error("tile not encoded", "tile", tile,
+							"format", format.toString(),
+							"error", ioe.getMessage());
+						encoded[tile] = null;
+						encodedVersions[tile] = -1;
+					}
+				}
+			} while (!snapshot.isComplete());
+
+			int count = snapshot.getTileCount();
+			long[] versions = new long[count];
+			byte[][] images = new byte[count][];
+			for (int tile = 0; tile < count; tile++) {
+				versions[tile] = snapshot.getTileVersion(tile);
+				if (!snapshot.isBlank(tile)) {
+					images[tile] = encoded[tile];
+				}
+			}
+
+			return new Tiles(format, snapshot.getVersion(),
+				snapshot.getColumns(), versions, images);
+		}
+	}
+
+	/**
+	 * The encoded tiles of one version of the board
+	 */
+	public static class Tiles {
+		private final SnapshotCodec.Format format;
+		private final long version;
+		private final int columns;
+		private final long[] versions;
+		/** the encoding of each tile, {@code null} if it is blank */
+		private final byte[][] images;
+
+		private Tiles(SnapshotCodec.Format format, long version, int columns,
+			long[] versions, byte[][] images) {
+			this.format = format;
+			this.version = version;
+			this.columns = columns;
+			this.versions = versions;
+			this.images = images;
+		}
+
+		/**
+		 * @return the version of the board
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return the number of columns of tiles
+		 */
+		public int getColumns() {
+			return columns;
+		}
+
+		/**
+		 * @return the number of tiles
+		 */
+		public int getTileCount() {
+			return versions.length;
+		}
+
+		/**
+		 * Gets the encoding of a tile, which is shared, so must not be
+		 * modified
+		 *
+		 * @param tile int, the index of the tile, row by row
+		 * @return byte[], {@code null} if the tile is blank
+		 */
+		public byte[] getImage(int tile) {
+			return images[tile];
+		}
+
+		/**
+		 * Creates the messages of a transfer of the specified tiles
+		 *
+		 * @param include IntPredicate, whether to include a tile
+		 * @param full    boolean, whether the transfer replaces the whole board
+		 * @return List
+		 */
+		private List<Message> toTransfer(IntPredicate include, boolean full) {
+			int id = nextTransferId.incrementAndGet();
+			List<Message> transfer = new ArrayList<>();
+			transfer.add(Message.of(
+				header(id, Fields.BEGIN).put(Fields.TILE_SIZE, BoardModel.TILE_SIZE)
+					.put(Fields.FULL, full).put(Fields.SEQ, version).toString()));
+
+			List<Integer> chunk = new ArrayList<>();
+			int length = 0;
+			for (int tile = 0; tile < versions.length; tile++) {
+				if (!include.test(tile)) {
+					continue;
+				}
+
+				if (images[tile] != null) {
+					if (length > 0
+						&& length + images[tile].length > MAX_CHUNK_LENGTH) {
+						transfer.add(toChunk(id, chunk));
+						chunk = new ArrayList<>();
+						length = 0;
+					}
+
+					length += images[tile].length;
+				}
+				chunk.add(tile);
+			}
+			if (!chunk.isEmpty()) {
+				transfer.add(toChunk(id, chunk));
+			}
+
+			transfer.add(Message.of(header(id, Fields.END).toString()));
+
+			return transfer;
+		}
+
+		/**
+		 * Creates a "chunk" message of the specified tiles. The JSON message
+		 * and binary frame are only created if someone needs them
+		 */
+		private Message toChunk(int id, List<Integer> tiles) {
+			int[] columns = new int[tiles.size()];
+			int[] rows = new int[tiles.size()];
+			byte[][] chunk = new byte[tiles.size()][];
+			for (int i = 0; i < chunk.length; i++) {
+				columns[i] = tiles.get(i) % this.columns;
+				rows[i] = tiles.get(i) / this.columns;
+				chunk[i] = images[tiles.get(i)];
+			}
+
+			return Message.of(() -> {
+				JSONArray array = new JSONArray();
+				for (int i = 0; i < chunk.length; i++) {
+					JSONObject json = new JSONObject().put(Fields.X, columns[i])
+						.put(Fields.Y, rows[i]);
+					if (chunk[i] != null) {
+						json.put(Fields.IMAGE,
+							Base64.getEncoder().encodeToString(chunk[i]));
+					}
+					array.put(json);
+				}
+
+				return header(id, Fields.CHUNK).put(Fields.TILES, array)
+					.toString();
+			}, format == SnapshotCodec.Format.PNG ? null
+				: () -> BinaryCodec.encodeTiles(id, columns, rows, chunk));
+		}
+
+		private static JSONObject header(int id, String state) {
+			return new JSONObject().put(Fields.COMMAND, Fields.SNAPSHOT)
+				.put(Fields.ID, id).put(Fields.STATE, state);
+		}
+	}
+}
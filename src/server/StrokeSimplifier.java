@@ -0,0 +1,386 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import common.DrawOp;
+
+/**
+ * Merges and simplifies freehand and eraser strokes before they are
+ * published. Consecutive segments of the same stroke from a user are merged
+ * into one polyline, and points that lie within a tolerance of the line
+ * through their neighbours are dropped (Douglas-Peucker). The tolerance is a
+ * fraction of the stroke's size, so thick strokes are simplified more than
+ * thin ones.
+ *
+ * A single segment is held for up to MERGE_WINDOW_MS in case the next one
+ * carries on from it. A polyline is already a batch, so it is simplified and
+ * published as soon as it arrives. Any other drawing from the same user
+ * publishes their held stroke first, so a user's drawings stay in order
+ */
+public class StrokeSimplifier {
+	/** the longest a segment is held waiting for the next one */
+	public static final long MERGE_WINDOW_MS = 50;
+	/** the most points merged into one polyline */
+	public static final int MAX_POINTS = 256;
+	/** the tolerance is never less than this many pixels */
+	private static final double MIN_TOLERANCE = 0.5;
+
+	private final double tolerance;
+	private final Consumer<DrawOp> publish;
+	private final ScheduledExecutorService timer;
+	/** the stroke being merged for each user, by uuid */
+	private final Map<Integer, Stroke> strokes = new ConcurrentHashMap<>();
+
+	private final Metrics.Counter pointsIn;
+	private final Metrics.Counter pointsOut;
+	private final Metrics.Counter drawingsIn;
+	private final Metrics.Counter drawingsOut;
+
+	/**
+	 * Creates a StrokeSimplifier
+	 *
+	 * @param tolerance double, the furthest a dropped point may be from the
+	 *                  simplified line, as a fraction of the stroke's size
+	 * @param publish   Consumer, publishes each drawing once it is ready
+	 * @param metrics   Metrics, where the points and drawings in and out are
+	 *                  counted
+	 */
+	public StrokeSimplifier(double tolerance, Consumer<DrawOp> publish,
+		Metrics metrics) {
+		this.tolerance = tolerance;
+		this.publish = publish;
+		this.pointsIn = metrics.counter("strokes.points.in");
+		this.pointsOut = metrics.counter("strokes.points.out");
+		this.drawingsIn = metrics.counter("strokes.drawings.in");
+		this.drawingsOut = metrics.counter("strokes.drawings.out");
+		this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "stroke-simplifier");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return the tolerance, as a fraction of a stroke's size
+	 */
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * Takes a drawing from a user. Freehand and eraser drawings may be held
+	 * and merged with the user's next ones, anything else is published
+	 * straight away, after the user's held stroke
+	 *
+	 * @param user    IUser, who sent it
+	 * @param drawing DrawOp
+	 */
+	public void submit(IUser user, DrawOp drawing) {
+		Stroke stroke = strokes.computeIfAbsent(user.getUUID(),
+			ignored -> new Stroke());
+
+		stroke.lock.lock();
+		try {
+			if (!drawing.getTool().isDragOnly()) {
+				stroke.flush();
+				publish.accept(drawing);
+				return;
+			}
+
+			int[] points = points(drawing);
+			pointsIn.add(points.length / 2);
+			drawingsIn.increment();
+
+			if (!stroke.continues(drawing, points)) {
+				stroke.flush();
+			}
+			stroke.add(drawing, points);
+
+			if (drawing.getPoints() != null
+				|| stroke.length >= 2 * MAX_POINTS) {
+				stroke.flush();
+			} else if (stroke.timeout == null) {
+				long generation = stroke.generation;
+				try {
+					stroke.timeout = timer.schedule(
+						() -> stroke.flushIfStill(generation),
+						MERGE_WINDOW_MS,
+						TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException ree) {
+					// closed, so nothing is held any more
+					stroke.flush();
+				}
+			}
+		} finally {
+			stroke.lock.unlock();
+		}
+	}
+
+	/**
+	 * Publishes a user's held stroke, if they have one. Called before
+	 * anything else the user sends changes the board, and when they leave
+	 *
+	 * @param user IUser
+	 */
+	public void flush(IUser user) {
+		Stroke stroke = strokes.get(user.getUUID());
+		if (stroke == null) {
+			return;
+		}
+
+		stroke.lock.lock();
+		try {
+			stroke.flush();
+		} finally {
+			stroke.lock.unlock();
+		}
+	}
+
+	/**
+	 * Publishes a user's held stroke and forgets them
+	 *
+	 * @param user IUser
+	 */
+	public void remove(IUser user) {
+		flush(user);
+		strokes.remove(user.getUUID());
+	}
+
+	/**
+	 * Gets the points published as a fraction of those received
+	 *
+	 * @return double, 1 if nothing has been simplified
+	 */
+	public double getReductionRatio() {
+		long in = pointsIn.get();
+		return in == 0 ? 1 : (double) pointsOut.get() / in;
+	}
+
+	/**
+	 * Publishes every held stroke, and stops the timer
+	 */
+	public void close() {
+		timer.shutdownNow();
+		strokes.values().forEach(stroke -> {
+			stroke.lock.lock();
+			try {
+				stroke.flush();
+			} finally {
+				stroke.lock.unlock();
+			}
+		});
+	}
+
+	/**
+	 * Gets the points of a freehand or eraser drawing, a segment being a
+	 * polyline of its start and end
+	 *
+	 * @param drawing DrawOp
+	 * @return int[], x, y pairs
+	 */
+	private static int[] points(DrawOp drawing) {
+		int[] points = drawing.getPoints();
+		return points != null ? points
+			: new int[] { drawing.getX(), drawing.getY(), drawing.getX2(),
+				drawing.getY2() };
+	}
+
+	/**
+	 * Simplifies a polyline with the Douglas-Peucker algorithm. The first and
+	 * last points are always kept
+	 *
+	 * @param points    int[], x, y pairs
+	 * @param length    int, the number of ints of {@code points} used
+	 * @param tolerance double, in pixels
+	 * @return int[], x, y pairs of the points kept
+	 */
+	static int[] simplify(int[] points, int length, double tolerance) {
+		int count = length / 2;
+		if (count <= 2) {
+			return Arrays.copyOf(points, length);
+		}
+
+		boolean[] keep = new boolean[count];
+		keep[0] = keep[count - 1] = true;
+
+		// ranges still to split, as pairs of first and last point
+		int[] ranges = new int[2 * count];
+		int top = 0;
+		ranges[top++] = 0;
+		ranges[top++] = count - 1;
+		double limit = tolerance * tolerance;
+
+		while (top > 0) {
+			int last = ranges[--top];
+			int first = ranges[--top];
+
+			int furthest = -1;
+			double furthestDistance = limit;
+			for (int i = first + 1; i < last; i++) {
+				double distance = distanceSq(points, i, first, last);
+				if (distance > furthestDistance) {
+					furthest = i;
+					furthestDistance = distance;
+				}
+			}
+
+			if (furthest >= 0) {
+				keep[furthest] = true;
+				ranges[top++] = first;
+				ranges[top++] = furthest;
+				ranges[top++] = furthest;
+				ranges[top++] = last;
+			}
+		}
+
+		int kept = 0;
+		for (boolean k : keep) {
+			if (k) {
+				kept++;
+			}
+		}
+
+		int[] simplified = new int[2 * kept];
+		int j = 0;
+		for (int i = 0; i < count; i++) {
+			if (keep[i]) {
+				simplified[j++] = points[2 * i];
+				simplified[j++] = points[2 * i + 1];
+			}
+		}
+
+		return simplified;
+	}
+
+	/**
+	 * Gets the squared distance from a point to the segment between two
+	 * others
+	 */
+	private static double distanceSq(int[] points, int point, int first,
+		int last) {
+		double px = points[2 * point];
+		double py = points[2 * point + 1];
+		double ax = points[2 * first];
+		double ay = points[2 * first + 1];
+		double dx = points[2 * last] - ax;
+		double dy = points[2 * last + 1] - ay;
+
+		double lengthSq = dx * dx + dy * dy;
+		double t = lengthSq == 0 ? 0
+			: Math.max(0, Math.min(1,
+				((px - ax) * dx + (py - ay) * dy) / lengthSq));
+		double ex = px - (ax + t * dx);
+		double ey = py - (ay + t * dy);
+
+		return ex * ex + ey * ey;
+	}
+
+	/**
+	 * The stroke being merged for one user. Only accessed with its lock held
+	 */
+	private class Stroke {
+		private final Lock lock = new ReentrantLock();
+
+		/** the first drawing of the stroke, for its attributes */
+		private DrawOp first = null;
+		private int[] points = new int[64];
+		private int length = 0;
+		/** incremented every time the stroke is published */
+		private long generation = 0;
+		private ScheduledFuture<?> timeout = null;
+
+		/**
+		 * Checks if a drawing carries on from this stroke, with the same
+		 * attributes, starting where it ends
+		 */
+		private boolean continues(DrawOp drawing, int[] next) {
+			return first != null
+				&& first.getTool() == drawing.getTool()
+				&& first.getSize() == drawing.getSize()
+				&& first.getColor() == drawing.getColor()
+				&& points[length - 2] == next[0]
+				&& points[length - 1] == next[1];
+		}
+
+		/**
+		 * Adds a drawing's points to this stroke. The first point of a drawing
+		 * that carries on from it is already there
+		 */
+		private void add(DrawOp drawing, int[] next) {
+			int from = 0;
+			if (first == null) {
+				first = drawing;
+			} else {
+				from = 2;
+			}
+
+			int needed = length + next.length - from;
+			if (needed > points.length) {
+				points = Arrays.copyOf(points,
+					Math.max(needed, 2 * points.length));
+			}
+			System.arraycopy(next, from, points, length, next.length - from);
+			length = needed;
+		}
+
+		/**
+		 * Publishes this stroke, if it has not been published since
+		 * {@code generation}
+		 */
+		private void flushIfStill(long generation) {
+			lock.lock();
+			try {
+				if (this.generation == generation) {
+					flush();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Simplifies and publishes this stroke, and starts a new one
+		 */
+		private void flush() {
+			if (timeout != null) {
+				timeout.cancel(false);
+				timeout = null;
+			}
+			if (first == null) {
+				return;
+			}
+
+			double pixels = Math.max(MIN_TOLERANCE,
+				tolerance * Math.abs(first.getSize()));
+			int[] simplified = simplify(points, length, pixels);
+
+			DrawOp drawing = new DrawOp(first.getTool())
+				.setSize(first.getSize()).setColor(first.getColor());
+			if (simplified.length == 4) {
+				// a single segment is smaller, and understood by every client
+				drawing.setPosition(simplified[0], simplified[1])
+					.setEnd(simplified[2], simplified[3]);
+			} else {
+				drawing.setPoints(simplified);
+			}
+
+			pointsOut.add(simplified.length / 2);
+			drawingsOut.increment();
+			publish.accept(drawing);
+
+			first = null;
+			length = 0;
+			generation++;
+		}
+	}
+}
@@ -0,0 +1,442 @@
+package server;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The pixels of a board, as square tiles of TILE_SIZE.
+ *
+ * A store on the heap keeps the board as one image, and draws on it once. A
+ * mapped store keeps its tiles in a memory-mapped file, which the OS pages in
+ * and out as they are used, and draws on each tile in a cache of the tiles
+ * used most recently, so the heap it uses does not grow with the board. Tiles
+ * leaving the cache are written back to the file if they changed.
+ *
+ * Tiles start white, and a white tile is never read from or written to the
+ * file. A store is only used by one thread at a time
+ */
+class TileStore {
+	private static final int TILE_SIZE = BoardModel.TILE_SIZE;
+	private static final int TILE_PIXELS = TILE_SIZE * TILE_SIZE;
+	/** the number of tiles in each mapping of the file, 64MB */
+	private static final int REGION_TILES = 4096;
+	private static final int WHITE = 0xFFFFFFFF;
+
+	private final int width;
+	private final int height;
+	private final int columns;
+	private final int count;
+
+	/** whether each tile is white, whatever its pixels say */
+	private final boolean[] white;
+	/** for reading tiles */
+	private final int[] scratch = new int[TILE_PIXELS];
+
+	/** the whole board of a store on the heap, {@code null} if mapped */
+	private final BufferedImage board;
+	private final int[] boardPixels;
+	private final Graphics2D boardGraphics;
+
+	/** the file of a mapped store, {@code null} if on the heap */
+	private final FileChannel file;
+	private final IntBuffer[] regions;
+	/** the cached tile of each tile, {@code null} if it is not cached */
+	private final Tile[] resident;
+	/** the cache, from which tiles are evicted in CLOCK order */
+	private final Tile[] cache;
+	private int cached = 0;
+	private int hand = 0;
+
+	private TileStore(int width, int height, FileChannel file,
+		int cachedTiles) {
+		this.width = width;
+		this.height = height;
+		this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+		this.count = columns * ((height + TILE_SIZE - 1) / TILE_SIZE);
+		this.white = new boolean[count];
+		Arrays.fill(white, true);
+
+		if (file == null) {
+			this.board = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_ARGB);
+			this.boardPixels = pixels(board);
+			this.boardGraphics = board.createGraphics();
+			Arrays.fill(boardPixels, WHITE);
+		} else {
+			this.board = null;
+			this.boardPixels = null;
+			this.boardGraphics = null;
+		}
+
+		this.file = file;
+		this.regions = file == null ? null
+			: new IntBuffer[(count + REGION_TILES - 1) / REGION_TILES];
+		this.resident = file == null ? null : new Tile[count];
+		this.cache = file == null ? null
+			: new Tile[Math.max(1, Math.min(count, cachedTiles))];
+	}
+
+	/**
+	 * Creates a white TileStore that keeps every tile on the heap
+	 *
+	 * @param width  int
+	 * @param height int
+	 * @return TileStore
+	 */
+	static TileStore onHeap(int width, int height) {
+		return new TileStore(width, height, null, 0);
+	}
+
+	/**
+	 * Creates a white TileStore that keeps its tiles in a new temporary file,
+	 * which is deleted when the store is closed
+	 *
+	 * @param width       int
+	 * @param height      int
+	 * @param cachedTiles int, the most tiles cached on the heap
+	 * @return TileStore
+	 *
+	 * @throws IOException if the file can not be created
+	 */
+	static TileStore mapped(int width, int height, int cachedTiles)
+		throws IOException {
+		Path path = Files.createTempFile("whiteboard-", ".tiles");
+		Files.delete(path);
+
+		return new TileStore(width, height,
+			FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.SPARSE, StandardOpenOption.DELETE_ON_CLOSE),
+			cachedTiles);
+	}
+
+	/**
+	 * @return the number of tiles
+	 */
+	int getTileCount() {
+		return count;
+	}
+
+	/**
+	 * @return the number of columns of tiles
+	 */
+	int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Gets the columns and rows of the tiles overlapping {@code area}
+	 *
+	 * @param area Rectangle
+	 * @return int[], the first column and row and the last column and row,
+	 *         {@code null} if the area is not on the board
+	 */
+	int[] range(Rectangle area) {
+		int left = Math.max(0, area.x);
+		int top = Math.max(0, area.y);
+		int right = Math.min(width, area.x + area.width);
+		int bottom = Math.min(height, area.y + area.height);
+		if (left >= right || top >= bottom) {
+			return null;
+		}
+
+		return new int[] { left / TILE_SIZE, top / TILE_SIZE,
+			(right - 1) / TILE_SIZE, (bottom - 1) / TILE_SIZE };
+	}
+
+	/**
+	 * Draws on the tiles overlapping {@code area}. A store on the heap paints
+	 * the whole board once, a mapped store paints each tile, clipped to it
+	 *
+	 * @param area    Rectangle, containing everything painted
+	 * @param painter Painter
+	 */
+	void draw(Rectangle area, Painter painter) {
+		int[] range = range(area);
+		if (range == null) {
+			return;
+		}
+
+		if (board != null) {
+			painter.paint(boardGraphics, 0, 0);
+		}
+
+		for (int row = range[1]; row <= range[3]; row++) {
+			for (int column = range[0]; column <= range[2]; column++) {
+				int tile = row * columns + column;
+				if (board == null) {
+					Tile page = page(tile);
+					page.dirty = true;
+					painter.paint(page.graphics, column * TILE_SIZE,
+						row * TILE_SIZE);
+				}
+				white[tile] = false;
+			}
+		}
+	}
+
+	/**
+	 * Makes every tile white
+	 */
+	void clear() {
+		Arrays.fill(white, true);
+		if (board != null) {
+			Arrays.fill(boardPixels, WHITE);
+			return;
+		}
+
+		for (int i = 0; i < cached; i++) {
+			Arrays.fill(cache[i].pixels, WHITE);
+			cache[i].dirty = false;
+		}
+	}
+
+	/**
+	 * Checks if every pixel of a tile is white
+	 *
+	 * @param tile int
+	 * @return boolean
+	 */
+	boolean isWhite(int tile) {
+		if (white[tile]) {
+			return true;
+		}
+
+		int[] pixels = scratch;
+		read(tile, pixels);
+		int tileWidth = tileWidth(tile);
+		int tileHeight = tileHeight(tile);
+		for (int y = 0; y < tileHeight; y++) {
+			for (int x = 0; x < tileWidth; x++) {
+				if (pixels[y * TILE_SIZE + x] != WHITE) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Copies a tile, without caching it
+	 *
+	 * @param tile int
+	 * @return BufferedImage, TILE_SIZE square, of which only the tile's area
+	 *         is on the board
+	 */
+	BufferedImage copy(int tile) {
+		BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE,
+			BufferedImage.TYPE_INT_ARGB);
+		read(tile, pixels(image));
+
+		return image;
+	}
+
+	/**
+	 * Deletes the file, if the store has one. The store can not be used
+	 * afterwards
+	 */
+	void close() {
+		if (boardGraphics != null) {
+			boardGraphics.dispose();
+		}
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Gets the width of a tile. Tiles on the right edge may be narrower than
+	 * TILE_SIZE
+	 *
+	 * @param tile int
+	 * @return int
+	 */
+	private int tileWidth(int tile) {
+		return Math.min(TILE_SIZE, width - (tile % columns) * TILE_SIZE);
+	}
+
+	/**
+	 * Gets the height of a tile. Tiles on the bottom edge may be shorter than
+	 * TILE_SIZE
+	 *
+	 * @param tile int
+	 * @return int
+	 */
+	private int tileHeight(int tile) {
+		return Math.min(TILE_SIZE, height - (tile / columns) * TILE_SIZE);
+	}
+
+	/**
+	 * Copies the pixels of a tile, without caching it
+	 *
+	 * @param tile   int
+	 * @param pixels int[], TILE_SIZE square
+	 */
+	private void read(int tile, int[] pixels) {
+		if (board != null) {
+			int x = (tile % columns) * TILE_SIZE;
+			int y = (tile / columns) * TILE_SIZE;
+			int tileWidth = tileWidth(tile);
+			for (int row = 0; row < tileHeight(tile); row++) {
+				System.arraycopy(boardPixels, (y + row) * width + x, pixels,
+					row * TILE_SIZE, tileWidth);
+			}
+		} else if (resident[tile] != null) {
+			System.arraycopy(resident[tile].pixels, 0, pixels, 0, TILE_PIXELS);
+		} else {
+			load(tile, pixels);
+		}
+	}
+
+	/**
+	 * Gets the cached tile of a tile, caching it if it is not, in place of the
+	 * least recently used
+	 *
+	 * @param tile int
+	 * @return Tile
+	 */
+	private Tile page(int tile) {
+		Tile page = resident[tile];
+		if (page != null) {
+			page.used = true;
+			return page;
+		}
+
+		if (cached < cache.length) {
+			page = new Tile();
+			cache[cached++] = page;
+		} else {
+			// the clock hand passes over tiles used since it last did
+			while (cache[hand].used) {
+				cache[hand].used = false;
+				hand = (hand + 1) % cache.length;
+			}
+			page = cache[hand];
+			hand = (hand + 1) % cache.length;
+			evict(page);
+		}
+
+		page.load(tile, tileWidth(tile), tileHeight(tile));
+		load(tile, page.pixels);
+		resident[tile] = page;
+
+		return page;
+	}
+
+	/**
+	 * Reads a tile from the file, or fills {@code pixels} with white if it is
+	 * white
+	 *
+	 * @param tile   int
+	 * @param pixels int[]
+	 */
+	private void load(int tile, int[] pixels) {
+		if (white[tile]) {
+			Arrays.fill(pixels, WHITE);
+			return;
+		}
+
+		IntBuffer region = region(tile);
+		region.position((tile % REGION_TILES) * TILE_PIXELS);
+		region.get(pixels);
+	}
+
+	/**
+	 * Removes a tile from the cache, writing it back to the file if it changed
+	 *
+	 * @param page Tile
+	 */
+	private void evict(Tile page) {
+		if (page.dirty && !white[page.index]) {
+			IntBuffer region = region(page.index);
+			region.position((page.index % REGION_TILES) * TILE_PIXELS);
+			region.put(page.pixels);
+		}
+
+		page.dirty = false;
+		resident[page.index] = null;
+	}
+
+	/**
+	 * Gets the mapping of the file containing a tile, mapping it if needed.
+	 * The file grows as it is mapped, but is sparse, so only the tiles
+	 * written take space
+	 *
+	 * @param tile int
+	 * @return IntBuffer
+	 */
+	private IntBuffer region(int tile) {
+		int index = tile / REGION_TILES;
+		if (regions[index] == null) {
+			long start = (long) index * REGION_TILES * TILE_PIXELS * 4;
+			long length = (long) Math.min(REGION_TILES,
+				count - index * REGION_TILES) * TILE_PIXELS * 4;
+			try {
+				regions[index] = file
+					.map(FileChannel.MapMode.READ_WRITE, start, length)
+					.order(ByteOrder.nativeOrder()).asIntBuffer();
+			} catch (IOException ioe) {
+				throw new IllegalStateException("Board storage failed", ioe);
+			}
+		}
+
+		return regions[index];
+	}
+
+	/**
+	 * Paints on a board, or on a tile of it
+	 */
+	interface Painter {
+		/**
+		 * @param g Graphics2D
+		 * @param x int, the x coordinate on the board of g's origin
+		 * @param y int, the y coordinate on the board of g's origin
+		 */
+		void paint(Graphics2D g, int x, int y);
+	}
+
+	private static int[] pixels(BufferedImage image) {
+		return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * A cached tile, and the Graphics2D drawing on it. Reused for other tiles
+	 * as tiles are evicted
+	 */
+	private static class Tile {
+		private final BufferedImage image = new BufferedImage(TILE_SIZE,
+			TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+		private final int[] pixels = pixels(image);
+		private final Graphics2D graphics = image.createGraphics();
+
+		private int index = -1;
+		/** whether it changed since it was cached */
+		private boolean dirty = false;
+		/** whether it was used since the clock hand last passed it */
+		private boolean used = true;
+
+		/**
+		 * Clips the Graphics2D to the area of another tile
+		 */
+		private void load(int index, int width, int height) {
+			graphics.setClip(0, 0, width, height);
+
+			this.index = index;
+			this.used = true;
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import gui.ClientGUI.Tool;
+
+/**
+ * Encodes values, drawings and chunks, and checks they decode to what was
+ * encoded, or are rejected when they are malformed
+ */
+public class BinaryCodecTest {
+	private static final int[] INTS = { 0, 1, 63, 64, 127, 128, 16383, 16384,
+		-1, -64, -65, Integer.MAX_VALUE, Integer.MIN_VALUE };
+	private static final long[] LONGS = { 0, 1, 127, 128, Integer.MAX_VALUE,
+		1L << 35, Long.MAX_VALUE, -1 };
+
+	@Test
+	public void varintsRoundTrip() throws IOException {
+		for (int value : INTS) {
+			ByteBuffer in = write(out -> BinaryCodec.writeVarint(out, value));
+			assertEquals(value, BinaryCodec.readVarint(in));
+			assertEquals(0, in.remaining());
+		}
+		for (long value : LONGS) {
+			ByteBuffer in = write(out -> BinaryCodec.writeVarLong(out, value));
+			assertEquals(value, BinaryCodec.readVarLong(in));
+			assertEquals(0, in.remaining());
+		}
+	}
+
+	@Test
+	public void varintsAreAsShortAsTheirValue() {
+		assertEquals(1, write(out -> BinaryCodec.writeVarint(out, 127))
+			.remaining());
+		assertEquals(2, write(out -> BinaryCodec.writeVarint(out, 128))
+			.remaining());
+		assertEquals(5, write(out -> BinaryCodec.writeVarint(out, -1))
+			.remaining());
+		assertEquals(10, write(out -> BinaryCodec.writeVarLong(out, -1))
+			.remaining());
+	}
+
+	@Test
+	public void signedVarintsRoundTrip() throws IOException {
+		for (int value : INTS) {
+			ByteBuffer in = write(
+				out -> BinaryCodec.writeSignedVarint(out, value));
+			assertEquals(value, BinaryCodec.readSignedVarint(in));
+			assertEquals(0, in.remaining());
+		}
+
+		// small values stay small whichever their sign
+		assertEquals(1, write(out -> BinaryCodec.writeSignedVarint(out, -64))
+			.remaining());
+		assertEquals(2, write(out -> BinaryCodec.writeSignedVarint(out, 64))
+			.remaining());
+	}
+
+	@Test
+	public void rejectsOverlongVarint() {
+		byte[] overlong = new byte[11];
+		Arrays.fill(overlong, (byte) 0x80);
+		assertThrows(IOException.class,
+			() -> BinaryCodec.readVarint(ByteBuffer.wrap(overlong)));
+		assertThrows(IOException.class,
+			() -> BinaryCodec.readVarLong(ByteBuffer.wrap(overlong)));
+	}
+
+	@Test
+	public void drawingsRoundTrip() throws IOException {
+		assertRoundTrip(new DrawOp(Tool.LINE).setPosition(-20, 30)
+			.setEnd(Integer.MAX_VALUE, Integer.MIN_VALUE).setSize(3)
+			.setColor(0x80FF0000).setSeq(Long.MAX_VALUE));
+		assertRoundTrip(new DrawOp(Tool.RECTANGLE).setPosition(1, 2)
+			.setDimensions(300, 40).setColor(-1));
+		assertRoundTrip(new DrawOp(Tool.OVAL).setPosition(0, 0)
+			.setDimensions(0, 0).setColor(0));
+		assertRoundTrip(new DrawOp(Tool.CIRCLE).setPosition(689, 619)
+			.setSize(128).setColor(0xFF00FF00).setSeq(1));
+		assertRoundTrip(new DrawOp(Tool.FREEHAND).setPosition(5, 5)
+			.setEnd(6, 4).setSize(2).setColor(0xFF000000));
+		assertRoundTrip(new DrawOp(Tool.ERASER).setPosition(10, 10)
+			.setEnd(-10, -10).setSize(20));
+		assertRoundTrip(new DrawOp(Tool.TEXT).setPosition(50, 60)
+			.setSize(12).setText("h\u00e9llo \u4e16\u754c \ud83d\ude00")
+			.setColor(0xFF0000FF));
+		assertRoundTrip(new DrawOp(Tool.TEXT).setPosition(0, 0).setSize(12)
+			.setText("").setColor(0));
+	}
+
+	@Test
+	public void polylinesRoundTrip() throws IOException {
+		int[] points = { 100, 100, 101, 99, 99, 101, 600, -40, -600, 40,
+			Integer.MAX_VALUE, 0, Integer.MIN_VALUE, 0 };
+		DrawOp freehand = assertRoundTrip(new DrawOp(Tool.FREEHAND)
+			.setPoints(points).setSize(3).setColor(0xFF123456).setSeq(77));
+		assertArrayEquals(points, freehand.getPoints());
+		assertEquals(Integer.MIN_VALUE, freehand.getX2());
+
+		int[] eraser = { 1, 2, 3, 4 };
+		assertArrayEquals(eraser, assertRoundTrip(new DrawOp(Tool.ERASER)
+			.setPoints(eraser).setSize(30)).getPoints());
+
+		// a polyline of a single point
+		int[] dot = { 7, 8 };
+		assertArrayEquals(dot, assertRoundTrip(new DrawOp(Tool.FREEHAND)
+			.setPoints(dot).setSize(1).setColor(0)).getPoints());
+	}
+
+	@Test
+	public void rejectsPolylineWithMorePointsThanFrame() throws IOException {
+		byte[] frame = BinaryCodec.encode(new DrawOp(Tool.FREEHAND)
+			.setPoints(new int[] { 0, 0, 1, 1 }).setSize(1).setColor(0));
+		// the point count, after the opcode, seq, position and size
+		frame[6] = 100;
+		assertThrows(IOException.class,
+			() -> BinaryCodec.decode(ByteBuffer.wrap(frame)));
+	}
+
+	@Test
+	public void oversizedTextIsOnlyReadByServers() throws IOException {
+		char[] text = new char[BinaryCodec.MAX_CLIENT_FRAME_LENGTH];
+		Arrays.fill(text, 'x');
+		DrawOp op = new DrawOp(Tool.TEXT).setPosition(1, 1).setSize(10)
+			.setText(new String(text)).setColor(0);
+		byte[] frame = BinaryCodec.encode(op);
+
+		assertEquals(op.toString(), BinaryCodec.read(stream(frame)).toString());
+		assertThrows(IOException.class, () -> BinaryCodec.read(stream(frame),
+			BinaryCodec.MAX_CLIENT_FRAME_LENGTH));
+		assertThrows(IOException.class, () -> BinaryCodec.frameLength(
+			ByteBuffer.wrap(frame), BinaryCodec.MAX_CLIENT_FRAME_LENGTH));
+	}
+
+	@Test
+	public void rejectsTextLongerThanFrame() {
+		byte[] frame = BinaryCodec.encode(new DrawOp(Tool.TEXT)
+			.setPosition(0, 0).setSize(1).setText("abc").setColor(0));
+		// the text length, after the opcode, seq, position and size
+		frame[6] = 100;
+		assertThrows(IOException.class,
+			() -> BinaryCodec.decode(ByteBuffer.wrap(frame)));
+	}
+
+	@Test
+	public void rejectsBadFrameLengths() throws IOException {
+		assertThrows(IOException.class, () -> BinaryCodec.frameLength(
+			ByteBuffer.wrap(new byte[] { 0 })));
+		assertThrows(IOException.class,
+			() -> BinaryCodec.frameLength(ByteBuffer.wrap(new byte[] {
+				(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+				(byte) 0x80 })));
+		assertThrows(IOException.class, () -> BinaryCodec.frameLength(
+			write(out -> BinaryCodec.writeVarint(out,
+				BinaryCodec.MAX_FRAME_LENGTH + 1))));
+
+		// an incomplete length is not an error, as the rest may follow
+		assertEquals(-1, BinaryCodec.frameLength(
+			ByteBuffer.wrap(new byte[] { (byte) 0x80 })));
+	}
+
+	@Test
+	public void messagesRoundTrip() throws IOException {
+		String json = new JSONObject().put(Fields.COMMAND, Fields.USERNAME)
+			.put(Fields.USERNAME, "caf\u00e9 \ud83d\ude00").toString();
+		assertEquals(json,
+			BinaryCodec.decode(ByteBuffer.wrap(BinaryCodec.encode(json))));
+	}
+
+	@Test
+	public void tilesRoundTrip() throws IOException {
+		byte[][] images = { { 1, 2, 3 }, null, new byte[300] };
+		byte[] frame = BinaryCodec.encodeTiles(9, new int[] { 0, 10, 200 },
+			new int[] { 3, 0, 1000 }, images);
+
+		JSONObject chunk = (JSONObject) BinaryCodec
+			.decode(ByteBuffer.wrap(frame));
+		assertEquals(9, chunk.getInt(Fields.ID));
+		JSONArray tiles = chunk.getJSONArray(Fields.TILES);
+		assertEquals(3, tiles.length());
+		assertEquals(200, tiles.getJSONObject(2).getInt(Fields.X));
+		assertEquals(1000, tiles.getJSONObject(2).getInt(Fields.Y));
+		assertArrayEquals(images[0],
+			(byte[]) tiles.getJSONObject(0).get(Fields.IMAGE));
+		assertFalse(tiles.getJSONObject(1).has(Fields.IMAGE));
+		assertArrayEquals(images[2],
+			(byte[]) tiles.getJSONObject(2).get(Fields.IMAGE));
+	}
+
+	@Test
+	public void decodesConsecutiveFrames() throws IOException {
+		DrawOp first = new DrawOp(Tool.CIRCLE).setPosition(1, 1).setSize(5)
+			.setColor(0);
+		DrawOp second = new DrawOp(Tool.LINE).setPosition(2, 2).setEnd(3, 3)
+			.setSize(1).setColor(0);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.writeBytes(BinaryCodec.encode(first));
+		out.writeBytes(BinaryCodec.encode(second));
+
+		ByteBuffer in = ByteBuffer.wrap(out.toByteArray());
+		assertEquals(first.toString(), BinaryCodec.decode(in).toString());
+		assertEquals(second.toString(), BinaryCodec.decode(in).toString());
+		assertEquals(0, in.remaining());
+	}
+
+	/**
+	 * Checks a drawing decodes to the same drawing, from a buffer and from a
+	 * stream
+	 *
+	 * @param op DrawOp
+	 * @return DrawOp, as decoded
+	 *
+	 * @throws IOException
+	 */
+	private static DrawOp assertRoundTrip(DrawOp op) throws IOException {
+		byte[] frame = BinaryCodec.encode(op);
+		assertEquals(frame.length,
+			BinaryCodec.frameLength(ByteBuffer.wrap(frame)));
+
+		DrawOp decoded = (DrawOp) BinaryCodec.decode(ByteBuffer.wrap(frame));
+		assertEquals(op.toString(), decoded.toString());
+		assertEquals(op.getSeq(), decoded.getSeq());
+		assertEquals(op.toString(), BinaryCodec.read(stream(frame)).toString());
+		return decoded;
+	}
+
+	private static DataInputStream stream(byte[] bytes) {
+		return new DataInputStream(new ByteArrayInputStream(bytes));
+	}
+
+	private interface Writer {
+		void write(ByteArrayOutputStream out);
+	}
+
+	private static ByteBuffer write(Writer writer) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer.write(out);
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+}
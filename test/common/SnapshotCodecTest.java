@@ -0,0 +1,249 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import common.SnapshotCodec.Format;
+
+/**
+ * Encodes images, and checks they decode to the same pixels, in RLE where it
+ * applies and in PNG where it does not
+ */
+public class SnapshotCodecTest {
+	/** the size of the tiles boards are sent in, see BoardModel */
+	private static final int TILE_SIZE = 64;
+	private static final byte[] RLE_MAGIC = { 'W', 'B', 'R', '1' };
+
+	@Test
+	public void rleRoundTripsBoard() throws IOException {
+		BufferedImage board = board(690, 620);
+		byte[] bytes = SnapshotCodec.toBytes(board, Format.RLE);
+
+		assertTrue(isRLE(bytes));
+		assertSamePixels(board, SnapshotCodec.fromBytes(bytes));
+	}
+
+	@Test
+	public void rleRoundTripsEdgeTiles() throws IOException {
+		// neither side is a whole number of tiles, so the tiles along the
+		// right and bottom edges are narrower and shorter than the rest
+		BufferedImage board = board(690, 620);
+		for (int y = 0; y < board.getHeight(); y += TILE_SIZE) {
+			for (int x = 0; x < board.getWidth(); x += TILE_SIZE) {
+				BufferedImage tile = board.getSubimage(x, y,
+					Math.min(TILE_SIZE, board.getWidth() - x),
+					Math.min(TILE_SIZE, board.getHeight() - y));
+				byte[] bytes = SnapshotCodec.toBytes(tile, Format.RLE);
+
+				assertTrue(isRLE(bytes));
+				assertSamePixels(tile, SnapshotCodec.fromBytes(bytes));
+			}
+		}
+
+		BufferedImage corner = SnapshotCodec.fromBytes(SnapshotCodec.toBytes(
+			board.getSubimage(640, 576, 50, 44), Format.RLE));
+		assertEquals(50, corner.getWidth());
+		assertEquals(44, corner.getHeight());
+
+		// a board one pixel wider than a whole number of tiles
+		BufferedImage strip = board.getSubimage(689, 0, 1, TILE_SIZE);
+		byte[] bytes = SnapshotCodec.toBytes(strip, Format.RLE);
+		assertTrue(isRLE(bytes));
+		assertSamePixels(strip, SnapshotCodec.fromBytes(bytes));
+	}
+
+	@Test
+	public void rleRoundTripsSinglePixel() throws IOException {
+		BufferedImage image = new BufferedImage(1, 1,
+			BufferedImage.TYPE_INT_ARGB);
+		image.setRGB(0, 0, 0x12345678);
+		byte[] bytes = SnapshotCodec.toBytes(image, Format.RLE);
+
+		assertTrue(isRLE(bytes));
+		assertSamePixels(image, SnapshotCodec.fromBytes(bytes));
+	}
+
+	@Test
+	public void rleKeepsAlpha() throws IOException {
+		BufferedImage image = new BufferedImage(40, 30,
+			BufferedImage.TYPE_INT_ARGB);
+		fill(image, 0, 0, 40, 10, 0x00000000);
+		fill(image, 0, 10, 40, 10, 0x80FF0000);
+		fill(image, 0, 20, 40, 10, 0xFF00FF00);
+
+		assertSamePixels(image, SnapshotCodec
+			.fromBytes(SnapshotCodec.toBytes(image, Format.RLE)));
+	}
+
+	@Test
+	public void rleRoundTripsOtherImageTypes() throws IOException {
+		for (int type : new int[] { BufferedImage.TYPE_INT_RGB,
+			BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR }) {
+			BufferedImage image = new BufferedImage(100, 80, type);
+			Graphics2D g = image.createGraphics();
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, 100, 80);
+			g.setColor(Color.MAGENTA);
+			g.fillRect(10, 10, 50, 30);
+			g.dispose();
+			byte[] bytes = SnapshotCodec.toBytes(image, Format.RLE);
+
+			assertTrue(isRLE(bytes));
+			assertSamePixels(image, SnapshotCodec.fromBytes(bytes));
+		}
+	}
+
+	@Test
+	public void fullPaletteIsRLE() throws IOException {
+		BufferedImage image = runs(SnapshotCodec.MAX_PALETTE, 8);
+		byte[] bytes = SnapshotCodec.toBytes(image, Format.RLE);
+
+		assertTrue(isRLE(bytes));
+		assertSamePixels(image, SnapshotCodec.fromBytes(bytes));
+	}
+
+	@Test
+	public void paletteOverflowFallsBackToPNG() throws IOException {
+		BufferedImage image = runs(SnapshotCodec.MAX_PALETTE + 1, 8);
+		byte[] bytes = SnapshotCodec.toBytes(image, Format.RLE);
+
+		assertFalse(isRLE(bytes));
+		assertSamePixels(image, SnapshotCodec.fromBytes(bytes));
+	}
+
+	@Test
+	public void shortRunsFallBackToPNG() throws IOException {
+		BufferedImage image = new BufferedImage(64, 64,
+			BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < 64; y++) {
+			for (int x = 0; x < 64; x++) {
+				image.setRGB(x, y, (x + y) % 2 == 0 ? 0xFF000000 : 0xFFFFFFFF);
+			}
+		}
+		byte[] bytes = SnapshotCodec.toBytes(image, Format.RLE);
+
+		assertFalse(isRLE(bytes));
+		assertSamePixels(image, SnapshotCodec.fromBytes(bytes));
+	}
+
+	@Test
+	public void base64RoundTripsEitherFormat() {
+		BufferedImage board = board(200, 100);
+		for (Format format : Format.values()) {
+			assertSamePixels(board, SnapshotCodec
+				.decode(SnapshotCodec.encode(board, format)));
+		}
+	}
+
+	@Test
+	public void rejectsCorruptRLE() throws IOException {
+		byte[] bytes = SnapshotCodec.toBytes(board(100, 100), Format.RLE);
+
+		assertNull(SnapshotCodec.fromBytes(Arrays.copyOf(bytes,
+			bytes.length - 1)));
+		assertNull(SnapshotCodec.fromBytes(Arrays.copyOf(RLE_MAGIC,
+			RLE_MAGIC.length)));
+		assertNull(SnapshotCodec.fromBytes(new byte[0]));
+		assertNull(SnapshotCodec.decode(""));
+		assertNull(SnapshotCodec.decode("not base 64!"));
+
+		// a 2x1 image of one color, with a run of 3 pixels
+		assertNull(SnapshotCodec.fromBytes(new byte[] { 'W', 'B', 'R', '1', 2,
+			1, 1, 0, 0, 0, 0, 3, 0 }));
+		// and with a run of a color not in the palette
+		assertNull(SnapshotCodec.fromBytes(new byte[] { 'W', 'B', 'R', '1', 2,
+			1, 1, 0, 0, 0, 0, 2, 1 }));
+		// which is otherwise valid
+		assertSamePixels(new BufferedImage(2, 1, BufferedImage.TYPE_INT_ARGB),
+			SnapshotCodec.fromBytes(new byte[] { 'W', 'B', 'R', '1', 2, 1, 1,
+				0, 0, 0, 0, 2, 0 }));
+	}
+
+	/**
+	 * Draws a board as a whiteboard would be drawn on: a white background,
+	 * lines and shapes, and an area that was erased to transparent
+	 *
+	 * @param width  int
+	 * @param height int
+	 * @return BufferedImage
+	 */
+	private static BufferedImage board(int width, int height) {
+		BufferedImage image = new BufferedImage(width, height,
+			BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+		g.setStroke(new BasicStroke(3));
+		g.setColor(Color.BLUE);
+		g.drawLine(0, 0, width - 1, height - 1);
+		g.setColor(Color.RED);
+		g.drawOval(width / 4, height / 4, width / 2, height / 2);
+		g.setColor(new Color(0, 128, 0, 128));
+		g.fillRect(width / 3, 10, width / 3, height / 3);
+		g.setColor(Color.BLACK);
+		for (int x = 10; x < width / 2; x += 12) {
+			g.drawRect(x, height - 30, 6, 10);
+		}
+		g.dispose();
+
+		fill(image, width - 30, height - 30, 30, 30, 0);
+		return image;
+	}
+
+	/**
+	 * Creates an image of a number of colors, each in one run
+	 *
+	 * @param colors int
+	 * @param length int, of each run
+	 * @return BufferedImage
+	 */
+	private static BufferedImage runs(int colors, int length) {
+		int width = 64;
+		int height = (colors * length + width - 1) / width;
+		BufferedImage image = new BufferedImage(width, height,
+			BufferedImage.TYPE_INT_ARGB);
+		for (int i = 0; i < width * height; i++) {
+			int color = i / length < colors ? i / length : 0;
+			image.setRGB(i % width, i / width, 0xFF000000 | color);
+		}
+		return image;
+	}
+
+	private static void fill(BufferedImage image, int x, int y, int width,
+		int height, int argb) {
+		for (int row = y; row < y + height; row++) {
+			for (int column = x; column < x + width; column++) {
+				image.setRGB(column, row, argb);
+			}
+		}
+	}
+
+	private static boolean isRLE(byte[] bytes) {
+		return Arrays.equals(Arrays.copyOf(bytes, RLE_MAGIC.length),
+			RLE_MAGIC);
+	}
+
+	private static void assertSamePixels(BufferedImage expected,
+		BufferedImage actual) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		assertArrayEquals(pixels(expected), pixels(actual));
+	}
+
+	private static int[] pixels(BufferedImage image) {
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0,
+			image.getWidth());
+	}
+}
@@ -0,0 +1,345 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import common.DrawOp;
+import common.Fields;
+import common.SnapshotCodec;
+import gui.ClientGUI.Tool;
+
+/**
+ * Writes journals, then truncates, corrupts or rolls them back as a crash
+ * could, and checks the board that is recovered from what is left
+ */
+public class JournalTest {
+	private static final Dimension SIZE = new Dimension(200, 150);
+	private static final int NEVER = 1000;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void recoversEveryCommittedChange() throws IOException {
+		List<DrawOp> drawings = drawings(0, 20);
+		write(NEVER, drawings);
+
+		Session recovered = new Session(NEVER);
+		assertEquals(20, recovered.recover());
+		assertBoard(drawings, recovered.board);
+		recovered.close();
+	}
+
+	@Test
+	public void ignoresTornTail() throws IOException {
+		List<DrawOp> drawings = drawings(0, 20);
+		write(NEVER, drawings);
+
+		// the last record was only partly written
+		Path segment = last("journal-", ".log");
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(),
+			"rw")) {
+			file.setLength(file.length() - 3);
+		}
+
+		Session recovered = new Session(NEVER);
+		assertEquals(19, recovered.recover());
+		assertBoard(drawings.subList(0, 19), recovered.board);
+		recovered.close();
+	}
+
+	@Test
+	public void stopsAtChecksumMismatch() throws IOException {
+		List<DrawOp> drawings = drawings(0, 20);
+		write(NEVER, drawings);
+
+		// flip a bit in the CRC of the tenth record
+		long position = -1;
+		for (DrawOp drawing : drawings.subList(0, 10)) {
+			position += Message.of(drawing).getBinary().length + 4;
+		}
+		Path segment = last("journal-", ".log");
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(),
+			"rw")) {
+			file.seek(position);
+			int crc = file.read();
+			file.seek(position);
+			file.write(crc ^ 1);
+		}
+
+		Session recovered = new Session(NEVER);
+		assertEquals(9, recovered.recover());
+		assertBoard(drawings.subList(0, 9), recovered.board);
+		recovered.close();
+	}
+
+	@Test
+	public void fallsBackToOlderCheckpoint() throws IOException {
+		List<DrawOp> drawings = drawings(0, 20);
+		write(NEVER, drawings.subList(0, 10));
+
+		// recovering checkpoints the changes so far, and deletes the files
+		// they were in
+		Session second = new Session(NEVER);
+		assertEquals(10, second.recover());
+		Path oldCheckpoint = last("checkpoint-", ".img");
+		Path oldSegment = last("journal-", ".log");
+		Path keptCheckpoint = keep(oldCheckpoint);
+		Path keptSegment = keep(oldSegment);
+		second.publish(drawings.subList(10, 15));
+		second.close();
+
+		Session third = new Session(NEVER);
+		assertEquals(5, third.recover());
+		third.publish(drawings.subList(15, 20));
+		third.close();
+
+		// as if the server died before deleting them, and the newer
+		// checkpoint was then damaged part way through its tiles
+		Files.move(keptCheckpoint, oldCheckpoint);
+		Files.move(keptSegment, oldSegment);
+		Path newCheckpoint = last("checkpoint-", ".img");
+		try (RandomAccessFile file = new RandomAccessFile(
+			newCheckpoint.toFile(), "rw")) {
+			file.setLength(file.length() / 2);
+		}
+
+		Session recovered = new Session(NEVER);
+		assertEquals(10, recovered.recover());
+		assertBoard(drawings, recovered.board);
+		recovered.close();
+	}
+
+	@Test
+	public void rollsSegmentsAtCheckpoints() throws IOException {
+		List<DrawOp> drawings = drawings(0, 12);
+		write(5, drawings);
+
+		assertEquals(1, list("checkpoint-", ".img").size());
+		assertEquals(1, list("journal-", ".log").size());
+
+		Session recovered = new Session(5);
+		assertTrue(recovered.recover() <= 5);
+		assertEquals(12, recovered.board.getVersion());
+		assertBoard(drawings, recovered.board);
+		recovered.close();
+	}
+
+	@Test
+	public void replaysReplacedBoard() throws IOException {
+		Session session = new Session(NEVER);
+		assertEquals(0, session.recover());
+		// a replaced board is checkpointed as soon as it is committed, so
+		// the files from before it are kept to replay it from
+		Path checkpoint = last("checkpoint-", ".img");
+		Path segment = last("journal-", ".log");
+		Path keptCheckpoint = keep(checkpoint);
+		Path keptSegment = keep(segment);
+
+		List<DrawOp> before = drawings(0, 5);
+		List<DrawOp> after = drawings(5, 3);
+		String image = SnapshotCodec.encode(image());
+		session.publish(before);
+		session.replace(image);
+		session.publish(after);
+		session.close();
+
+		// as if the server died before the replaced board was checkpointed
+		Files.delete(last("checkpoint-", ".img"));
+		Files.move(keptCheckpoint, checkpoint);
+		Files.move(keptSegment, segment);
+
+		BoardModel expected = new BoardModel(SIZE);
+		apply(expected, before);
+		expected.setBoard(image);
+		apply(expected, after);
+
+		Session recovered = new Session(NEVER);
+		assertEquals(9, recovered.recover());
+		assertEquals(9, recovered.board.getVersion());
+		assertArrayEquals(pixels(expected), pixels(recovered.board));
+		expected.close();
+		recovered.close();
+	}
+
+	/**
+	 * A board with a journal, as a server keeps them
+	 */
+	private class Session {
+		private final BoardModel board = new BoardModel(SIZE);
+		private final Log log = new Log(new PrintStream(OutputStream
+			.nullOutputStream()));
+		private final Metrics metrics = new Metrics();
+		private final SnapshotCache snapshots = new SnapshotCache(board,
+			metrics.histogram("encode"), log);
+		private final Journal journal;
+
+		Session(int checkpointInterval) {
+			journal = new Journal(directory, checkpointInterval, metrics, log);
+		}
+
+		long recover() throws IOException {
+			return journal.recover(board, snapshots);
+		}
+
+		void publish(List<DrawOp> drawings) {
+			for (DrawOp drawing : drawings) {
+				drawing.setSeq(board.apply(drawing));
+				journal.append(Message.of(drawing));
+			}
+		}
+
+		void replace(String image) {
+			long seq = board.setBoard(image);
+			journal.append(Message.of(new JSONObject()
+				.put(Fields.COMMAND, Fields.BOARD)
+				.put(Fields.BOARD, image)
+				.put(Fields.SEQ, seq).toString()));
+		}
+
+		/**
+		 * Commits every change, then closes the board
+		 */
+		void close() {
+			journal.close();
+			snapshots.close();
+			board.close();
+			log.close();
+		}
+	}
+
+	/**
+	 * Journals drawings on a new board, then closes the journal
+	 *
+	 * @param checkpointInterval int
+	 * @param drawings           List
+	 *
+	 * @throws IOException
+	 */
+	private void write(int checkpointInterval, List<DrawOp> drawings)
+		throws IOException {
+		Session session = new Session(checkpointInterval);
+		assertEquals(0, session.recover());
+		session.publish(drawings);
+		session.close();
+	}
+
+	/**
+	 * Creates drawings that overlap each other, so their order matters
+	 *
+	 * @param from  int, of the first drawing
+	 * @param count int
+	 * @return List
+	 */
+	private static List<DrawOp> drawings(int from, int count) {
+		List<DrawOp> drawings = new ArrayList<>();
+		for (int i = from; i < from + count; i++) {
+			Tool tool = Tool.values()[i % 4];
+			drawings.add(new DrawOp(tool)
+				.setPosition((i * 37) % SIZE.width, (i * 53) % SIZE.height)
+				.setEnd((i * 71) % SIZE.width, (i * 29) % SIZE.height)
+				.setDimensions(20 + i % 40, 10 + i % 30)
+				.setSize(1 + i % 6)
+				.setColor(0xFF000000 | (i * 0x3F1D27)));
+		}
+		return drawings;
+	}
+
+	private static BufferedImage image() {
+		BufferedImage image = new BufferedImage(SIZE.width, SIZE.height,
+			BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.PINK);
+		g.fillRect(0, 0, SIZE.width, SIZE.height);
+		g.setColor(Color.BLUE);
+		g.fillOval(20, 20, 100, 100);
+		g.dispose();
+		return image;
+	}
+
+	private static void apply(BoardModel board, List<DrawOp> drawings) {
+		for (DrawOp drawing : drawings) {
+			board.apply(drawing);
+		}
+	}
+
+	/**
+	 * Checks a board is the same as a new board with the drawings applied
+	 *
+	 * @param drawings List
+	 * @param board    BoardModel
+	 */
+	private static void assertBoard(List<DrawOp> drawings, BoardModel board) {
+		BoardModel expected = new BoardModel(SIZE);
+		apply(expected, drawings);
+		assertEquals(expected.getVersion(), board.getVersion());
+		assertArrayEquals(pixels(expected), pixels(board));
+		expected.close();
+	}
+
+	private static int[] pixels(BoardModel board) {
+		BufferedImage image = board.snapshot().getImage();
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0,
+			image.getWidth());
+	}
+
+	/**
+	 * Keeps one of the journal's files once the journal deletes it, under a
+	 * name the journal does not list. Anything still written to the file is
+	 * kept too
+	 *
+	 * @param path Path
+	 * @return Path, the file is kept at
+	 *
+	 * @throws IOException
+	 */
+	private static Path keep(Path path) throws IOException {
+		return Files.createLink(
+			path.resolveSibling(path.getFileName() + ".kept"), path);
+	}
+
+	private Path last(String prefix, String suffix) throws IOException {
+		List<Path> files = list(prefix, suffix);
+		return files.get(files.size() - 1);
+	}
+
+	/**
+	 * Lists the journal's files with a prefix and suffix, in order
+	 *
+	 * @param prefix String
+	 * @param suffix String
+	 * @return List
+	 *
+	 * @throws IOException
+	 */
+	private List<Path> list(String prefix, String suffix) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+			prefix + "*" + suffix)) {
+			for (Path path : stream) {
+				files.add(path);
+			}
+		}
+		files.sort(null);
+		return files;
+	}
+}